@@ -24,6 +24,9 @@ public class AIBotTest extends PathFindingTest {
 
     protected void createBrains() {
 
+        // all bots chase the player, so they share one flow field
+        PathFinder chasePathFinder = new FlowFieldPathFinder(bspTree);
+
         averageBrain = new Brain();
         averageBrain.attackPathFinder =
             new AttackPatternRush(bspTree);
@@ -32,8 +35,7 @@ public class AIBotTest extends PathFindingTest {
         averageBrain.dodgePathFinder =
             new DodgePatternRandom(bspTree);
         averageBrain.idlePathFinder = null;
-        averageBrain.chasePathFinder =
-            new AStarSearchWithBSP(bspTree);
+        averageBrain.chasePathFinder = chasePathFinder;
         averageBrain.runAwayPathFinder =
             new RunAwayPattern(bspTree);
 
@@ -54,8 +56,7 @@ public class AIBotTest extends PathFindingTest {
         aggressiveBrain.dodgePathFinder =
             new DodgePatternZigZag(bspTree);
         aggressiveBrain.idlePathFinder = null;
-        aggressiveBrain.chasePathFinder =
-            new AStarSearchWithBSP(bspTree);
+        aggressiveBrain.chasePathFinder = chasePathFinder;
         aggressiveBrain.runAwayPathFinder = null;
 
         aggressiveBrain.attackProbability = 0.8f;
@@ -76,8 +77,7 @@ public class AIBotTest extends PathFindingTest {
         scaredBrain.dodgePathFinder =
             new DodgePatternZigZag(bspTree);
         scaredBrain.idlePathFinder = null;
-        scaredBrain.chasePathFinder =
-            new AStarSearchWithBSP(bspTree);
+        scaredBrain.chasePathFinder = chasePathFinder;
         scaredBrain.runAwayPathFinder =
             new RunAwayPattern(bspTree);
 
@@ -114,16 +114,19 @@ public class AIBotTest extends PathFindingTest {
             else if ("averagebot.obj".equals(filename)) {
                 AIBot bot = new AIBot(group, collisionDetection,
                     averageBrain, botProjectileModel);
+                bot.setPathRequestService(pathRequestService);
                 gameObjectManager.add(bot);
             }
             else if ("aggressivebot.obj".equals(filename)) {
                 AIBot bot = new AIBot(group, collisionDetection,
                     aggressiveBrain, botProjectileModel);
+                bot.setPathRequestService(pathRequestService);
                 gameObjectManager.add(bot);
             }
             else if ("scaredybot.obj".equals(filename)) {
                 AIBot bot = new AIBot(group, collisionDetection,
                     scaredBrain, botProjectileModel);
+                bot.setPathRequestService(pathRequestService);
                 gameObjectManager.add(bot);
             }
             else {
@@ -50,6 +50,7 @@ public class EvolutionTest extends PathFindingTest {
                     collisionDetection, genePool,
                     botProjectileModel);
                 bot.setRegenerating(true);
+                bot.setPathRequestService(pathRequestService);
                 gameObjectManager.add(bot);
             }
             else {
@@ -17,6 +17,7 @@ public class PathFindingTest extends ShooterCore {
 
     protected BSPTree bspTree;
     protected CollisionDetection collisionDetection;
+    protected PathRequestService pathRequestService;
     protected String mapFile;
 
     public PathFindingTest(String[] args, String defaultMap) {
@@ -29,6 +30,7 @@ public class PathFindingTest extends ShooterCore {
         if (mapFile == null) {
             mapFile = defaultMap;
         }
+        pathRequestService = new PathRequestService(1);
     }
 
     public void createPolygons() {
@@ -81,6 +83,7 @@ public class PathFindingTest extends ShooterCore {
             if ("aggressivebot.obj".equals(filename)) {
                 PathBot bot = new PathBot(group);
                 bot.setPathFinder(pathFinder);
+                bot.setPathRequestService(pathRequestService);
                 gameObjectManager.add(bot);
             }
             else {
@@ -91,6 +94,12 @@ public class PathFindingTest extends ShooterCore {
     }
 
 
+    public void updateWorld(long elapsedTime) {
+        // deliver paths found since the last frame
+        pathRequestService.update(elapsedTime);
+        super.updateWorld(elapsedTime);
+    }
+
 
     public void drawPolygons(Graphics2D g) {
 
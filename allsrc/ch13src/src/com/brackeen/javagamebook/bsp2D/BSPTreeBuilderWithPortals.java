@@ -21,10 +21,31 @@ public class BSPTreeBuilderWithPortals extends BSPTreeBuilder {
     public BSPTree build(List polygons) {
         super.build(polygons);
         findPortalsOfLeaves(currentTree.getRoot());
+        buildNeighborLists(currentTree.getRoot());
         return currentTree;
     }
 
 
+    /**
+        Builds the neighbor lists of all the portals of the
+        leaves of the specified node. The lists are built up
+        front so that path finding searches, which may run on
+        several threads, never modify the portals.
+    */
+    protected void buildNeighborLists(BSPTree.Node node) {
+        if (node instanceof BSPTree.Leaf) {
+            List portals = ((BSPTree.Leaf)node).portals;
+            for (int i=0; i<portals.size(); i++) {
+                ((Portal)portals.get(i)).buildNeighborList();
+            }
+        }
+        else {
+            buildNeighborLists(node.front);
+            buildNeighborLists(node.back);
+        }
+    }
+
+
     /**
         Finds all the portals of the leaves of the specified node.
     */
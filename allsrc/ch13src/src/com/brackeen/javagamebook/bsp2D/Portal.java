@@ -17,7 +17,7 @@ public class Portal extends AStarNode {
     private BSPLine divider;
     private BSPTree.Leaf front;
     private BSPTree.Leaf back;
-    private ArrayList neighbors;
+    private volatile List neighbors;
     private Vector3D midPoint;
 
     /**
@@ -45,47 +45,68 @@ public class Portal extends AStarNode {
     }
 
 
+    /**
+        Gets the leaf in front of this Portal.
+    */
+    public BSPTree.Leaf getFrontLeaf() {
+        return front;
+    }
+
+
+    /**
+        Gets the leaf in back of this Portal.
+    */
+    public BSPTree.Leaf getBackLeaf() {
+        return back;
+    }
+
+
     /**
         Builds the list of neighbors for the AStarNode
         representation. The neighbors are the portals of the
         front and back leaves, not including this portal.
+        The list is read-only, so it can be safely shared by
+        searches running on different threads.
     */
     public void buildNeighborList() {
-        neighbors = new ArrayList();
+        ArrayList list = new ArrayList();
         if (front != null) {
-            neighbors.addAll(front.portals);
+            list.addAll(front.portals);
         }
         if (back != null) {
-            neighbors.addAll(back.portals);
+            list.addAll(back.portals);
         }
 
-        // trim to size, then remove references to this node.
-        // (ensures extra capacity for calls to addNeighbor()
-        // without enlarging the array capacity)
-        neighbors.trimToSize();
-        while (neighbors.remove(this));
+        // remove references to this node.
+        while (list.remove(this));
+        list.trimToSize();
+        neighbors = Collections.unmodifiableList(list);
     }
 
 
     /**
-        Adds a neighbor node to the list of neighbors.
+        Adds a neighbor node to the list of neighbors. The list
+        is copied rather than modified, so searches already using
+        the old list aren't affected. Searches that need a
+        temporary neighbor should use
+        AStarSearchContext.addGoalLink() instead.
     */
     public void addNeighbor(AStarNode node) {
-        if (neighbors == null) {
-            buildNeighborList();
-        }
-        neighbors.add(node);
+        ArrayList list = new ArrayList(getNeighbors());
+        list.add(node);
+        neighbors = Collections.unmodifiableList(list);
     }
 
 
     /**
-        Removes a neighbor node to the list of neighbors.
+        Removes a neighbor node to the list of neighbors. The
+        list is copied rather than modified, so searches already
+        using the old list aren't affected.
     */
     public void removeNeighbor(AStarNode node) {
-        if (neighbors == null) {
-            buildNeighborList();
-        }
-        neighbors.remove(node);
+        ArrayList list = new ArrayList(getNeighbors());
+        list.remove(node);
+        neighbors = Collections.unmodifiableList(list);
     }
 
     // AStarNode methods
@@ -109,10 +130,12 @@ public class Portal extends AStarNode {
 
 
     public List getNeighbors() {
-        if (neighbors == null) {
+        List list = neighbors;
+        if (list == null) {
             buildNeighborList();
+            list = neighbors;
         }
-        return neighbors;
+        return list;
     }
 
 }
\ No newline at end of file
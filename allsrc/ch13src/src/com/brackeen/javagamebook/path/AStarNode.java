@@ -1,32 +1,16 @@
 package com.brackeen.javagamebook.path;
 
 import java.util.List;
-import com.brackeen.javagamebook.util.MoreMath;
 
 /**
     The AStarNode class, along with the AStarSearch class,
     implements a generic A* search algorthim. The AStarNode
     class should be subclassed to provide searching capability.
+    <p>An AStarNode doesn't hold any search state (that's kept
+    in an AStarSearchContext), so a graph of AStarNodes can be
+    shared between searches running on different threads.
 */
-public abstract class AStarNode implements Comparable {
-
-    AStarNode pathParent;
-    float costFromStart;
-    float estimatedCostToGoal;
-
-
-    public float getCost() {
-        return costFromStart + estimatedCostToGoal;
-    }
-
-
-    public int compareTo(Object other) {
-        float otherValue = ((AStarNode)other).getCost();
-        float thisValue = this.getCost();
-
-        return MoreMath.sign(thisValue - otherValue);
-    }
-
+public abstract class AStarNode {
 
     /**
         Gets the cost between this node and the specified
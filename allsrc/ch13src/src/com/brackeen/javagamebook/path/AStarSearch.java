@@ -6,6 +6,9 @@ import java.util.*;
     The AStarSearch class, along with the AStarNode class,
     implements a generic A* search algorthim. The AStarNode
     class should be subclassed to provide searching capability.
+    <p>All the state of a search is kept in an
+    AStarSearchContext, so the same graph of AStarNodes can be
+    searched by several threads at once.
 */
 public class AStarSearch {
 
@@ -30,13 +33,54 @@ public class AStarSearch {
     }
 
 
+    /**
+        The search context used by the current thread when no
+        context is given to findPath().
+    */
+    private static final ThreadLocal threadContext =
+        new ThreadLocal()
+    {
+        protected Object initialValue() {
+            return new AStarSearchContext();
+        }
+    };
+
+
+    /**
+        Gets a search context for use by the current thread.
+        The context must be returned with releaseContext().
+        Normally the context is reused between searches, but if
+        the thread's context is already in use (that is, a search
+        was started while another search was running) a new
+        context is created.
+    */
+    protected AStarSearchContext acquireContext() {
+        AStarSearchContext context =
+            (AStarSearchContext)threadContext.get();
+        if (!context.acquire()) {
+            context = new AStarSearchContext();
+            context.acquire();
+        }
+        return context;
+    }
+
+
+    /**
+        Releases a context that was acquired with
+        acquireContext().
+    */
+    protected void releaseContext(AStarSearchContext context) {
+        context.release();
+    }
+
+
     /**
         Construct the path, not including the start node.
     */
-    protected List constructPath(AStarNode node) {
+    protected List constructPath(AStarSearchContext.SearchNode node) {
         LinkedList path = new LinkedList();
         while (node.pathParent != null) {
-            path.addFirst(node);
+            path.addFirst(node.node);
             node = node.pathParent;
         }
         return path;
@@ -46,60 +90,98 @@ public class AStarSearch {
     /**
         Find the path from the start node to the end node. A list
         of AStarNodes is returned, or null if the path is not
-        found.
+        found. This method is thread-safe as long as the
+        AStarNodes aren't modified during the search.
     */
     public List findPath(AStarNode startNode, AStarNode goalNode) {
+        AStarSearchContext context = acquireContext();
+        try {
+            return findPath(startNode, goalNode, context);
+        }
+        finally {
+            releaseContext(context);
+        }
+    }
 
-        PriorityList openList = new PriorityList();
-        LinkedList closedList = new LinkedList();
 
-        startNode.costFromStart = 0;
-        startNode.estimatedCostToGoal =
+    /**
+        Find the path from the start node to the end node, using
+        the specified context for all the search state. A list
+        of AStarNodes is returned, or null if the path is not
+        found. The context is not reset after the search, so
+        virtual goal links added before the search are used,
+        and the context should be reset before it is used again.
+    */
+    public List findPath(AStarNode startNode, AStarNode goalNode,
+        AStarSearchContext context)
+    {
+        AStarSearchContext.OpenList openList =
+            context.getOpenList();
+
+        AStarSearchContext.SearchNode start =
+            context.getSearchNode(startNode);
+        start.costFromStart = 0;
+        start.estimatedCostToGoal =
             startNode.getEstimatedCost(goalNode);
-        startNode.pathParent = null;
-        openList.add(startNode);
+        start.pathParent = null;
+        openList.add(start);
 
         while (!openList.isEmpty()) {
-            AStarNode node = (AStarNode)openList.removeFirst();
-            if (node == goalNode) {
+            AStarSearchContext.SearchNode node =
+                openList.removeFirst();
+            if (node.node == goalNode) {
                 // construct the path from start to goal
-                return constructPath(goalNode);
+                return constructPath(node);
             }
 
-            List neighbors = node.getNeighbors();
+            List neighbors = node.node.getNeighbors();
             for (int i=0; i<neighbors.size(); i++) {
-                AStarNode neighborNode =
-                    (AStarNode)neighbors.get(i);
-                boolean isOpen = openList.contains(neighborNode);
-                boolean isClosed =
-                    closedList.contains(neighborNode);
-                float costFromStart = node.costFromStart +
-                    node.getCost(neighborNode);
-
-                // check if the neighbor node has not been
-                // traversed or if a shorter path to this
-                // neighbor node is  found.
-                if ((!isOpen && !isClosed) ||
-                    costFromStart < neighborNode.costFromStart)
-                {
-                    neighborNode.pathParent = node;
-                    neighborNode.costFromStart = costFromStart;
-                    neighborNode.estimatedCostToGoal =
-                        neighborNode.getEstimatedCost(goalNode);
-                    if (isClosed) {
-                        closedList.remove(neighborNode);
-                    }
-                    if (!isOpen) {
-                        openList.add(neighborNode);
-                    }
-                }
+                visit(context, node,
+                    (AStarNode)neighbors.get(i), goalNode);
+            }
+            if (node.linkedToGoal) {
+                visit(context, node, goalNode, goalNode);
             }
-            closedList.add(node);
         }
 
         // no path found
         return null;
     }
 
+
+    /**
+        Visits a neighbor of the specified node, opening it if
+        it has not been traversed or if a shorter path to it is
+        found.
+    */
+    private void visit(AStarSearchContext context,
+        AStarSearchContext.SearchNode node, AStarNode neighborNode,
+        AStarNode goalNode)
+    {
+        AStarSearchContext.SearchNode neighbor =
+            context.getSearchNode(neighborNode);
+        float costFromStart = node.costFromStart +
+            node.node.getCost(neighborNode);
+
+        if (costFromStart >= neighbor.costFromStart) {
+            // no shorter path to this neighbor node
+            return;
+        }
+        if (!neighbor.isReached()) {
+            neighbor.estimatedCostToGoal =
+                neighborNode.getEstimatedCost(goalNode);
+        }
+
+        neighbor.pathParent = node;
+        neighbor.costFromStart = costFromStart;
+        if (neighbor.isOpen()) {
+            context.getOpenList().decreaseKey(neighbor);
+        }
+        else {
+            // new node, or a closed node that is re-opened
+            context.getOpenList().add(neighbor);
+        }
+    }
+
 }
 
@@ -0,0 +1,267 @@
+package com.brackeen.javagamebook.path;
+
+import java.util.*;
+
+/**
+    An AStarSearchContext owns all the scratch state of an A*
+    search: the open list, the per-node costs and path parents,
+    and any "virtual" edges to the goal node. Because none of
+    this state is stored in the AStarNodes themselves, several
+    searches can run at the same time (on different threads)
+    over the same graph of AStarNodes, as long as each search
+    uses its own context.
+    <p>A context can be reused for many searches, which avoids
+    allocating new search state for every search. A context
+    is not thread-safe; use one context per thread.
+*/
+public class AStarSearchContext {
+
+    /**
+        The search state of an AStarNode. Nodes that haven't
+        been reached yet have a costFromStart of Float.MAX_VALUE.
+    */
+    static class SearchNode {
+        AStarNode node;
+        SearchNode pathParent;
+        float costFromStart;
+        float estimatedCostToGoal;
+        int heapIndex;
+        boolean linkedToGoal;
+
+        void init(AStarNode node) {
+            this.node = node;
+            pathParent = null;
+            costFromStart = Float.MAX_VALUE;
+            estimatedCostToGoal = 0;
+            heapIndex = -1;
+            linkedToGoal = false;
+        }
+
+        float getCost() {
+            return costFromStart + estimatedCostToGoal;
+        }
+
+        boolean isOpen() {
+            return (heapIndex != -1);
+        }
+
+        boolean isReached() {
+            return (costFromStart != Float.MAX_VALUE);
+        }
+    }
+
+
+    /**
+        An indexed binary heap of SearchNodes, ordered by
+        total cost (lowest cost first). Each SearchNode knows its
+        index in the heap, so membership checks are O(1) and
+        a node whose cost decreases can be moved up the heap
+        in O(log n) time (decrease-key).
+    */
+    static class OpenList {
+
+        private SearchNode[] heap = new SearchNode[64];
+        private int size;
+
+        public boolean isEmpty() {
+            return (size == 0);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+            Adds a SearchNode to this heap.
+        */
+        public void add(SearchNode node) {
+            if (size == heap.length) {
+                SearchNode[] newHeap = new SearchNode[size * 2];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+            heap[size] = node;
+            node.heapIndex = size;
+            size++;
+            siftUp(node.heapIndex);
+        }
+
+        /**
+            Removes and returns the lowest-cost SearchNode.
+        */
+        public SearchNode removeFirst() {
+            SearchNode first = heap[0];
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                heap[0].heapIndex = 0;
+                siftDown(0);
+            }
+            heap[size] = null;
+            first.heapIndex = -1;
+            return first;
+        }
+
+        /**
+            Notifies this heap that the cost of the specified
+            SearchNode (which is in this heap) has decreased.
+        */
+        public void decreaseKey(SearchNode node) {
+            siftUp(node.heapIndex);
+        }
+
+        /**
+            Removes all SearchNodes from this heap.
+        */
+        public void clear() {
+            for (int i=0; i<size; i++) {
+                heap[i].heapIndex = -1;
+                heap[i] = null;
+            }
+            size = 0;
+        }
+
+        private void siftUp(int index) {
+            SearchNode node = heap[index];
+            float cost = node.getCost();
+            while (index > 0) {
+                int parent = (index - 1) >> 1;
+                if (heap[parent].getCost() <= cost) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                heap[index].heapIndex = index;
+                index = parent;
+            }
+            heap[index] = node;
+            node.heapIndex = index;
+        }
+
+        private void siftDown(int index) {
+            SearchNode node = heap[index];
+            float cost = node.getCost();
+            int half = size >> 1;
+            while (index < half) {
+                int child = (index << 1) + 1;
+                int right = child + 1;
+                if (right < size &&
+                    heap[right].getCost() < heap[child].getCost())
+                {
+                    child = right;
+                }
+                if (cost <= heap[child].getCost()) {
+                    break;
+                }
+                heap[index] = heap[child];
+                heap[index].heapIndex = index;
+                index = child;
+            }
+            heap[index] = node;
+            node.heapIndex = index;
+        }
+    }
+
+
+    private IdentityHashMap searchNodes;
+    private OpenList openList;
+    private ArrayList searchNodePool;
+    private int searchNodePoolSize;
+    private boolean inUse;
+
+
+    /**
+        Creates a new, empty AStarSearchContext.
+    */
+    public AStarSearchContext() {
+        searchNodes = new IdentityHashMap();
+        openList = new OpenList();
+        searchNodePool = new ArrayList();
+    }
+
+
+    /**
+        Adds a virtual edge from the specified node to the goal
+        node of the next search. The search treats the goal as
+        a neighbor of the node, without the node's neighbor
+        list being modified. Call this method before the search
+        starts.
+    */
+    public void addGoalLink(AStarNode node) {
+        getSearchNode(node).linkedToGoal = true;
+    }
+
+
+    /**
+        Clears all the search state, so this context can be
+        used for another search.
+    */
+    public void reset() {
+        openList.clear();
+        searchNodes.clear();
+        for (int i=0; i<searchNodePoolSize; i++) {
+            ((SearchNode)searchNodePool.get(i)).init(null);
+        }
+        searchNodePoolSize = 0;
+    }
+
+
+    /**
+        Gets the number of nodes reached in the current (or
+        last) search.
+    */
+    public int getNumNodesReached() {
+        return searchNodes.size();
+    }
+
+
+    /**
+        Gets the SearchNode for the specified AStarNode,
+        creating it (or taking it from the pool) if it doesn't
+        exist yet.
+    */
+    SearchNode getSearchNode(AStarNode node) {
+        SearchNode searchNode = (SearchNode)searchNodes.get(node);
+        if (searchNode == null) {
+            if (searchNodePoolSize < searchNodePool.size()) {
+                searchNode = (SearchNode)
+                    searchNodePool.get(searchNodePoolSize);
+            }
+            else {
+                searchNode = new SearchNode();
+                searchNodePool.add(searchNode);
+            }
+            searchNodePoolSize++;
+            searchNode.init(node);
+            searchNodes.put(node, searchNode);
+        }
+        return searchNode;
+    }
+
+
+    OpenList getOpenList() {
+        return openList;
+    }
+
+
+    /**
+        Marks this context as in use by a search. Returns false
+        if the context was already in use (for example, by a
+        search that started another search).
+    */
+    boolean acquire() {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        return true;
+    }
+
+
+    /**
+        Resets this context and marks it as no longer in use.
+    */
+    void release() {
+        reset();
+        inUse = false;
+    }
+}
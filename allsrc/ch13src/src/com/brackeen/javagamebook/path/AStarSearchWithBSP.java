@@ -9,6 +9,13 @@ import com.brackeen.javagamebook.bsp2D.Portal;
 /**
     The AStarSearchWithBSP class is a PathFinder that finds
     a path in a BSP tree using an A* search algorithm.
+    The BSP tree and its portals aren't modified during a
+    search, so find() can be called from several threads at
+    once.
+    <p>The sequence of portals between each pair of start and
+    goal leaves is kept in a least-recently-used cache, so
+    repeated finds between the same leaves don't need another
+    A* search.
 */
 public class AStarSearchWithBSP extends AStarSearch
     implements PathFinder
@@ -55,7 +62,59 @@ public class AStarSearchWithBSP extends AStarSearch
         }
     }
 
-    private BSPTree bspTree;
+    /**
+        Key for the path cache: a start leaf and a goal leaf.
+    */
+    private static class LeafPair {
+        private BSPTree.Leaf start;
+        private BSPTree.Leaf goal;
+
+        public LeafPair(BSPTree.Leaf start, BSPTree.Leaf goal) {
+            this.start = start;
+            this.goal = goal;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LeafPair)) {
+                return false;
+            }
+            LeafPair other = (LeafPair)obj;
+            return (start == other.start && goal == other.goal);
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(start) * 31 +
+                System.identityHashCode(goal);
+        }
+    }
+
+
+    /**
+        A least-recently-used map of LeafPairs to the sequence
+        of Portals between them (a Portal[] array, or NO_PATH).
+    */
+    private static class PathCache extends LinkedHashMap {
+        private static final long serialVersionUID = 1L;
+
+        private int maxSize;
+
+        public PathCache(int maxSize) {
+            super(16, .75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return (size() > maxSize);
+        }
+    }
+
+    private static final int DEFAULT_PATH_CACHE_SIZE = 256;
+    private static final Portal[] NO_PATH = new Portal[0];
+
+    private volatile BSPTree bspTree;
+    private PathCache pathCache;
+    private int cacheHits;
+    private int cacheMisses;
 
 
     /**
@@ -63,11 +122,65 @@ public class AStarSearchWithBSP extends AStarSearch
         BSP tree.
     */
     public AStarSearchWithBSP(BSPTree bspTree) {
+        setPathCacheSize(DEFAULT_PATH_CACHE_SIZE);
         setBSPTree(bspTree);
     }
 
-    public void setBSPTree(BSPTree bspTree) {
+
+    /**
+        Sets the BSP tree to search. The path cache is cleared.
+    */
+    public synchronized void setBSPTree(BSPTree bspTree) {
         this.bspTree = bspTree;
+        pathCache.clear();
+    }
+
+    public BSPTree getBSPTree() {
+        return bspTree;
+    }
+
+
+    /**
+        Sets the maximum number of leaf-to-leaf paths to keep in
+        the path cache. A size of 0 disables the cache. The cache
+        is cleared.
+    */
+    public synchronized void setPathCacheSize(int size) {
+        pathCache = new PathCache(size);
+    }
+
+
+    /**
+        Clears the path cache. Call this method if the portals
+        of the BSP tree change.
+    */
+    public synchronized void clearPathCache() {
+        pathCache.clear();
+    }
+
+
+    /**
+        Gets the number of finds that used a cached path.
+    */
+    public synchronized int getCacheHits() {
+        return cacheHits;
+    }
+
+
+    /**
+        Gets the number of finds that needed an A* search
+        because the path wasn't cached.
+    */
+    public synchronized int getCacheMisses() {
+        return cacheMisses;
+    }
+
+
+    /**
+        Gets the number of paths currently in the path cache.
+    */
+    public synchronized int getCacheSize() {
+        return pathCache.size();
     }
 
 
@@ -78,6 +191,7 @@ public class AStarSearchWithBSP extends AStarSearch
 
     public Iterator find(Vector3D start, Vector3D goal) {
 
+        BSPTree bspTree = this.bspTree;
         BSPTree.Leaf startLeaf = bspTree.getLeaf(start.x, start.z);
         BSPTree.Leaf goalLeaf = bspTree.getLeaf(goal.x, goal.z);
 
@@ -87,48 +201,99 @@ public class AStarSearchWithBSP extends AStarSearch
             return Collections.singleton(goal).iterator();
         }
 
-        AStarNode startNode = new LeafNode(startLeaf, start);
-        AStarNode goalNode = new LeafNode(goalLeaf, goal);
+        // check the cache for the portals between the leaves
+        LeafPair key = new LeafPair(startLeaf, goalLeaf);
+        Portal[] portals = getCachedPortals(key);
+        if (portals == null) {
+            portals = findPortals(startLeaf, start, goalLeaf, goal);
+            cachePortals(bspTree, key, portals);
+        }
+
+        if (portals == NO_PATH) {
+            return null;
+        }
 
-        // temporarily add the goalNode we just created to
-        // the neighbors list
-        List goalNeighbors = goalNode.getNeighbors();
-        for (int i=0; i<goalNeighbors.size(); i++) {
-            Portal portal = (Portal)goalNeighbors.get(i);
-            portal.addNeighbor(goalNode);
+        // the start and goal are in convex leaves, so the path
+        // goes straight from the start to the first portal, and
+        // from the last portal to the goal.
+        List path = new ArrayList(portals.length + 1);
+        for (int i=0; i<portals.length; i++) {
+            path.add(portals[i].getMidPoint());
         }
+        path.add(goal);
+        return Collections.unmodifiableList(path).iterator();
+    }
 
-        // do A* search
-        List path = super.findPath(startNode, goalNode);
 
-        // remove the goal node from the neighbors list
-        for (int i=0; i<goalNeighbors.size(); i++) {
-            Portal portal = (Portal)goalNeighbors.get(i);
-            portal.removeNeighbor(goalNode);
+    /**
+        Gets the cached Portals for the specified LeafPair, or
+        null if the path isn't cached.
+    */
+    private synchronized Portal[] getCachedPortals(LeafPair key) {
+        Portal[] portals = (Portal[])pathCache.get(key);
+        if (portals != null) {
+            cacheHits++;
+        }
+        else {
+            cacheMisses++;
         }
+        return portals;
+    }
+
 
-        return convertPath(path);
+    /**
+        Adds Portals found in the specified BSP tree to the path
+        cache, unless the BSP tree was changed during the search.
+    */
+    private synchronized void cachePortals(BSPTree bspTree,
+        LeafPair key, Portal[] portals)
+    {
+        if (bspTree == this.bspTree) {
+            pathCache.put(key, portals);
+        }
     }
 
 
     /**
-        Converts path of AStarNodes to a path of Vector3D
-        locations.
+        Does an A* search between the specified locations and
+        returns the sequence of Portals between the start leaf
+        and the goal leaf, or NO_PATH if there is no path.
     */
-    protected Iterator convertPath(List path) {
+    protected Portal[] findPortals(BSPTree.Leaf startLeaf,
+        Vector3D start, BSPTree.Leaf goalLeaf, Vector3D goal)
+    {
+        AStarNode startNode = new LeafNode(startLeaf, start);
+        AStarNode goalNode = new LeafNode(goalLeaf, goal);
+
+        // link the goal leaf's portals to the goalNode in the
+        // search context, rather than adding the goalNode to the
+        // portals' neighbor lists (which are shared by all
+        // searches)
+        AStarSearchContext context = acquireContext();
+        List path;
+        try {
+            List goalNeighbors = goalNode.getNeighbors();
+            for (int i=0; i<goalNeighbors.size(); i++) {
+                context.addGoalLink((AStarNode)goalNeighbors.get(i));
+            }
+
+            // do A* search
+            path = super.findPath(startNode, goalNode, context);
+        }
+        finally {
+            releaseContext(context);
+        }
+
         if (path == null) {
-            return null;
+            return NO_PATH;
         }
-        for (int i=0; i<path.size(); i++) {
-            Object node = path.get(i);
-            if (node instanceof Portal) {
-                path.set(i, ((Portal)node).getMidPoint());
-            }
-            else {
-                path.set(i, ((LeafNode)node).location);
-            }
+
+        // the last node is the goalNode
+        Portal[] portals = new Portal[path.size() - 1];
+        for (int i=0; i<portals.length; i++) {
+            portals[i] = (Portal)path.get(i);
         }
-        return Collections.unmodifiableList(path).iterator();
+        return portals;
     }
 
     public String toString() {
@@ -0,0 +1,379 @@
+package com.brackeen.javagamebook.path;
+
+import java.util.*;
+import com.brackeen.javagamebook.game.GameObject;
+import com.brackeen.javagamebook.math3D.Vector3D;
+import com.brackeen.javagamebook.bsp2D.BSPTree;
+import com.brackeen.javagamebook.bsp2D.Portal;
+
+/**
+    The FlowFieldPathFinder is a PathFinder for many bots
+    chasing the same goal (usually the player). Instead of doing
+    an A* search for every bot, it does one reverse search
+    (Dijkstra's algorithm) from the goal's leaf over the portal
+    graph, giving every portal the next portal to go to on the
+    shortest path to the goal. A path is then just a series of
+    lookups in this "flow field".
+    <p>The flow field is only rebuilt when the goal moves to a
+    different leaf. The rebuild isn't incremental: every cost
+    in the field is a distance to the goal, so moving the goal
+    to another leaf changes the cost of almost every portal,
+    and the whole portal graph is searched again. Instead, each
+    rebuild reuses the search state and field entries of the
+    last one, so rebuilding allocates nothing once the field
+    has reached every portal.
+    <p>Paths returned by find() are followed lazily:
+    each call to next() looks up the next portal in the latest
+    flow field, so a bot following a path keeps following the
+    goal even after the goal moves to another leaf.
+*/
+public class FlowFieldPathFinder implements PathFinder {
+
+    /**
+        The flow field for the current goal leaf. Entries are
+        kept from build to build and reused; an entry is only
+        part of the field if it was set by the latest build.
+    */
+    private static class Field {
+        BSPTree.Leaf goalLeaf;
+        int buildId;
+
+        // map of Portals to FieldEntries
+        IdentityHashMap entries = new IdentityHashMap();
+
+        /**
+            Gets the entry for a portal, or null if the portal
+            wasn't reached by the latest build.
+        */
+        FieldEntry getEntry(Portal portal) {
+            FieldEntry entry = (FieldEntry)entries.get(portal);
+            if (entry == null || entry.buildId != buildId) {
+                return null;
+            }
+            return entry;
+        }
+
+        /**
+            Gets the entry for a portal for the latest build,
+            reusing the portal's entry from an older build if
+            there is one.
+        */
+        FieldEntry setEntry(Portal portal) {
+            FieldEntry entry = (FieldEntry)entries.get(portal);
+            if (entry == null) {
+                entry = new FieldEntry();
+                entries.put(portal, entry);
+            }
+            entry.buildId = buildId;
+            return entry;
+        }
+    }
+
+
+    /**
+        The next portal to go to, and the cost to get to the
+        goal. The next portal is null if the goal can be reached
+        directly.
+    */
+    private static class FieldEntry {
+        Portal next;
+        float cost;
+        int buildId;
+    }
+
+
+    /**
+        Iterator for a path through the flow field.
+    */
+    private class FlowIterator implements Iterator {
+
+        private BSPTree.Leaf startLeaf;
+        private Vector3D start;
+        private Vector3D goal;
+        private Portal current;
+        private boolean isDone;
+
+        public FlowIterator(BSPTree.Leaf startLeaf, Vector3D start,
+            Vector3D goal)
+        {
+            this.startLeaf = startLeaf;
+            this.start = start;
+            this.goal = goal;
+        }
+
+        public boolean hasNext() {
+            return !isDone;
+        }
+
+        public Object next() {
+            if (isDone) {
+                throw new NoSuchElementException();
+            }
+            Portal next = getNextPortal(goal, startLeaf, start,
+                current);
+
+            if (next == null) {
+                // at the goal leaf (or the goal can't be reached
+                // anymore): go to the goal
+                isDone = true;
+                return goal;
+            }
+            current = next;
+            return current.getMidPoint();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    private BSPTree bspTree;
+
+    // map of Portals to Lists of Portals that have the key
+    // Portal as a neighbor
+    private IdentityHashMap reverseNeighbors;
+    private Field field;
+    private AStarSearchContext context;
+    private int numRebuilds;
+
+
+    /**
+        Creates a new FlowFieldPathFinder for the specified
+        BSP tree.
+    */
+    public FlowFieldPathFinder(BSPTree bspTree) {
+        context = new AStarSearchContext();
+        setBSPTree(bspTree);
+    }
+
+
+    /**
+        Sets the BSP tree to search. The flow field is rebuilt
+        on the next find().
+    */
+    public synchronized void setBSPTree(BSPTree bspTree) {
+        this.bspTree = bspTree;
+        reverseNeighbors = new IdentityHashMap();
+        addReverseNeighbors(bspTree.getRoot(), new IdentityHashMap());
+        field = null;
+    }
+
+
+    public synchronized BSPTree getBSPTree() {
+        return bspTree;
+    }
+
+
+    /**
+        Gets the number of times the flow field was built.
+    */
+    public synchronized int getNumRebuilds() {
+        return numRebuilds;
+    }
+
+
+    public Iterator find(GameObject a, GameObject b) {
+        // use the location object of B, so the path follows B
+        // as it moves
+        return find(a.getLocation(), b.getLocation());
+    }
+
+
+    public synchronized Iterator find(Vector3D start, Vector3D goal) {
+        BSPTree.Leaf startLeaf = bspTree.getLeaf(start.x, start.z);
+        Field field = getField(goal);
+        if (field == null || startLeaf == null) {
+            return null;
+        }
+        if (startLeaf != field.goalLeaf &&
+            getFirstPortal(field, startLeaf, start) == null)
+        {
+            // no path
+            return null;
+        }
+        return new FlowIterator(startLeaf, new Vector3D(start), goal);
+    }
+
+
+    /**
+        Gets the flow field for the leaf the goal is in,
+        rebuilding it if the goal moved to a different leaf.
+        Returns null if the goal isn't in a leaf.
+    */
+    private synchronized Field getField(Vector3D goal) {
+        BSPTree.Leaf goalLeaf = bspTree.getLeaf(goal.x, goal.z);
+        if (goalLeaf == null || goalLeaf.portals == null) {
+            return null;
+        }
+        if (field == null) {
+            field = new Field();
+        }
+        if (field.goalLeaf != goalLeaf) {
+            buildField(goalLeaf, goal);
+            numRebuilds++;
+        }
+        return field;
+    }
+
+
+    /**
+        Gets the next portal a path should go to: the first
+        portal from the start location if current is null, or
+        else the portal after the current portal. Returns null
+        if the path should go straight to the goal (or the goal
+        can't be reached anymore). The field is rebuilt in
+        place, so it's only read while synchronized.
+    */
+    private synchronized Portal getNextPortal(Vector3D goal,
+        BSPTree.Leaf startLeaf, Vector3D start, Portal current)
+    {
+        Field field = getField(goal);
+        if (field == null) {
+            return null;
+        }
+        else if (current == null) {
+            return (field.goalLeaf == startLeaf) ? null :
+                getFirstPortal(field, startLeaf, start);
+        }
+        else {
+            FieldEntry entry = field.getEntry(current);
+            return (entry == null) ? null : entry.next;
+        }
+    }
+
+
+    /**
+        Gets the best portal to go to first from a location in
+        the specified leaf, or null if the goal can't be
+        reached from the leaf.
+    */
+    private Portal getFirstPortal(Field field, BSPTree.Leaf leaf,
+        Vector3D location)
+    {
+        Portal best = null;
+        float bestCost = Float.MAX_VALUE;
+        for (int i=0; i<leaf.portals.size(); i++) {
+            Portal portal = (Portal)leaf.portals.get(i);
+            FieldEntry entry = field.getEntry(portal);
+            if (entry != null) {
+                float cost = entry.cost +
+                    distance(location, portal.getMidPoint());
+                if (cost < bestCost) {
+                    best = portal;
+                    bestCost = cost;
+                }
+            }
+        }
+        return best;
+    }
+
+
+    /**
+        Rebuilds the flow field for the specified goal leaf
+        using Dijkstra's algorithm, searching backwards from the
+        portals of the goal leaf.
+    */
+    private void buildField(BSPTree.Leaf goalLeaf, Vector3D goal) {
+        field.goalLeaf = goalLeaf;
+        field.buildId++;
+
+        // A Dijkstra search is an A* search with no estimated
+        // cost, so the A* search state and open list are reused.
+        context.reset();
+        AStarSearchContext.OpenList openList = context.getOpenList();
+        for (int i=0; i<goalLeaf.portals.size(); i++) {
+            Portal portal = (Portal)goalLeaf.portals.get(i);
+            AStarSearchContext.SearchNode node =
+                context.getSearchNode(portal);
+            node.costFromStart =
+                distance(portal.getMidPoint(), goal);
+            openList.add(node);
+        }
+
+        while (!openList.isEmpty()) {
+            AStarSearchContext.SearchNode node = openList.removeFirst();
+            Portal portal = (Portal)node.node;
+            FieldEntry entry = field.setEntry(portal);
+            entry.cost = node.costFromStart;
+            entry.next = (node.pathParent == null) ? null :
+                (Portal)node.pathParent.node;
+
+            List previous = (List)reverseNeighbors.get(portal);
+            if (previous == null) {
+                continue;
+            }
+            for (int i=0; i<previous.size(); i++) {
+                Portal prevPortal = (Portal)previous.get(i);
+                AStarSearchContext.SearchNode prevNode =
+                    context.getSearchNode(prevPortal);
+                float cost = node.costFromStart + distance(
+                    portal.getMidPoint(), prevPortal.getMidPoint());
+                if (cost < prevNode.costFromStart) {
+                    prevNode.costFromStart = cost;
+                    prevNode.pathParent = node;
+                    if (prevNode.isOpen()) {
+                        openList.decreaseKey(prevNode);
+                    }
+                    else {
+                        openList.add(prevNode);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Finds the portals of all the leaves under the specified
+        node, and adds each portal to the reverse neighbor lists
+        of its neighbors. A portal can be listed by both leaves
+        it joins, so portals already in the visited map are
+        skipped, and each reverse edge is only added once.
+    */
+    private void addReverseNeighbors(BSPTree.Node node,
+        IdentityHashMap visited)
+    {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof BSPTree.Leaf) {
+            List portals = ((BSPTree.Leaf)node).portals;
+            if (portals == null) {
+                return;
+            }
+            for (int i=0; i<portals.size(); i++) {
+                Portal portal = (Portal)portals.get(i);
+                if (visited.put(portal, portal) != null) {
+                    continue;
+                }
+                List neighbors = portal.getNeighbors();
+                for (int j=0; j<neighbors.size(); j++) {
+                    Object neighbor = neighbors.get(j);
+                    List list = (List)reverseNeighbors.get(neighbor);
+                    if (list == null) {
+                        list = new ArrayList();
+                        reverseNeighbors.put(neighbor, list);
+                    }
+                    list.add(portal);
+                }
+            }
+        }
+        else {
+            addReverseNeighbors(node.front, visited);
+            addReverseNeighbors(node.back, visited);
+        }
+    }
+
+
+    private static float distance(Vector3D a, Vector3D b) {
+        float dx = a.x - b.x;
+        float dz = a.z - b.z;
+        return (float)Math.sqrt(dx * dx + dz * dz);
+    }
+
+
+    public String toString() {
+        return "FlowFieldPathFinder";
+    }
+}
@@ -0,0 +1,718 @@
+package com.brackeen.javagamebook.path;
+
+import java.util.*;
+import com.brackeen.javagamebook.game.GameObject;
+import com.brackeen.javagamebook.math3D.Vector3D;
+import com.brackeen.javagamebook.bsp2D.BSPTree;
+import com.brackeen.javagamebook.bsp2D.Portal;
+
+/**
+    The HierarchicalPathFinder is a PathFinder that finds paths
+    in a BSP tree in two levels. When the BSP tree is set, the
+    leaves are grouped into connected clusters, and the portals
+    between clusters ("entrances") are connected by the shortest
+    paths within each cluster. A find() only searches inside the
+    start and goal clusters, then does an A* search over the
+    much smaller graph of entrances. The path within each
+    cluster on the route comes from the paths found when the
+    clusters were built.
+    <p>Paths are usually close to, but not always as short as,
+    the paths found by AStarSearchWithBSP. The clusters aren't
+    modified by find(), so find() can be called from several
+    threads at once.
+*/
+public class HierarchicalPathFinder extends AStarSearch
+    implements PathFinder
+{
+
+    private static final int DEFAULT_MAX_CLUSTER_SIZE = 16;
+
+    /**
+        A group of connected leaves.
+    */
+    private static class Cluster {
+        List leaves = new ArrayList();
+        List entrances = new ArrayList();
+
+        // map of Portals to ClusterPortals for all the portals
+        // of the leaves in this cluster
+        IdentityHashMap clusterPortals = new IdentityHashMap();
+    }
+
+
+    /**
+        An AStarNode for a Portal that only has neighbors inside
+        one cluster. Used to search within a cluster.
+    */
+    private static class ClusterPortal extends AStarNode {
+        Portal portal;
+        List neighbors = new ArrayList();
+
+        public ClusterPortal(Portal portal) {
+            this.portal = portal;
+        }
+
+        public float getCost(AStarNode node) {
+            return getEstimatedCost(node);
+        }
+
+        public float getEstimatedCost(AStarNode node) {
+            return distance(portal.getMidPoint(), getLocation(node));
+        }
+
+        public List getNeighbors() {
+            return neighbors;
+        }
+    }
+
+
+    /**
+        An AStarNode for a location in a leaf of a cluster. Used
+        as the start of a search within a cluster.
+    */
+    private static class ClusterLocation extends AStarNode {
+        Vector3D location;
+        List neighbors;
+
+        public ClusterLocation(Cluster cluster, BSPTree.Leaf leaf,
+            Vector3D location)
+        {
+            this.location = location;
+            neighbors = new ArrayList(leaf.portals.size());
+            for (int i=0; i<leaf.portals.size(); i++) {
+                neighbors.add(cluster.clusterPortals.get(
+                    leaf.portals.get(i)));
+            }
+        }
+
+        public float getCost(AStarNode node) {
+            return getEstimatedCost(node);
+        }
+
+        public float getEstimatedCost(AStarNode node) {
+            return distance(location, getLocation(node));
+        }
+
+        public List getNeighbors() {
+            return neighbors;
+        }
+    }
+
+
+    /**
+        An AStarNode for an entrance between clusters. The
+        neighbors of an entrance are the other entrances of the
+        clusters it connects, and each edge knows the sequence
+        of Portals between the two entrances.
+    */
+    private static class Entrance extends AStarNode {
+        Portal portal;
+        List neighbors = new ArrayList();
+
+        // map of neighbor Entrances to Edges
+        IdentityHashMap edges = new IdentityHashMap();
+
+        public Entrance(Portal portal) {
+            this.portal = portal;
+        }
+
+        public float getCost(AStarNode node) {
+            if (node instanceof Goal) {
+                return ((Goal)node).getEdge(this).cost;
+            }
+            return ((Edge)edges.get(node)).cost;
+        }
+
+        public float getEstimatedCost(AStarNode node) {
+            return distance(portal.getMidPoint(), getLocation(node));
+        }
+
+        public List getNeighbors() {
+            return neighbors;
+        }
+    }
+
+
+    /**
+        An edge in the entrance graph: a cost and the sequence of
+        Portals to follow (not including the start of the edge,
+        but including the end if it is a Portal).
+    */
+    private static class Edge {
+        float cost;
+        Portal[] portals;
+
+        public Edge(float cost, Portal[] portals) {
+            this.cost = cost;
+            this.portals = portals;
+        }
+    }
+
+
+    /**
+        The start node of a search over the entrance graph.
+        Its neighbors are the entrances of the start cluster.
+    */
+    private static class Start extends AStarNode {
+        Vector3D location;
+        List neighbors = new ArrayList();
+        IdentityHashMap edges = new IdentityHashMap();
+
+        public Start(Vector3D location) {
+            this.location = location;
+        }
+
+        public float getCost(AStarNode node) {
+            return ((Edge)edges.get(node)).cost;
+        }
+
+        public float getEstimatedCost(AStarNode node) {
+            return distance(location, getLocation(node));
+        }
+
+        public List getNeighbors() {
+            return neighbors;
+        }
+    }
+
+
+    /**
+        The goal node of a search over the entrance graph. The
+        entrances of the goal cluster link to it.
+    */
+    private static class Goal extends AStarNode {
+        Vector3D location;
+        IdentityHashMap edges = new IdentityHashMap();
+
+        public Goal(Vector3D location) {
+            this.location = location;
+        }
+
+        public Edge getEdge(Entrance entrance) {
+            return (Edge)edges.get(entrance);
+        }
+
+        public float getCost(AStarNode node) {
+            return getEstimatedCost(node);
+        }
+
+        public float getEstimatedCost(AStarNode node) {
+            return distance(location, getLocation(node));
+        }
+
+        public List getNeighbors() {
+            return Collections.EMPTY_LIST;
+        }
+    }
+
+
+    /**
+        The clusters and entrances built for a BSP tree.
+    */
+    private static class ClusterGraph {
+        BSPTree bspTree;
+        List clusters = new ArrayList();
+        IdentityHashMap leafClusters = new IdentityHashMap();
+        IdentityHashMap entrances = new IdentityHashMap();
+    }
+
+
+    private volatile ClusterGraph graph;
+    private int maxClusterSize;
+
+
+    /**
+        Creates a new HierarchicalPathFinder for the specified
+        BSP tree, with the default maximum number of leaves per
+        cluster.
+    */
+    public HierarchicalPathFinder(BSPTree bspTree) {
+        this(bspTree, DEFAULT_MAX_CLUSTER_SIZE);
+    }
+
+
+    /**
+        Creates a new HierarchicalPathFinder for the specified
+        BSP tree, with the specified maximum number of leaves
+        per cluster.
+    */
+    public HierarchicalPathFinder(BSPTree bspTree,
+        int maxClusterSize)
+    {
+        this.maxClusterSize = Math.max(1, maxClusterSize);
+        setBSPTree(bspTree);
+    }
+
+
+    /**
+        Sets the BSP tree to search, and builds the clusters and
+        the entrance graph for it.
+    */
+    public void setBSPTree(BSPTree bspTree) {
+        ClusterGraph newGraph = new ClusterGraph();
+        newGraph.bspTree = bspTree;
+        buildClusters(newGraph);
+        buildEntrances(newGraph);
+        graph = newGraph;
+    }
+
+
+    public BSPTree getBSPTree() {
+        return graph.bspTree;
+    }
+
+
+    /**
+        Gets the number of clusters in the BSP tree.
+    */
+    public int getNumClusters() {
+        return graph.clusters.size();
+    }
+
+
+    /**
+        Gets the number of entrances (portals between
+        clusters) in the BSP tree.
+    */
+    public int getNumEntrances() {
+        return graph.entrances.size();
+    }
+
+
+    public Iterator find(GameObject a, GameObject b) {
+        return find(a.getLocation(), b.getLocation());
+    }
+
+
+    public Iterator find(Vector3D start, Vector3D goal) {
+
+        ClusterGraph graph = this.graph;
+        BSPTree.Leaf startLeaf =
+            graph.bspTree.getLeaf(start.x, start.z);
+        BSPTree.Leaf goalLeaf =
+            graph.bspTree.getLeaf(goal.x, goal.z);
+
+        // if start and goal is in the same leaf, no need to do
+        // A* search
+        if (startLeaf == goalLeaf) {
+            return Collections.singleton(goal).iterator();
+        }
+
+        Cluster startCluster =
+            (Cluster)graph.leafClusters.get(startLeaf);
+        Cluster goalCluster =
+            (Cluster)graph.leafClusters.get(goalLeaf);
+        if (startCluster == null || goalCluster == null) {
+            return null;
+        }
+
+        List portals = new ArrayList();
+
+        if (startCluster == goalCluster) {
+            // clusters are connected, so there's always a path
+            // inside the cluster
+            List path = findPathInCluster(startCluster,
+                new ClusterLocation(startCluster, startLeaf, start),
+                goalLeaf, goal);
+            addPortals(portals, path);
+        }
+        else {
+            Start startNode = new Start(start);
+            Goal goalNode = new Goal(goal);
+            connectStart(startCluster, startLeaf, startNode);
+            connectGoal(goalCluster, goalLeaf, goalNode);
+
+            // search the entrance graph
+            AStarSearchContext context = acquireContext();
+            List path;
+            try {
+                Iterator i = goalNode.edges.keySet().iterator();
+                while (i.hasNext()) {
+                    context.addGoalLink((AStarNode)i.next());
+                }
+                path = findPath(startNode, goalNode, context);
+            }
+            finally {
+                releaseContext(context);
+            }
+            if (path == null) {
+                return null;
+            }
+
+            // refine the path using the edges of the route
+            AStarNode node = startNode;
+            for (int i=0; i<path.size(); i++) {
+                AStarNode next = (AStarNode)path.get(i);
+                Edge edge;
+                if (node == startNode) {
+                    edge = (Edge)startNode.edges.get(next);
+                }
+                else if (next == goalNode) {
+                    edge = goalNode.getEdge((Entrance)node);
+                }
+                else {
+                    edge = (Edge)((Entrance)node).edges.get(next);
+                }
+                portals.addAll(Arrays.asList(edge.portals));
+                node = next;
+            }
+        }
+
+        List path = new ArrayList(portals.size() + 1);
+        for (int i=0; i<portals.size(); i++) {
+            path.add(((Portal)portals.get(i)).getMidPoint());
+        }
+        path.add(goal);
+        return Collections.unmodifiableList(path).iterator();
+    }
+
+
+    /**
+        Links the start node to each entrance of the start
+        cluster, using the shortest path inside the cluster.
+    */
+    private void connectStart(Cluster cluster, BSPTree.Leaf leaf,
+        Start startNode)
+    {
+        ClusterLocation location =
+            new ClusterLocation(cluster, leaf, startNode.location);
+        for (int i=0; i<cluster.entrances.size(); i++) {
+            Entrance entrance = (Entrance)cluster.entrances.get(i);
+            List path = findPath(location,
+                (AStarNode)cluster.clusterPortals.get(entrance.portal));
+            if (path != null) {
+                startNode.neighbors.add(entrance);
+                startNode.edges.put(entrance,
+                    createEdge(location, path, false));
+            }
+        }
+    }
+
+
+    /**
+        Links each entrance of the goal cluster to the goal
+        node, using the shortest path inside the cluster. The
+        paths are found from the goal to each entrance, then
+        reversed.
+    */
+    private void connectGoal(Cluster cluster, BSPTree.Leaf leaf,
+        Goal goalNode)
+    {
+        ClusterLocation location =
+            new ClusterLocation(cluster, leaf, goalNode.location);
+        for (int i=0; i<cluster.entrances.size(); i++) {
+            Entrance entrance = (Entrance)cluster.entrances.get(i);
+            List path = findPath(location,
+                (AStarNode)cluster.clusterPortals.get(entrance.portal));
+            if (path != null) {
+                goalNode.edges.put(entrance,
+                    createEdge(location, path, true));
+            }
+        }
+    }
+
+
+    /**
+        Finds a path inside a cluster from the start node to a
+        location in the specified leaf of the cluster.
+    */
+    private List findPathInCluster(Cluster cluster,
+        AStarNode startNode, BSPTree.Leaf goalLeaf, Vector3D goal)
+    {
+        ClusterLocation goalNode =
+            new ClusterLocation(cluster, goalLeaf, goal);
+        AStarSearchContext context = acquireContext();
+        try {
+            List goalNeighbors = goalNode.getNeighbors();
+            for (int i=0; i<goalNeighbors.size(); i++) {
+                context.addGoalLink((AStarNode)goalNeighbors.get(i));
+            }
+            List path = findPath(startNode, goalNode, context);
+            if (path != null) {
+                // remove the goal location
+                path.remove(path.size() - 1);
+            }
+            return path;
+        }
+        finally {
+            releaseContext(context);
+        }
+    }
+
+
+    /**
+        Creates an Edge from a path of ClusterPortals found from
+        the specified start node. If reverse is true, the edge
+        goes the other way: from the last node of the path back
+        to the start node.
+    */
+    private Edge createEdge(AStarNode startNode, List path,
+        boolean reverse)
+    {
+        float cost = 0;
+        AStarNode node = startNode;
+        for (int i=0; i<path.size(); i++) {
+            AStarNode next = (AStarNode)path.get(i);
+            cost+=node.getCost(next);
+            node = next;
+        }
+
+        Portal[] portals;
+        if (reverse) {
+            // don't include the end of the path (the start of the
+            // reversed edge)
+            portals = new Portal[path.size() - 1];
+            for (int i=0; i<portals.length; i++) {
+                portals[i] = ((ClusterPortal)
+                    path.get(path.size() - 2 - i)).portal;
+            }
+        }
+        else {
+            portals = new Portal[path.size()];
+            for (int i=0; i<portals.length; i++) {
+                portals[i] = ((ClusterPortal)path.get(i)).portal;
+            }
+        }
+        return new Edge(cost, portals);
+    }
+
+
+    /**
+        Adds the Portals of a path of ClusterPortals to the
+        specified list.
+    */
+    private void addPortals(List portals, List path) {
+        for (int i=0; i<path.size(); i++) {
+            portals.add(((ClusterPortal)path.get(i)).portal);
+        }
+    }
+
+
+    /**
+        Groups the leaves of the BSP tree into clusters of
+        connected leaves, using a breadth-first flood fill from
+        each leaf that isn't in a cluster yet.
+    */
+    private void buildClusters(ClusterGraph graph) {
+        List leaves = new ArrayList();
+        findLeaves(graph.bspTree.getRoot(), leaves);
+
+        for (int i=0; i<leaves.size(); i++) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            if (graph.leafClusters.containsKey(leaf)) {
+                continue;
+            }
+            Cluster cluster = new Cluster();
+            graph.clusters.add(cluster);
+
+            LinkedList queue = new LinkedList();
+            queue.add(leaf);
+            graph.leafClusters.put(leaf, cluster);
+            while (!queue.isEmpty() &&
+                cluster.leaves.size() < maxClusterSize)
+            {
+                BSPTree.Leaf next = (BSPTree.Leaf)queue.removeFirst();
+                cluster.leaves.add(next);
+                for (int j=0; j<next.portals.size(); j++) {
+                    BSPTree.Leaf other = getOtherLeaf(
+                        (Portal)next.portals.get(j), next);
+                    if (other != null &&
+                        !graph.leafClusters.containsKey(other))
+                    {
+                        graph.leafClusters.put(other, cluster);
+                        queue.add(other);
+                    }
+                }
+            }
+
+            // leaves queued but not added go back to the pool
+            while (!queue.isEmpty()) {
+                graph.leafClusters.remove(queue.removeFirst());
+            }
+        }
+
+        // create the ClusterPortals of each cluster. A portal
+        // between two clusters gets a ClusterPortal in both.
+        for (int i=0; i<graph.clusters.size(); i++) {
+            Cluster cluster = (Cluster)graph.clusters.get(i);
+            for (int j=0; j<cluster.leaves.size(); j++) {
+                BSPTree.Leaf leaf = (BSPTree.Leaf)cluster.leaves.get(j);
+                for (int k=0; k<leaf.portals.size(); k++) {
+                    Portal portal = (Portal)leaf.portals.get(k);
+                    addClusterPortal(graph, portal,
+                        portal.getFrontLeaf());
+                    addClusterPortal(graph, portal,
+                        portal.getBackLeaf());
+                }
+            }
+        }
+
+        for (int i=0; i<graph.clusters.size(); i++) {
+            Cluster cluster = (Cluster)graph.clusters.get(i);
+
+            // a ClusterPortal's neighbors are the portals of its
+            // leaves that are inside the cluster.
+            Iterator iter = cluster.clusterPortals.values().iterator();
+            while (iter.hasNext()) {
+                ClusterPortal node = (ClusterPortal)iter.next();
+                addClusterNeighbors(graph, cluster, node,
+                    node.portal.getFrontLeaf());
+                addClusterNeighbors(graph, cluster, node,
+                    node.portal.getBackLeaf());
+            }
+        }
+    }
+
+
+    private void addClusterPortal(ClusterGraph graph, Portal portal,
+        BSPTree.Leaf leaf)
+    {
+        Cluster cluster = (Cluster)graph.leafClusters.get(leaf);
+        if (cluster != null &&
+            !cluster.clusterPortals.containsKey(portal))
+        {
+            cluster.clusterPortals.put(portal,
+                new ClusterPortal(portal));
+        }
+    }
+
+
+    private void addClusterNeighbors(ClusterGraph graph,
+        Cluster cluster, ClusterPortal node, BSPTree.Leaf leaf)
+    {
+        if (leaf == null || graph.leafClusters.get(leaf) != cluster) {
+            return;
+        }
+        for (int i=0; i<leaf.portals.size(); i++) {
+            Portal portal = (Portal)leaf.portals.get(i);
+            if (portal != node.portal) {
+                node.neighbors.add(cluster.clusterPortals.get(portal));
+            }
+        }
+    }
+
+
+    /**
+        Finds the entrances between clusters, and connects each
+        pair of entrances of a cluster with the shortest path
+        between them inside the cluster.
+    */
+    private void buildEntrances(ClusterGraph graph) {
+        for (int i=0; i<graph.clusters.size(); i++) {
+            Cluster cluster = (Cluster)graph.clusters.get(i);
+            Iterator iter = cluster.clusterPortals.keySet().iterator();
+            while (iter.hasNext()) {
+                Portal portal = (Portal)iter.next();
+                Object front =
+                    graph.leafClusters.get(portal.getFrontLeaf());
+                Object back =
+                    graph.leafClusters.get(portal.getBackLeaf());
+                if (front != back) {
+                    Entrance entrance =
+                        (Entrance)graph.entrances.get(portal);
+                    if (entrance == null) {
+                        entrance = new Entrance(portal);
+                        graph.entrances.put(portal, entrance);
+                    }
+                    cluster.entrances.add(entrance);
+                }
+            }
+        }
+
+        for (int i=0; i<graph.clusters.size(); i++) {
+            Cluster cluster = (Cluster)graph.clusters.get(i);
+            for (int j=0; j<cluster.entrances.size(); j++) {
+                Entrance a = (Entrance)cluster.entrances.get(j);
+                AStarNode start =
+                    (AStarNode)cluster.clusterPortals.get(a.portal);
+                for (int k=0; k<cluster.entrances.size(); k++) {
+                    Entrance b = (Entrance)cluster.entrances.get(k);
+                    if (a == b) {
+                        continue;
+                    }
+                    List path = findPath(start, (AStarNode)
+                        cluster.clusterPortals.get(b.portal));
+                    if (path == null) {
+                        continue;
+                    }
+                    // two clusters can share more than one pair
+                    // of entrances; keep the cheapest edge.
+                    Edge edge = createEdge(start, path, false);
+                    Edge oldEdge = (Edge)a.edges.get(b);
+                    if (oldEdge == null) {
+                        a.neighbors.add(b);
+                        a.edges.put(b, edge);
+                    }
+                    else if (edge.cost < oldEdge.cost) {
+                        a.edges.put(b, edge);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Adds all the leaves with portals under the specified
+        node to the list.
+    */
+    private void findLeaves(BSPTree.Node node, List leaves) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof BSPTree.Leaf) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)node;
+            if (leaf.portals != null && leaf.bounds != null) {
+                leaves.add(leaf);
+            }
+        }
+        else {
+            findLeaves(node.front, leaves);
+            findLeaves(node.back, leaves);
+        }
+    }
+
+
+    private static BSPTree.Leaf getOtherLeaf(Portal portal,
+        BSPTree.Leaf leaf)
+    {
+        if (portal.getFrontLeaf() == leaf) {
+            return portal.getBackLeaf();
+        }
+        return portal.getFrontLeaf();
+    }
+
+
+    /**
+        Gets the location of one of this class's AStarNodes.
+    */
+    private static Vector3D getLocation(AStarNode node) {
+        if (node instanceof ClusterPortal) {
+            return ((ClusterPortal)node).portal.getMidPoint();
+        }
+        else if (node instanceof ClusterLocation) {
+            return ((ClusterLocation)node).location;
+        }
+        else if (node instanceof Entrance) {
+            return ((Entrance)node).portal.getMidPoint();
+        }
+        else if (node instanceof Start) {
+            return ((Start)node).location;
+        }
+        else {
+            return ((Goal)node).location;
+        }
+    }
+
+
+    private static float distance(Vector3D a, Vector3D b) {
+        float dx = a.x - b.x;
+        float dz = a.z - b.z;
+        return (float)Math.sqrt(dx * dx + dz * dz);
+    }
+
+
+    public String toString() {
+        return "HierarchicalPathFinder";
+    }
+}
@@ -17,6 +17,8 @@ public class PathBot extends GameObject {
     private static final float DEFAULT_FLY_HEIGHT = 64;
 
     protected PathFinder pathFinder;
+    protected PathRequestService pathRequestService;
+    private PathRequestService.PathRequest pathRequest;
     protected Iterator currentPath;
     private Vector3D nextPathLocation;
     protected long timeUntilPathRecalc;
@@ -58,6 +60,7 @@ public class PathBot extends GameObject {
         if (this.pathFinder != pathFinder) {
             this.pathFinder = pathFinder;
             currentPath = null;
+            cancelPathRequest();
 
             // random amount of time until calulation, so
             // not all bot calc the path at the same time
@@ -65,6 +68,34 @@ public class PathBot extends GameObject {
         }
     }
 
+    /**
+        Sets the PathRequestService used to find paths off the
+        game thread. If null (the default), or if the service
+        doesn't accept this bot's PathFinder, paths are found
+        immediately in update().
+    */
+    public void setPathRequestService(
+        PathRequestService pathRequestService)
+    {
+        if (this.pathRequestService != pathRequestService) {
+            cancelPathRequest();
+            this.pathRequestService = pathRequestService;
+        }
+    }
+
+
+    /**
+        Cancels the path request that is waiting for a path,
+        if any.
+    */
+    protected void cancelPathRequest() {
+        if (pathRequest != null) {
+            pathRequest.cancel();
+            pathRequest = null;
+        }
+    }
+
+
     public void setPathRecalcTime(long pathRecalcTime) {
         this.pathRecalcTime = pathRecalcTime;
     }
@@ -97,13 +128,32 @@ public class PathBot extends GameObject {
 
         // updtate the path to the player
         if (timeUntilPathRecalc <= 0) {
-            currentPath = pathFinder.find(this, player);
-            if (currentPath != null) {
-                getTransform().stop();
+            if (pathRequestService != null &&
+                pathRequestService.accepts(pathFinder))
+            {
+                cancelPathRequest();
+                pathRequest = pathRequestService.request(
+                    pathFinder, getLocation(), player.getLocation());
+            }
+            else {
+                setCurrentPath(pathFinder.find(this, player));
             }
             timeUntilPathRecalc = pathRecalcTime;
         }
 
+        // check if a requested path has arrived
+        if (pathRequest != null) {
+            if (pathRequest.isDone()) {
+                setCurrentPath(pathRequest.getPath());
+                pathRequest = null;
+            }
+            else if (pathRequest.isCancelled()) {
+                // request was stale; try again soon
+                pathRequest = null;
+                timeUntilPathRecalc = 0;
+            }
+        }
+
         // follow the path
         if (currentPath != null &&
             !getTransform().isMovingIgnoreY())
@@ -134,6 +184,18 @@ public class PathBot extends GameObject {
     }
 
 
+    /**
+        Sets the path to follow. If the path isn't null, this
+        object stops moving along the previous path.
+    */
+    protected void setCurrentPath(Iterator path) {
+        currentPath = path;
+        if (currentPath != null) {
+            getTransform().stop();
+        }
+    }
+
+
     /**
         When a collision occurs, back up for 200 ms and then
         wait a few seconds before recaculating the path.
@@ -149,6 +211,7 @@ public class PathBot extends GameObject {
 
         // wait until computing the path again
         currentPath = null;
+        cancelPathRequest();
         timeUntilPathRecalc = (long)(Math.random() * 1000);
     }
 
@@ -0,0 +1,504 @@
+package com.brackeen.javagamebook.path;
+
+import java.util.*;
+import com.brackeen.javagamebook.math3D.Vector3D;
+import com.brackeen.javagamebook.bsp2D.BSPTree;
+import com.brackeen.javagamebook.util.ThreadPool;
+
+/**
+    The PathRequestService finds paths for PathBots without
+    stalling the game thread. Bots request a path with
+    request(), and the service finds the path later, either on
+    a pool of worker threads or (if the pool has no threads)
+    on the game thread during update().
+    <p>The update() method should be called once per frame from
+    the game thread. Finished paths are only delivered to
+    PathRequests during update(), so bots always see the result
+    on the game thread.
+    <p>Requests for the same start and goal BSP leaves that are
+    waiting at the same time are coalesced into one search.
+    The amount of searching started each frame is limited by a
+    CPU budget, and requests that wait longer than the maximum
+    request age are cancelled.
+*/
+public class PathRequestService {
+
+    private static final long DEFAULT_FRAME_BUDGET = 2000;
+    private static final long DEFAULT_MAX_REQUEST_AGE = 1000;
+
+    // the smallest estimated cost of a search, in nanoseconds,
+    // used until the average search time is known (and when
+    // cached searches pull the average toward 0)
+    private static final long MIN_ESTIMATED_SEARCH_TIME = 100000;
+
+    /**
+        A request for a path from a start location to a goal
+        location. The path is available once isDone() returns
+        true. A request can be cancelled, in which case the path
+        is never delivered.
+    */
+    public static class PathRequest {
+
+        private Vector3D goal;
+        private Iterator path;
+        private boolean isDone;
+        private volatile boolean isCancelled;
+        private long age;
+
+        private PathRequest(Vector3D goal) {
+            this.goal = goal;
+        }
+
+
+        /**
+            Returns true if the search for this request is
+            finished. The path may still be null if no path was
+            found.
+        */
+        public boolean isDone() {
+            return isDone;
+        }
+
+
+        /**
+            Gets the path found for this request, or null if the
+            request isn't done or no path was found.
+        */
+        public Iterator getPath() {
+            return path;
+        }
+
+
+        /**
+            Cancels this request. If the search hasn't started
+            yet, it is skipped (unless other requests share it).
+        */
+        public void cancel() {
+            isCancelled = true;
+        }
+
+
+        /**
+            Returns true if this request was cancelled, either
+            by calling cancel() or because it waited too long.
+        */
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+
+    /**
+        A search shared by one or more PathRequests.
+    */
+    private class Job implements Runnable {
+
+        Object key;
+        PathFinder pathFinder;
+        Vector3D start;
+        Vector3D goal;
+        ArrayList requests;
+        List path;
+        boolean searched;
+        long searchTime;
+
+        public Job(Object key, PathFinder pathFinder,
+            Vector3D start, Vector3D goal)
+        {
+            this.key = key;
+            this.pathFinder = pathFinder;
+            this.start = start;
+            this.goal = goal;
+            requests = new ArrayList();
+        }
+
+
+        /**
+            Returns true if all of this job's requests were
+            cancelled.
+        */
+        public boolean isCancelled() {
+            for (int i=0; i<requests.size(); i++) {
+                if (!((PathRequest)requests.get(i)).isCancelled) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        public void run() {
+            if (!isCancelled()) {
+                long startTime = System.nanoTime();
+                Iterator i = pathFinder.find(start, goal);
+                if (i != null) {
+                    path = new ArrayList();
+                    while (i.hasNext()) {
+                        path.add(i.next());
+                    }
+                }
+                searchTime = System.nanoTime() - startTime;
+                searched = true;
+            }
+            jobFinished(this);
+        }
+    }
+
+
+    /**
+        Key used to coalesce requests for the same PathFinder,
+        start leaf, and goal leaf.
+    */
+    private static class JobKey {
+
+        private PathFinder pathFinder;
+        private BSPTree.Leaf startLeaf;
+        private BSPTree.Leaf goalLeaf;
+
+        public JobKey(PathFinder pathFinder, BSPTree.Leaf startLeaf,
+            BSPTree.Leaf goalLeaf)
+        {
+            this.pathFinder = pathFinder;
+            this.startLeaf = startLeaf;
+            this.goalLeaf = goalLeaf;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof JobKey)) {
+                return false;
+            }
+            JobKey other = (JobKey)obj;
+            return (pathFinder == other.pathFinder &&
+                startLeaf == other.startLeaf &&
+                goalLeaf == other.goalLeaf);
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(pathFinder) ^
+                System.identityHashCode(startLeaf) * 31 ^
+                System.identityHashCode(goalLeaf) * 961;
+        }
+    }
+
+
+    private ThreadPool threadPool;
+    private int numThreads;
+    private LinkedList waitingJobs;
+    private HashMap waitingJobsByKey;
+    private LinkedList finishedJobs;
+    private int numRunningJobs;
+
+    private long frameBudget;
+    private long maxRequestAge;
+    private long averageSearchTime;
+
+    private int numRequests;
+    private int numSearches;
+    private int numCancelled;
+
+
+    /**
+        Creates a new PathRequestService with the specified
+        number of worker threads. If numThreads is 0, paths are
+        found on the game thread in update().
+    */
+    public PathRequestService(int numThreads) {
+        if (numThreads > 0) {
+            threadPool = new ThreadPool(numThreads);
+        }
+        this.numThreads = numThreads;
+        waitingJobs = new LinkedList();
+        waitingJobsByKey = new HashMap();
+        finishedJobs = new LinkedList();
+        setFrameBudget(DEFAULT_FRAME_BUDGET);
+        setMaxRequestAge(DEFAULT_MAX_REQUEST_AGE);
+    }
+
+
+    /**
+        Sets the amount of CPU time, in microseconds, that may
+        be spent searching for paths each frame. Without worker
+        threads, at least one search is started every frame.
+        With worker threads, no more searches are started than
+        there are idle workers.
+    */
+    public void setFrameBudget(long frameBudget) {
+        this.frameBudget = frameBudget;
+    }
+
+
+    /**
+        Sets the maximum time, in milliseconds, a request can
+        wait for its search to start. Older requests are
+        cancelled.
+    */
+    public void setMaxRequestAge(long maxRequestAge) {
+        this.maxRequestAge = maxRequestAge;
+    }
+
+
+    /**
+        Returns true if this service can find paths for the
+        specified PathFinder. Only PathFinders that find paths
+        between locations (rather than between GameObjects)
+        are accepted.
+    */
+    public boolean accepts(PathFinder pathFinder) {
+        return (pathFinder instanceof AStarSearchWithBSP ||
+            pathFinder instanceof HierarchicalPathFinder);
+    }
+
+
+    /**
+        Requests a path from the start location to the goal
+        location. The locations are copied, so they can change
+        after this method returns. Call from the game thread.
+    */
+    public PathRequest request(PathFinder pathFinder,
+        Vector3D start, Vector3D goal)
+    {
+        PathRequest request = new PathRequest(new Vector3D(goal));
+        numRequests++;
+
+        Object key = getKey(pathFinder, start, goal);
+        Job job = null;
+        if (key != null) {
+            job = (Job)waitingJobsByKey.get(key);
+        }
+        if (job == null) {
+            job = new Job(key, pathFinder, new Vector3D(start),
+                request.goal);
+            waitingJobs.add(job);
+            if (key != null) {
+                waitingJobsByKey.put(key, job);
+            }
+        }
+        job.requests.add(request);
+        return request;
+    }
+
+
+    /**
+        Gets the key used to coalesce requests, or null if
+        requests for this PathFinder can't be coalesced.
+    */
+    protected Object getKey(PathFinder pathFinder, Vector3D start,
+        Vector3D goal)
+    {
+        BSPTree bspTree;
+        if (pathFinder instanceof AStarSearchWithBSP) {
+            bspTree = ((AStarSearchWithBSP)pathFinder).getBSPTree();
+        }
+        else if (pathFinder instanceof HierarchicalPathFinder) {
+            bspTree =
+                ((HierarchicalPathFinder)pathFinder).getBSPTree();
+        }
+        else {
+            return null;
+        }
+        return new JobKey(pathFinder,
+            bspTree.getLeaf(start.x, start.z),
+            bspTree.getLeaf(goal.x, goal.z));
+    }
+
+
+    /**
+        Delivers finished paths, cancels stale requests, and
+        starts new searches within this frame's budget. Call
+        once per frame from the game thread.
+    */
+    public void update(long elapsedTime) {
+        deliverFinishedJobs();
+        cancelStaleRequests(elapsedTime);
+
+        long budget = frameBudget * 1000;
+        if (threadPool == null) {
+            // search on this thread until the budget is spent
+            long startTime = System.nanoTime();
+            do {
+                Job job = nextJob();
+                if (job == null) {
+                    break;
+                }
+                job.run();
+            }
+            while (System.nanoTime() - startTime < budget);
+            deliverFinishedJobs();
+        }
+        else {
+            // hand out jobs to idle workers, using the average
+            // search time as the estimated cost of each job.
+            long estimatedTime = 0;
+            while (estimatedTime < budget) {
+                synchronized (this) {
+                    if (numRunningJobs >= numThreads) {
+                        break;
+                    }
+                }
+                Job job = nextJob();
+                if (job == null) {
+                    break;
+                }
+                synchronized (this) {
+                    numRunningJobs++;
+                    estimatedTime+=Math.max(averageSearchTime,
+                        MIN_ESTIMATED_SEARCH_TIME);
+                }
+                threadPool.runTask(job);
+            }
+        }
+    }
+
+
+    /**
+        Removes the next job from the waiting list, skipping
+        jobs where every request was cancelled.
+    */
+    private Job nextJob() {
+        while (!waitingJobs.isEmpty()) {
+            Job job = (Job)waitingJobs.removeFirst();
+            if (job.key != null) {
+                waitingJobsByKey.remove(job.key);
+            }
+            if (!job.isCancelled()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+        Cancels waiting requests that are older than the
+        maximum request age.
+    */
+    private void cancelStaleRequests(long elapsedTime) {
+        Iterator i = waitingJobs.iterator();
+        while (i.hasNext()) {
+            Job job = (Job)i.next();
+            for (int j=0; j<job.requests.size(); j++) {
+                PathRequest request = (PathRequest)job.requests.get(j);
+                request.age+=elapsedTime;
+                if (request.age > maxRequestAge &&
+                    !request.isCancelled)
+                {
+                    request.cancel();
+                    numCancelled++;
+                }
+            }
+            if (job.isCancelled()) {
+                i.remove();
+                if (job.key != null) {
+                    waitingJobsByKey.remove(job.key);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Called when a job is finished, possibly from a worker
+        thread.
+    */
+    private synchronized void jobFinished(Job job) {
+        if (threadPool != null) {
+            numRunningJobs--;
+        }
+        if (job.searched) {
+            numSearches++;
+            // exponential moving average
+            averageSearchTime =
+                (averageSearchTime * 7 + job.searchTime) / 8;
+        }
+        finishedJobs.add(job);
+    }
+
+
+    /**
+        Gives the paths of finished jobs to their requests.
+    */
+    private void deliverFinishedJobs() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (finishedJobs.isEmpty()) {
+                    return;
+                }
+                job = (Job)finishedJobs.removeFirst();
+            }
+
+            for (int i=0; i<job.requests.size(); i++) {
+                PathRequest request = (PathRequest)job.requests.get(i);
+                if (request.isCancelled) {
+                    continue;
+                }
+                if (job.path != null) {
+                    List path = job.path;
+                    if (request.goal != job.goal) {
+                        // coalesced request: end the path at this
+                        // request's own goal.
+                        path = new ArrayList(path);
+                        path.set(path.size() - 1, request.goal);
+                    }
+                    request.path =
+                        Collections.unmodifiableList(path).iterator();
+                }
+                request.isDone = true;
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of searches waiting to start or running.
+    */
+    public synchronized int getNumWaitingSearches() {
+        return waitingJobs.size() + numRunningJobs;
+    }
+
+
+    /**
+        Gets the total number of requests made.
+    */
+    public int getNumRequests() {
+        return numRequests;
+    }
+
+
+    /**
+        Gets the total number of searches performed. This is
+        less than the number of requests if requests were
+        coalesced or cancelled.
+    */
+    public synchronized int getNumSearches() {
+        return numSearches;
+    }
+
+
+    /**
+        Gets the number of requests cancelled because they
+        waited longer than the maximum request age.
+    */
+    public int getNumStaleRequests() {
+        return numCancelled;
+    }
+
+
+    /**
+        Gets the average search time, in nanoseconds.
+    */
+    public synchronized long getAverageSearchTime() {
+        return averageSearchTime;
+    }
+
+
+    /**
+        Stops the worker threads, if any. Waiting requests are
+        never delivered.
+    */
+    public void close() {
+        if (threadPool != null) {
+            threadPool.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.sound.*;
+
+/**
+    Compares the speed of a fused FilterSequence, which runs all
+    its filters over a small tile of samples at a time, with an
+    unfused FilterSequence, which runs each filter over the
+    whole buffer in turn. Both filter the same random samples
+    with an echo and a 3d filter, and the results are checked to
+    be the same.
+    <p>Usage: FilterBenchmark [seconds of sound] [buffer size]
+    @see FilterSequence
+*/
+public class FilterBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_RUNS = 5;
+
+    public static void main(String[] args) {
+        int seconds = 60;
+        int bufferSize = 8820;
+        if (args.length > 0) {
+            seconds = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            bufferSize = Integer.parseInt(args[1]);
+        }
+
+        // random 16-bit samples, at 1/4 volume so the echoes
+        // don't clip too much
+        byte[] sound = new byte[seconds * SAMPLE_RATE * 2];
+        Random random = new Random(0);
+        for (int i=0; i<sound.length; i+=2) {
+            SoundFilter.setSample(sound, i,
+                (short)(random.nextGaussian() * 8192));
+        }
+
+        System.out.println("Filtering " + seconds +
+            " seconds of sound in " + bufferSize + "-byte buffers");
+        byte[] unfusedResult = null;
+        byte[] fusedResult = null;
+        long unfusedTime = Long.MAX_VALUE;
+        long fusedTime = Long.MAX_VALUE;
+        for (int run=0; run<NUM_RUNS; run++) {
+            // alternate so both get the same warm-up
+            byte[] samples = sound.clone();
+            long time = filter(samples, bufferSize, false);
+            unfusedTime = Math.min(unfusedTime, time);
+            unfusedResult = samples;
+
+            samples = sound.clone();
+            time = filter(samples, bufferSize, true);
+            fusedTime = Math.min(fusedTime, time);
+            fusedResult = samples;
+        }
+
+        System.out.println("Unfused: " + (unfusedTime / 1000000) +
+            "ms");
+        System.out.println("Fused:   " + (fusedTime / 1000000) +
+            "ms (tiles of " + FilterSequence.TILE_SIZE +
+            " samples)");
+        System.out.println("Speedup: " +
+            Math.round(100f * unfusedTime / fusedTime) / 100f + "x");
+        System.out.println("Results are " +
+            (Arrays.equals(unfusedResult, fusedResult) ?
+            "the same" : "DIFFERENT"));
+    }
+
+
+    /**
+        Filters the samples in buffers of the specified size with
+        a new filter chain, and returns the time it took, in
+        nanoseconds.
+    */
+    private static long filter(byte[] samples, int bufferSize,
+        boolean fused)
+    {
+        // a source moving toward the listener
+        Sprite source = new Sprite(null);
+        Sprite listener = new Sprite(null);
+        SoundFilter filter = new FilterSequence(new SoundFilter[] {
+            new EchoFilter(11025, .6f),
+            new EchoFilter(2205, .3f),
+            new Filter3d(source, listener, 1000)
+        }, fused);
+
+        long startTime = System.nanoTime();
+        for (int i=0; i<samples.length; i+=bufferSize) {
+            source.setX(1000 - 1000f * i / samples.length);
+            filter.filter(samples, i,
+                Math.min(bufferSize, samples.length - i));
+        }
+        return System.nanoTime() - startTime;
+    }
+
+}
@@ -1,11 +1,13 @@
 package com.brackeen.javagamebook.graphics;
 
+import java.awt.Graphics;
 import java.awt.Image;
 import java.util.ArrayList;
 
 /**
     The Animation class manages a series of images (frames) and
-    the amount of time to display each frame.
+    the amount of time to display each frame. A frame is either
+    an Image or an AtlasRegion of a TextureAtlas.
 */
 public class Animation {
 
@@ -48,7 +50,19 @@ public class Animation {
         long duration)
     {
         totalDuration += duration;
-        frames.add(new AnimFrame(image, totalDuration));
+        frames.add(new AnimFrame(image, null, totalDuration));
+    }
+
+
+    /**
+        Adds a region of a TextureAtlas to the animation with the
+        specified duration (time to display the region).
+    */
+    public synchronized void addFrame(AtlasRegion region,
+        long duration)
+    {
+        totalDuration += duration;
+        frames.add(new AnimFrame(null, region, totalDuration));
     }
 
 
@@ -83,14 +97,77 @@ public class Animation {
 
     /**
         Gets this Animation's current image. Returns null if this
-        animation has no images.
+        animation has no images. For a frame that is an
+        AtlasRegion, drawing with draw() is faster.
     */
     public synchronized Image getImage() {
         if (frames.size() == 0) {
             return null;
         }
+        AnimFrame frame = getFrame(currFrameIndex);
+        if (frame.region != null) {
+            return frame.region.getImage();
+        }
+        return frame.image;
+    }
+
+
+    /**
+        Gets this Animation's current AtlasRegion. Returns null
+        if the current frame isn't an AtlasRegion.
+    */
+    public synchronized AtlasRegion getRegion() {
+        if (frames.size() == 0) {
+            return null;
+        }
+        return getFrame(currFrameIndex).region;
+    }
+
+
+    /**
+        Gets the width of this Animation's current frame.
+    */
+    public synchronized int getWidth() {
+        if (frames.size() == 0) {
+            return 0;
+        }
+        AnimFrame frame = getFrame(currFrameIndex);
+        if (frame.region != null) {
+            return frame.region.getWidth();
+        }
+        return frame.image.getWidth(null);
+    }
+
+
+    /**
+        Gets the height of this Animation's current frame.
+    */
+    public synchronized int getHeight() {
+        if (frames.size() == 0) {
+            return 0;
+        }
+        AnimFrame frame = getFrame(currFrameIndex);
+        if (frame.region != null) {
+            return frame.region.getHeight();
+        }
+        return frame.image.getHeight(null);
+    }
+
+
+    /**
+        Draws this Animation's current frame at the specified
+        location.
+    */
+    public synchronized void draw(Graphics g, int x, int y) {
+        if (frames.size() == 0) {
+            return;
+        }
+        AnimFrame frame = getFrame(currFrameIndex);
+        if (frame.region != null) {
+            frame.region.draw(g, x, y);
+        }
         else {
-            return getFrame(currFrameIndex).image;
+            g.drawImage(frame.image, x, y, null);
         }
     }
 
@@ -103,10 +180,14 @@ public class Animation {
     private class AnimFrame {
 
         Image image;
+        AtlasRegion region;
         long endTime;
 
-        public AnimFrame(Image image, long endTime) {
+        public AnimFrame(Image image, AtlasRegion region,
+            long endTime)
+        {
             this.image = image;
+            this.region = region;
             this.endTime = endTime;
         }
     }
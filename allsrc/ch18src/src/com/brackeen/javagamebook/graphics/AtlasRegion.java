@@ -0,0 +1,112 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+    An AtlasRegion is a rectangle of a page of a TextureAtlas
+    that holds one image. Drawing a region draws part of the
+    page, so many regions can be drawn from the same
+    accelerated image.
+*/
+public class AtlasRegion {
+
+    // the source image and how it's drawn into the page; only
+    // used until the atlas is packed
+    Image source;
+    boolean mirror;
+    boolean flip;
+    boolean translucent;
+
+    Image page;
+    int x;
+    int y;
+    int width;
+    int height;
+
+    private Image image;
+
+    AtlasRegion(Image source, boolean mirror, boolean flip) {
+        this.source = source;
+        this.mirror = mirror;
+        this.flip = flip;
+        width = source.getWidth(null);
+        height = source.getHeight(null);
+    }
+
+
+    /**
+        Gets the width of this region.
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of this region.
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the page image this region is in. Returns null if
+        the atlas isn't packed yet.
+    */
+    public Image getPage() {
+        return page;
+    }
+
+
+    /**
+        Gets the x location of this region in its page.
+    */
+    public int getX() {
+        return x;
+    }
+
+
+    /**
+        Gets the y location of this region in its page.
+    */
+    public int getY() {
+        return y;
+    }
+
+
+    /**
+        Draws this region at the specified location.
+    */
+    public void draw(Graphics g, int x, int y) {
+        g.drawImage(page, x, y, x + width, y + height,
+            this.x, this.y, this.x + width, this.y + height, null);
+    }
+
+
+    /**
+        Gets an Image of just this region, for code that needs
+        an Image. The Image shares the page's pixels, but
+        drawing it isn't as fast as draw().
+    */
+    public Image getImage() {
+        if (image == null && page instanceof BufferedImage) {
+            image = ((BufferedImage)page).getSubimage(
+                x, y, width, height);
+        }
+        return image;
+    }
+
+
+    /**
+        Checks if the specified Image is the Image returned by
+        getImage(). This doesn't create the Image if getImage()
+        hasn't been called.
+    */
+    public boolean isImage(Image image) {
+        return (image != null && this.image == image);
+    }
+
+}
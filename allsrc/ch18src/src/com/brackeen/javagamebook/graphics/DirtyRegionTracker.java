@@ -0,0 +1,219 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+    The DirtyRegionTracker finds the parts of the screen that
+    changed since the last frame, so only those parts need to
+    be drawn again. Each frame, every Sprite on screen is
+    tracked with its screen location. A Sprite that moved or
+    changed its image makes both its old and new rectangles
+    dirty, and a Sprite that is no longer on screen makes its
+    old rectangle dirty.
+    <p>Use it like this:<pre>
+    tracker.beginFrame();
+    tracker.trackSprite(sprite, x, y); // for each Sprite
+    tracker.endFrame();
+    // draw each rectangle in getDirtyRects()
+    </pre>
+*/
+public class DirtyRegionTracker {
+
+    /**
+        The last drawn state of a Sprite.
+    */
+    private static class Entry {
+        Rectangle rect = new Rectangle();
+        Image image;
+        long frame;
+    }
+
+
+    private int screenWidth;
+    private int screenHeight;
+    private IdentityHashMap entries;
+    private ArrayList freeEntries;
+    private ArrayList dirtyRects;
+    private ArrayList freeRects;
+    private long frame;
+
+    /**
+        Creates a new DirtyRegionTracker for a screen of the
+        specified size.
+    */
+    public DirtyRegionTracker(int screenWidth, int screenHeight) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        entries = new IdentityHashMap();
+        freeEntries = new ArrayList();
+        dirtyRects = new ArrayList();
+        freeRects = new ArrayList();
+    }
+
+
+    /**
+        Starts a new frame. The dirty rectangles of the last
+        frame are cleared.
+    */
+    public void beginFrame() {
+        frame++;
+        for (int i=0; i<dirtyRects.size(); i++) {
+            freeRects.add(dirtyRects.get(i));
+        }
+        dirtyRects.clear();
+    }
+
+
+    /**
+        Tracks a Sprite drawn at the specified screen location
+        this frame.
+    */
+    public void trackSprite(Sprite sprite, int x, int y) {
+        Image image = sprite.getImage();
+        int width = sprite.getWidth();
+        int height = sprite.getHeight();
+        Entry entry = (Entry)entries.get(sprite);
+        if (entry == null) {
+            entry = (freeEntries.isEmpty()) ? new Entry() :
+                (Entry)freeEntries.remove(freeEntries.size() - 1);
+            entries.put(sprite, entry);
+            invalidate(x, y, width, height);
+        }
+        else if (entry.image != image || entry.rect.x != x ||
+            entry.rect.y != y || entry.rect.width != width ||
+            entry.rect.height != height)
+        {
+            invalidate(entry.rect.x, entry.rect.y,
+                entry.rect.width, entry.rect.height);
+            invalidate(x, y, width, height);
+        }
+        entry.rect.setBounds(x, y, width, height);
+        entry.image = image;
+        entry.frame = frame;
+    }
+
+
+    /**
+        Ends the frame. Sprites that were tracked last frame but
+        not this frame make their old rectangles dirty.
+    */
+    public void endFrame() {
+        Iterator i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry entry = (Entry)i.next();
+            if (entry.frame != frame) {
+                invalidate(entry.rect.x, entry.rect.y,
+                    entry.rect.width, entry.rect.height);
+                entry.image = null;
+                freeEntries.add(entry);
+                i.remove();
+            }
+        }
+    }
+
+
+    /**
+        Notifies this tracker that the screen contents were
+        moved by the specified amount (for example, with
+        copyArea()). The tracked rectangles are moved, and the
+        uncovered strips of the screen are made dirty.
+    */
+    public void scroll(int dx, int dy) {
+        Iterator i = entries.values().iterator();
+        while (i.hasNext()) {
+            ((Entry)i.next()).rect.translate(dx, dy);
+        }
+        if (dx > 0) {
+            invalidate(0, 0, dx, screenHeight);
+        }
+        else if (dx < 0) {
+            invalidate(screenWidth + dx, 0, -dx, screenHeight);
+        }
+        if (dy > 0) {
+            invalidate(0, 0, screenWidth, dy);
+        }
+        else if (dy < 0) {
+            invalidate(0, screenHeight + dy, screenWidth, -dy);
+        }
+    }
+
+
+    /**
+        Makes a rectangle of the screen dirty. Rectangles that
+        overlap are merged.
+    */
+    public void invalidate(int x, int y, int width, int height) {
+        // clip to the screen
+        int x2 = Math.min(x + width, screenWidth);
+        int y2 = Math.min(y + height, screenHeight);
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        if (x >= x2 || y >= y2) {
+            return;
+        }
+
+        Rectangle rect = (freeRects.isEmpty()) ? new Rectangle() :
+            (Rectangle)freeRects.remove(freeRects.size() - 1);
+        rect.setBounds(x, y, x2 - x, y2 - y);
+
+        // merge with any overlapping rectangles (merging can
+        // make the rectangle overlap others, so check again)
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i=0; i<dirtyRects.size(); i++) {
+                Rectangle r = (Rectangle)dirtyRects.get(i);
+                if (r.intersects(rect)) {
+                    rect.add(r);
+                    dirtyRects.remove(i);
+                    freeRects.add(r);
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        dirtyRects.add(rect);
+    }
+
+
+    /**
+        Forgets every tracked Sprite, so the next frame is drawn
+        completely.
+    */
+    public void clear() {
+        Iterator i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry entry = (Entry)i.next();
+            entry.image = null;
+            freeEntries.add(entry);
+        }
+        entries.clear();
+    }
+
+
+    /**
+        Gets the list of dirty Rectangles for this frame. The
+        Rectangles don't overlap.
+    */
+    public ArrayList getDirtyRects() {
+        return dirtyRects;
+    }
+
+
+    /**
+        Gets the total area, in pixels, of the dirty rectangles.
+    */
+    public int getDirtyArea() {
+        int area = 0;
+        for (int i=0; i<dirtyRects.size(); i++) {
+            Rectangle r = (Rectangle)dirtyRects.get(i);
+            area+=r.width * r.height;
+        }
+        return area;
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.brackeen.javagamebook.graphics;
 
+import java.awt.Graphics;
 import java.awt.Image;
 
 public class Sprite {
@@ -11,6 +12,10 @@ public class Sprite {
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
+    // position saved before the last update (pixels)
+    private float oldX;
+    private float oldY;
+    private boolean hasOldPosition;
 
     /**
         Creates a new Sprite object with the specified Animation.
@@ -57,12 +62,50 @@ public class Sprite {
         this.y = y;
     }
 
+    /**
+        Saves this Sprite's current position, so it can be
+        drawn between the saved position and the next position.
+        Call before the Sprite is moved.
+    */
+    public void savePosition() {
+        oldX = x;
+        oldY = y;
+        hasOldPosition = true;
+    }
+
+
+    /**
+        Gets the x position between the saved position (alpha
+        0) and the current position (alpha 1). If no position
+        was saved, the current position is returned.
+    */
+    public float getInterpolatedX(float alpha) {
+        if (!hasOldPosition) {
+            return x;
+        }
+        return oldX + (x - oldX) * alpha;
+    }
+
+
+    /**
+        Gets the y position between the saved position (alpha
+        0) and the current position (alpha 1). If no position
+        was saved, the current position is returned.
+    */
+    public float getInterpolatedY(float alpha) {
+        if (!hasOldPosition) {
+            return y;
+        }
+        return oldY + (y - oldY) * alpha;
+    }
+
+
     /**
         Gets this Sprite's width, based on the size of the
         current image.
     */
     public int getWidth() {
-        return anim.getImage().getWidth(null);
+        return anim.getWidth();
     }
 
     /**
@@ -70,7 +113,7 @@ public class Sprite {
         current image.
     */
     public int getHeight() {
-        return anim.getImage().getHeight(null);
+        return anim.getHeight();
     }
 
     /**
@@ -112,6 +155,29 @@ public class Sprite {
         return anim.getImage();
     }
 
+    /**
+        Draws this Sprite's current image at the specified
+        location.
+    */
+    public void draw(Graphics g, int x, int y) {
+        anim.draw(g, x, y);
+    }
+
+    /**
+        Resets this Sprite so it can be reused, as if it were
+        just cloned: the velocity is set to zero, the saved
+        position is cleared, and the Animation is restarted.
+        The position isn't changed. Subclasses that keep other
+        state should override this method.
+    */
+    public void reset() {
+        dx = 0;
+        dy = 0;
+        hasOldPosition = false;
+        anim.start();
+    }
+
+
     /**
         Clones this Sprite. Does not clone position or velocity
         info.
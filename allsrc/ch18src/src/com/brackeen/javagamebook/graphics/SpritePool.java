@@ -0,0 +1,78 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.util.ArrayList;
+
+/**
+    A SpritePool keeps Sprites cloned from a "host" Sprite so
+    they can be reused instead of cloned again. Sprites are
+    reset() when they are taken from the pool, so a reused
+    Sprite is the same as a new clone, except for its position.
+    <p>SpritePools are thread-safe, so Sprites can be created on
+    a loading thread.
+*/
+public class SpritePool {
+
+    private Sprite host;
+    private ArrayList freeSprites;
+    private int numCreated;
+
+    /**
+        Creates a new, empty SpritePool for clones of the
+        specified Sprite.
+    */
+    public SpritePool(Sprite host) {
+        this.host = host;
+        freeSprites = new ArrayList();
+    }
+
+
+    /**
+        Gets the "host" Sprite this pool clones.
+    */
+    public Sprite getHost() {
+        return host;
+    }
+
+
+    /**
+        Gets a Sprite from this pool, or clones the host Sprite
+        if the pool is empty.
+    */
+    public synchronized Sprite getSprite() {
+        int size = freeSprites.size();
+        if (size == 0) {
+            numCreated++;
+            return (Sprite)host.clone();
+        }
+        Sprite sprite = (Sprite)freeSprites.remove(size - 1);
+        sprite.reset();
+        return sprite;
+    }
+
+
+    /**
+        Returns a Sprite to this pool. The Sprite must not be
+        used after it's released.
+    */
+    public synchronized void release(Sprite sprite) {
+        freeSprites.add(sprite);
+    }
+
+
+    /**
+        Gets the number of Sprites in this pool, ready to be
+        reused.
+    */
+    public synchronized int size() {
+        return freeSprites.size();
+    }
+
+
+    /**
+        Gets the number of Sprites this pool has cloned.
+    */
+    public synchronized int getNumCreated() {
+        return numCreated;
+    }
+
+}
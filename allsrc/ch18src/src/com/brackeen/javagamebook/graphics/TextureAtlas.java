@@ -0,0 +1,242 @@
+package com.brackeen.javagamebook.graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.PixelGrabber;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+    A TextureAtlas packs many small images (like animation
+    frames and tiles) into a few large page images. Drawing
+    from a few pages, instead of from one image per frame, means
+    fewer accelerated images in video memory and fewer image
+    switches when many sprites are drawn.
+    <p>Images are added with add(), which returns an
+    AtlasRegion. Mirrored and flipped variants are drawn
+    directly into the page, so no extra image is created for
+    them. Call pack() after all the images are added; regions
+    can't be drawn until they are packed.
+    <p>Most pages are transparent (bitmask) images, which are
+    the fastest to draw. Images with partly transparent pixels,
+    like anti-aliased edges, are packed into translucent pages
+    of their own so they keep their alpha.
+*/
+public class TextureAtlas {
+
+    public static final int DEFAULT_PAGE_SIZE = 512;
+
+    // space between regions, so scaled drawing doesn't bleed
+    // into the neighboring region
+    private static final int PADDING = 1;
+
+    private GraphicsConfiguration gc;
+    private int pageSize;
+    private ArrayList regions;
+    private ArrayList pages;
+
+    /**
+        Creates a new TextureAtlas with 512x512 pages, compatible
+        with the specified GraphicsConfiguration. If the
+        GraphicsConfiguration is null (headless), the pages are
+        ARGB BufferedImages.
+    */
+    public TextureAtlas(GraphicsConfiguration gc) {
+        this(gc, DEFAULT_PAGE_SIZE);
+    }
+
+
+    /**
+        Creates a new TextureAtlas with the specified page size.
+    */
+    public TextureAtlas(GraphicsConfiguration gc, int pageSize) {
+        this.gc = gc;
+        this.pageSize = pageSize;
+        regions = new ArrayList();
+        pages = new ArrayList();
+    }
+
+
+    /**
+        Adds an image to this atlas.
+    */
+    public AtlasRegion add(Image image) {
+        return add(image, false, false);
+    }
+
+
+    /**
+        Adds an image to this atlas, optionally mirrored
+        (flipped horizontally) and/or flipped vertically.
+    */
+    public AtlasRegion add(Image image, boolean mirror,
+        boolean flip)
+    {
+        AtlasRegion region = new AtlasRegion(image, mirror, flip);
+        region.translucent = isTranslucent(region);
+        regions.add(region);
+        return region;
+    }
+
+
+    /**
+        Packs the images added since the last pack() into new
+        pages. Regions are packed in rows ("shelves"), tallest
+        first. An image larger than a page gets a page of its
+        own.
+    */
+    public void pack() {
+        ArrayList bitmaskRegions = new ArrayList();
+        ArrayList translucentRegions = new ArrayList();
+        for (int i=0; i<regions.size(); i++) {
+            AtlasRegion region = (AtlasRegion)regions.get(i);
+            if (region.translucent) {
+                translucentRegions.add(region);
+            }
+            else {
+                bitmaskRegions.add(region);
+            }
+        }
+        pack(bitmaskRegions, Transparency.BITMASK);
+        pack(translucentRegions, Transparency.TRANSLUCENT);
+        regions.clear();
+    }
+
+
+    /**
+        Packs a list of regions into new pages with the
+        specified transparency.
+    */
+    private void pack(ArrayList regions, int transparency) {
+        if (regions.isEmpty()) {
+            return;
+        }
+        Collections.sort(regions, new Comparator() {
+            public int compare(Object a, Object b) {
+                return ((AtlasRegion)b).height -
+                    ((AtlasRegion)a).height;
+            }
+        });
+
+        // place the regions
+        int firstRegion = 0;
+        int x = 0;
+        int y = 0;
+        int shelfHeight = 0;
+        int pageWidth = 0;
+        for (int i=0; i<regions.size(); i++) {
+            AtlasRegion region = (AtlasRegion)regions.get(i);
+            if (x > 0 && x + region.width > pageSize) {
+                // next shelf
+                x = 0;
+                y+=shelfHeight + PADDING;
+                shelfHeight = 0;
+            }
+            if (y > 0 && y + region.height > pageSize) {
+                // next page
+                createPage(regions, firstRegion, i, pageWidth, y,
+                    transparency);
+                firstRegion = i;
+                x = 0;
+                y = 0;
+                shelfHeight = 0;
+                pageWidth = 0;
+            }
+            region.x = x;
+            region.y = y;
+            x+=region.width + PADDING;
+            shelfHeight = Math.max(shelfHeight, region.height);
+            pageWidth = Math.max(pageWidth, x);
+        }
+        createPage(regions, firstRegion, regions.size(), pageWidth,
+            y + shelfHeight, transparency);
+    }
+
+
+    /**
+        Creates a page image and draws a range of the placed
+        regions into it.
+    */
+    private void createPage(ArrayList regions, int firstRegion,
+        int lastRegion, int width, int height, int transparency)
+    {
+        Image page;
+        if (gc != null) {
+            page = gc.createCompatibleImage(width, height,
+                transparency);
+        }
+        else {
+            // no display (headless)
+            page = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        }
+
+        Graphics2D g = (Graphics2D)page.getGraphics();
+        for (int i=firstRegion; i<lastRegion; i++) {
+            AtlasRegion region = (AtlasRegion)regions.get(i);
+            int x1 = region.x;
+            int y1 = region.y;
+            int x2 = x1 + region.width;
+            int y2 = y1 + region.height;
+            // swap the corners to mirror or flip the image
+            g.drawImage(region.source,
+                region.mirror ? x2 : x1, region.flip ? y2 : y1,
+                region.mirror ? x1 : x2, region.flip ? y1 : y2,
+                0, 0, region.width, region.height, null);
+            region.page = page;
+            region.source = null;
+        }
+        g.dispose();
+        pages.add(page);
+    }
+
+
+    /**
+        Checks if a region's image has any partly transparent
+        pixels (neither fully opaque nor fully transparent).
+        If the pixels can't be read, the image is assumed to be
+        translucent.
+    */
+    private static boolean isTranslucent(AtlasRegion region) {
+        if (region.width <= 0 || region.height <= 0) {
+            return false;
+        }
+        int[] pixels = new int[region.width * region.height];
+        PixelGrabber grabber = new PixelGrabber(region.source,
+            0, 0, region.width, region.height, pixels, 0,
+            region.width);
+        try {
+            if (!grabber.grabPixels()) {
+                return true;
+            }
+        }
+        catch (InterruptedException ex) {
+            return true;
+        }
+        for (int i=0; i<pixels.length; i++) {
+            int alpha = pixels[i] >>> 24;
+            if (alpha != 0 && alpha != 0xff) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Gets the number of pages in this atlas.
+    */
+    public int getNumPages() {
+        return pages.size();
+    }
+
+
+    /**
+        Gets a page of this atlas.
+    */
+    public Image getPage(int index) {
+        return (Image)pages.get(index);
+    }
+
+}
@@ -54,24 +54,36 @@ public class EchoFilter extends SoundFilter {
     }
 
 
+    /**
+        Returns true: the echo only depends on the samples
+        played so far.
+    */
+    public boolean isBlockSizeIndependent() {
+        return true;
+    }
+
+
     /**
         Filters the sound samples to add an echo. The samples
         played are added to the sound in the delay buffer
         multipied by the decay rate. The result is then stored in
         the delay buffer, so multiple echoes are heard.
     */
-    public void filter(byte[] samples, int offset, int length) {
-
-        for (int i=offset; i<offset+length; i+=2) {
-            // update the sample
-            short oldSample = getSample(samples, i);
-            short newSample = (short)(oldSample + decay *
-                delayBuffer[delayBufferPos]);
-            setSample(samples, i, newSample);
-
-            // update the delay buffer
-            delayBuffer[delayBufferPos] = newSample;
-            delayBufferPos++;
+    public void filter(short[] samples, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            // filter up to the end of the delay buffer
+            int count = Math.min(end - i,
+                delayBuffer.length - delayBufferPos);
+            for (int j=0; j<count; j++) {
+                short newSample = (short)(samples[i+j] + decay *
+                    delayBuffer[delayBufferPos+j]);
+                samples[i+j] = newSample;
+                delayBuffer[delayBufferPos+j] = newSample;
+            }
+            i+=count;
+            delayBufferPos+=count;
             if (delayBufferPos == delayBuffer.length) {
                 delayBufferPos = 0;
             }
@@ -1,5 +1,6 @@
 package com.brackeen.javagamebook.sound;
 
+import java.util.Arrays;
 import com.brackeen.javagamebook.graphics.Sprite;
 
 /**
@@ -20,6 +21,8 @@ public class Filter3d extends SoundFilter {
     private Sprite listener;
     private int maxDistance;
     private float lastVolume;
+    private float targetVolume;
+    private int shift;
 
     /**
         Creates a new Filter3d object with the specified source
@@ -34,15 +37,39 @@ public class Filter3d extends SoundFilter {
         this.source = source;
         this.listener = listener;
         this.maxDistance = maxDistance;
-        this.lastVolume = 0.0f;
+        reset();
     }
 
 
     /**
-        Filters the sound so that it gets more quiet with
-        distance.
+        Resets this Filter3d to start from silence.
+    */
+    public void reset() {
+        lastVolume = 0.0f;
+        targetVolume = 0.0f;
+        shift = NUM_SHIFTING_SAMPLES;
+    }
+
+
+    /**
+        Returns true: the volume is only recalculated in
+        beginBlock(), and the volume shift continues from one
+        call to the next, so splitting a block doesn't change
+        the result.
+    */
+    public boolean isBlockSizeIndependent() {
+        return true;
+    }
+
+
+    /**
+        Calculates the volume for the next block from the
+        distance between the source and the listener. When the
+        distance changes, the volume shifts to the new volume
+        over the next NUM_SHIFTING_SAMPLES samples, even if they
+        are in later blocks.
     */
-    public void filter(byte[] samples, int offset, int length) {
+    public void beginBlock() {
 
         if (source == null || listener == null) {
             // nothing to filter - return
@@ -50,36 +77,72 @@ public class Filter3d extends SoundFilter {
         }
 
         // calculate the listener's distance from the sound source
+        // (sources past maxDistance are silent, without sqrt)
         float dx = (source.getX() - listener.getX());
         float dy = (source.getY() - listener.getY());
-        float distance = (float)Math.sqrt(dx * dx + dy * dy);
+        float distanceSq = dx * dx + dy * dy;
 
         // set volume from 0 (no sound) to 1
-        float newVolume = (maxDistance - distance) / maxDistance;
-        if (newVolume <= 0) {
-            newVolume = 0;
+        float newVolume = 0;
+        if (distanceSq < (float)maxDistance * maxDistance) {
+            float distance = (float)Math.sqrt(distanceSq);
+            newVolume = (maxDistance - distance) / maxDistance;
+            if (newVolume <= 0) {
+                newVolume = 0;
+            }
         }
 
-        // set the volume of the sample
-        int shift = 0;
-        for (int i=offset; i<offset+length; i+=2) {
+        // start shifting from the current volume to the new one
+        if (newVolume != targetVolume) {
+            lastVolume = getVolume();
+            targetVolume = newVolume;
+            shift = 0;
+        }
+    }
 
-            float volume = newVolume;
 
-            // shift from the last volume to the new volume
-            if (shift < NUM_SHIFTING_SAMPLES) {
-                volume = lastVolume + (newVolume - lastVolume) *
-                    shift / NUM_SHIFTING_SAMPLES;
-                shift++;
-            }
+    /**
+        Filters the sound so that it gets more quiet with
+        distance, using the volume calculated in beginBlock().
+    */
+    public void filter(short[] samples, int offset, int length) {
+
+        if (source == null || listener == null) {
+            // nothing to filter - return
+            return;
+        }
+
+        // shift from the last volume to the new volume
+        int i = offset;
+        int end = offset + length;
+        while (shift < NUM_SHIFTING_SAMPLES && i < end) {
+            samples[i] = (short)(samples[i] * getVolume());
+            shift++;
+            i++;
+        }
 
-            // change the volume of the sample
-            short oldSample = getSample(samples, i);
-            short newSample = (short)(oldSample * volume);
-            setSample(samples, i, newSample);
+        // set the volume of the rest of the samples
+        if (targetVolume == 0) {
+            Arrays.fill(samples, i, end, (short)0);
+        }
+        else if (targetVolume != 1) {
+            for (; i<end; i++) {
+                samples[i] = (short)(samples[i] * targetVolume);
+            }
         }
+    }
 
-        lastVolume = newVolume;
+
+    /**
+        Gets the current volume, part way through shifting from
+        the last volume to the target volume.
+    */
+    private float getVolume() {
+        if (shift >= NUM_SHIFTING_SAMPLES) {
+            return targetVolume;
+        }
+        return lastVolume + (targetVolume - lastVolume) *
+            shift / NUM_SHIFTING_SAMPLES;
     }
 
 }
@@ -1,5 +1,9 @@
 package com.brackeen.javagamebook.sound;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import com.brackeen.javagamebook.util.LoopingByteInputStream;
+
 /**
     The Sound class is a container for sound samples. The sound
     samples are format-agnostic and are stored as a byte array.
@@ -24,4 +28,18 @@ public class Sound {
         return samples;
     }
 
+
+    /**
+        Creates a stream that plays this Sound, optionally
+        looping.
+    */
+    public InputStream getInputStream(boolean loop) {
+        if (loop) {
+            return new LoopingByteInputStream(samples);
+        }
+        else {
+            return new ByteArrayInputStream(samples);
+        }
+    }
+
 }
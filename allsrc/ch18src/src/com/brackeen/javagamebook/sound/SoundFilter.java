@@ -8,10 +8,17 @@ package com.brackeen.javagamebook.sound;
     finished by called the reset() method.
     <p>Assumes all samples are 16-bit, signed, little-endian
     format.
+    <p>Subclasses filter blocks of samples in a short array,
+    which is faster than decoding and encoding each sample in
+    a byte array. The byte array methods convert the samples to
+    a short array once, filter them, and convert them back.
     @see FilteredSoundStream
 */
 public abstract class SoundFilter{
 
+    // scratch buffer for filtering byte arrays
+    private short[] blockBuffer = new short[0];
+
     /**
         Resets this SoundFilter. Does nothing by default.
     */
@@ -31,6 +38,32 @@ public abstract class SoundFilter{
     }
 
 
+    /**
+        Checks if this filter gives the same results no matter
+        how a block of samples is split: after beginBlock(),
+        filtering the block at once is the same as filtering its
+        first part, then the rest. A FilterSequence of such
+        filters can run all its filters over a small tile of
+        samples at a time. Returns false by default.
+    */
+    public boolean isBlockSizeIndependent() {
+        return false;
+    }
+
+
+    /**
+        Called before each block of samples is filtered. A
+        filter that depends on something that changes while the
+        sound plays (like the location of a Sprite) should read
+        it here, once per block, rather than in
+        filter(short[], int, int), which may be called several
+        times per block. Does nothing by default.
+    */
+    public void beginBlock() {
+        // do nothing
+    }
+
+
     /**
         Filters an array of samples. Samples should be in
         16-bit, signed, little-endian format.
@@ -42,11 +75,47 @@ public abstract class SoundFilter{
 
     /**
         Filters an array of samples. Samples should be in
-        16-bit, signed, little-endian format. This method
-        should be implemented by subclasses.
+        16-bit, signed, little-endian format. The samples are
+        converted to a short array, filtered with
+        filter(short[], int, int) after a call to beginBlock(),
+        and converted back.
+    */
+    public void filter(byte[] samples, int offset, int length) {
+        int numSamples = length / 2;
+        if (blockBuffer.length < numSamples) {
+            blockBuffer = new short[numSamples];
+        }
+        short[] block = blockBuffer;
+
+        // convert to shorts
+        for (int i=0; i<numSamples; i++) {
+            int position = offset + i*2;
+            block[i] = (short)(
+                ((samples[position+1] & 0xff) << 8) |
+                (samples[position] & 0xff));
+        }
+
+        beginBlock();
+        filter(block, 0, numSamples);
+
+        // convert back to bytes
+        for (int i=0; i<numSamples; i++) {
+            int position = offset + i*2;
+            short sample = block[i];
+            samples[position] = (byte)(sample & 0xff);
+            samples[position+1] = (byte)((sample >> 8) & 0xff);
+        }
+    }
+
+
+    /**
+        Filters a block of samples, where each sample is a
+        short. The offset and length are in samples, not bytes.
+        Call beginBlock() before filtering each block.
+        This method should be implemented by subclasses.
     */
     public abstract void filter(
-        byte[] samples, int offset, int length);
+        short[] samples, int offset, int length);
 
 
     /**
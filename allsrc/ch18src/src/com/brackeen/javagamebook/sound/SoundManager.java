@@ -1,10 +1,11 @@
 package com.brackeen.javagamebook.sound;
 
 import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
 import javax.sound.sampled.*;
 import javax.sound.midi.*;
 import com.brackeen.javagamebook.util.ThreadPool;
-import com.brackeen.javagamebook.util.LoopingByteInputStream;
 
 
 /**
@@ -12,20 +13,40 @@ import com.brackeen.javagamebook.util.LoopingByteInputStream;
     SoundManager is a ThreadPool, with each thread playing back
     one sound at a time. This allows the SoundManager to
     easily limit the number of simultaneous sounds being played.
+    <p>In mixing mode, the SoundManager has just one thread and
+    one line: a SoundMixer mixes every playing sound (Voice)
+    into the line, so hundreds of sounds can play at once, each
+    with its own gain and pan.
+    <p>When every thread (or every mixer voice) is busy, a new
+    sound steals the playing sound with the lowest priority
+    (see Voice), and a sound that waits longer than the maximum
+    latency to start is dropped instead of playing late.
     <p>Possible ideas to extend this class:<ul>
     <li>add a setMasterVolume() method, which uses Controls to
         set the volume for each line.
-    <li>don't play a sound if more than, say, 500ms has passed
-        since the request to play
     </ul>
 */
 public class SoundManager extends ThreadPool {
 
+    /**
+        The default maximum time, in milliseconds, a sound can
+        wait to start playing.
+    */
+    public static final long DEFAULT_MAX_LATENCY = 500;
+
     private AudioFormat playbackFormat;
     private ThreadLocal localLine;
     private ThreadLocal localBuffer;
     private Object pausedLock;
     private boolean paused;
+    private boolean started;
+    private SoundMixer mixer;
+    private int numThreads;
+    private long maxLatency;
+    private ArrayList playingVoices;
+    private int numQueued;
+    private int numDropped;
+    private int numStolen;
 
     /**
         Creates a new SoundManager using the maximum number of
@@ -44,14 +65,40 @@ public class SoundManager extends ThreadPool {
     public SoundManager(AudioFormat playbackFormat,
         int maxSimultaneousSounds)
     {
-        super(Math.min(maxSimultaneousSounds,
+        this(playbackFormat, maxSimultaneousSounds, false);
+    }
+
+
+    /**
+        Creates a new SoundManager with the specified maximum
+        number of simultaneous sounds, optionally in mixing
+        mode. In mixing mode, the maximum isn't limited by the
+        number of lines the mixer can open, and pooled threads
+        aren't used to play sounds.
+    */
+    public SoundManager(AudioFormat playbackFormat,
+        int maxSimultaneousSounds, boolean mixing)
+    {
+        super(mixing ? 1 : Math.min(maxSimultaneousSounds,
             getMaxSimultaneousSounds(playbackFormat)));
         this.playbackFormat = playbackFormat;
         localLine = new ThreadLocal();
         localBuffer = new ThreadLocal();
         pausedLock = new Object();
+        numThreads = mixing ? 1 : Math.min(maxSimultaneousSounds,
+            getMaxSimultaneousSounds(playbackFormat));
+        playingVoices = new ArrayList();
+        if (mixing) {
+            // mix in 10ms periods
+            mixer = new SoundMixer(playbackFormat,
+                Math.round(playbackFormat.getSampleRate() / 100),
+                maxSimultaneousSounds);
+            runTask(new MixerPlayer());
+        }
+        setMaxLatency(DEFAULT_MAX_LATENCY);
         // notify threads in pool it's ok to start
         synchronized (this) {
+            started = true;
             notifyAll();
         }
     }
@@ -78,6 +125,11 @@ public class SoundManager extends ThreadPool {
         // signal to unpause
         setPaused(false);
 
+        // let the mixer stop once its sounds are done
+        if (mixer != null) {
+            mixer.finish();
+        }
+
         // close the mixer (stops any running sounds)
         Mixer mixer = AudioSystem.getMixer(null);
         if (mixer.isOpen()) {
@@ -122,6 +174,84 @@ public class SoundManager extends ThreadPool {
     }
 
 
+    /**
+        Sets the maximum time, in milliseconds, a sound can wait
+        to start playing. Sounds that wait longer are dropped. A
+        negative value means sounds are never dropped for being
+        late.
+    */
+    public void setMaxLatency(long maxLatency) {
+        synchronized (playingVoices) {
+            this.maxLatency = maxLatency;
+        }
+        if (mixer != null) {
+            mixer.setMaxLatency(maxLatency);
+        }
+    }
+
+
+    /**
+        Gets the maximum time a sound can wait to start playing.
+    */
+    public long getMaxLatency() {
+        synchronized (playingVoices) {
+            return maxLatency;
+        }
+    }
+
+
+    /**
+        Gets the number of sounds that were dropped, either
+        because they waited too long to start or because every
+        voice was busy with a sound of higher priority.
+    */
+    public int getNumDroppedSounds() {
+        synchronized (playingVoices) {
+            return numDropped +
+                ((mixer == null) ? 0 : mixer.getNumDropped());
+        }
+    }
+
+
+    /**
+        Gets the number of playing sounds that were cut off
+        (stolen) to make room for new sounds.
+    */
+    public int getNumStolenSounds() {
+        synchronized (playingVoices) {
+            return numStolen +
+                ((mixer == null) ? 0 : mixer.getNumStolen());
+        }
+    }
+
+
+    /**
+        Checks if this SoundManager is in mixing mode.
+    */
+    public boolean isMixing() {
+        return (mixer != null);
+    }
+
+
+    /**
+        Waits while this SoundManager is paused. Returns false if
+        the thread was interrupted.
+    */
+    private boolean waitWhilePaused() {
+        synchronized (pausedLock) {
+            if (paused) {
+                try {
+                    pausedLock.wait();
+                }
+                catch (InterruptedException ex) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
     /**
         Loads a Sound from the file system. Returns null if an
         error occurs.
@@ -168,6 +298,16 @@ public class SoundManager extends ThreadPool {
     }
 
 
+    /**
+        Creates a StreamingSound, which is decoded from the
+        specified URL as it plays instead of being loaded into
+        memory. Use it for long sounds like music and ambience.
+    */
+    public StreamingSound getStreamingSound(URL url) {
+        return new StreamingSound(this, url);
+    }
+
+
     /**
         Creates an AudioInputStream from a sound from the file
         system.
@@ -231,22 +371,35 @@ public class SoundManager extends ThreadPool {
     public InputStream play(Sound sound, SoundFilter filter,
         boolean loop)
     {
-        InputStream is;
-        if (sound != null) {
-            if (loop) {
-                is = new LoopingByteInputStream(
-                    sound.getSamples());
-            }
-            else {
-                is = new ByteArrayInputStream(sound.getSamples());
-            }
-
-            return play(is, filter);
+        Voice voice = createVoice(sound, filter, loop);
+        if (voice != null) {
+            play(voice);
+            return voice.getSource();
         }
         return null;
     }
 
 
+    /**
+        Creates a Voice for a sound with an optional SoundFilter,
+        and optionally looping, without playing it. Set the
+        Voice's gain and pan, then play it with play(Voice).
+        Returns null if the sound is null.
+    */
+    public Voice createVoice(Sound sound, SoundFilter filter,
+        boolean loop)
+    {
+        if (sound == null) {
+            return null;
+        }
+        InputStream is = sound.getInputStream(loop);
+        if (filter != null) {
+            is = new FilteredSoundStream(is, filter);
+        }
+        return new Voice(is);
+    }
+
+
     /**
         Plays a sound from an InputStream. This method
         returns immediately.
@@ -265,12 +418,46 @@ public class SoundManager extends ThreadPool {
             if (filter != null) {
                 is = new FilteredSoundStream(is, filter);
             }
-            runTask(new SoundPlayer(is));
+            play(new Voice(is));
         }
         return is;
     }
 
 
+    /**
+        Plays a Voice. This method returns immediately. If every
+        thread (or every mixer voice) is busy, the playing Voice
+        with the lowest priority is stolen, if its priority is no
+        higher than this Voice's. If no Voice can be stolen, in
+        mixing mode the Voice is dropped; otherwise it waits for
+        a thread, and is dropped if it waits longer than the
+        maximum latency.
+    */
+    public void play(Voice voice) {
+        voice.setRequestTime(System.currentTimeMillis());
+        if (mixer != null) {
+            if (!mixer.add(voice)) {
+                voice.setDone();
+            }
+            return;
+        }
+
+        synchronized (playingVoices) {
+            if (playingVoices.size() + numQueued >= numThreads) {
+                // no free thread; stop a sound to make room
+                Voice victim =
+                    Voice.findVoiceToSteal(playingVoices, voice);
+                if (victim != null) {
+                    victim.stop();
+                    numStolen++;
+                }
+            }
+            numQueued++;
+        }
+        runTask(new SoundPlayer(voice));
+    }
+
+
     /**
         Signals that a PooledThread has started. Creates the
         Thread's line and buffer.
@@ -278,24 +465,36 @@ public class SoundManager extends ThreadPool {
     protected void threadStarted() {
         // wait for the SoundManager constructor to finish
         synchronized (this) {
-            try {
-                wait();
+            while (!started) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
-            catch (InterruptedException ex) { }
         }
 
         // use a short, 100ms (1/10th sec) buffer for filters that
-        // change in real-time
-        int bufferSize = playbackFormat.getFrameSize() *
-            Math.round(playbackFormat.getSampleRate() / 10);
+        // change in real-time. The mixer's line is stereo and only
+        // needs a 50ms buffer, since the mixer fills it every 10ms.
+        AudioFormat lineFormat = playbackFormat;
+        int buffersPerSecond = 10;
+        if (mixer != null) {
+            lineFormat = mixer.getOutputFormat();
+            buffersPerSecond = 20;
+        }
+        int bufferSize = lineFormat.getFrameSize() *
+            Math.round(lineFormat.getSampleRate() / buffersPerSecond);
 
         // create, open, and start the line
         SourceDataLine line;
         DataLine.Info lineInfo = new DataLine.Info(
-            SourceDataLine.class, playbackFormat);
+            SourceDataLine.class, lineFormat);
         try {
             line = (SourceDataLine)AudioSystem.getLine(lineInfo);
-            line.open(playbackFormat, bufferSize);
+            line.open(lineFormat, bufferSize);
         }
         catch (LineUnavailableException ex) {
             // the line is unavailable - signal to end this thread
@@ -330,19 +529,45 @@ public class SoundManager extends ThreadPool {
     /**
         The SoundPlayer class is a task for the PooledThreads to
         run. It receives the threads's Line and byte buffer from
-        the ThreadLocal variables and plays a sound from an
-        InputStream.
+        the ThreadLocal variables and plays a Voice. The Voice's
+        gain is applied, but not its pan.
         <p>This class only works when called from a PooledThread.
     */
     protected class SoundPlayer implements Runnable {
 
-        private InputStream source;
+        private Voice voice;
 
-        public SoundPlayer(InputStream source) {
-            this.source = source;
+        public SoundPlayer(Voice voice) {
+            this.voice = voice;
         }
 
         public void run() {
+            // drop the sound if it waited too long
+            synchronized (playingVoices) {
+                numQueued--;
+                long now = System.currentTimeMillis();
+                if (maxLatency >= 0 &&
+                    now - voice.getRequestTime() > maxLatency)
+                {
+                    numDropped++;
+                    voice.setDone();
+                    return;
+                }
+                voice.setStartTime(now);
+                playingVoices.add(voice);
+            }
+            try {
+                play();
+            }
+            finally {
+                synchronized (playingVoices) {
+                    playingVoices.remove(voice);
+                }
+                voice.setDone();
+            }
+        }
+
+        private void play() {
             // get line and buffer from ThreadLocals
             SourceDataLine line = (SourceDataLine)localLine.get();
             byte[] buffer = (byte[])localBuffer.get();
@@ -352,24 +577,20 @@ public class SoundManager extends ThreadPool {
             }
 
             // copy data to the line
+            InputStream source = voice.getSource();
             try {
                 int numBytesRead = 0;
-                while (numBytesRead != -1) {
+                while (numBytesRead != -1 && !voice.isStopped()) {
                     // if paused, wait until unpaused
-                    synchronized (pausedLock) {
-                        if (paused) {
-                            try {
-                                pausedLock.wait();
-                            }
-                            catch (InterruptedException ex) {
-                                return;
-                            }
-                        }
+                    if (!waitWhilePaused()) {
+                        break;
                     }
                     // copy data
                     numBytesRead =
                         source.read(buffer, 0, buffer.length);
                     if (numBytesRead != -1) {
+                        applyGain(buffer, numBytesRead,
+                            voice.getGain());
                         line.write(buffer, 0, numBytesRead);
                     }
                 }
@@ -377,7 +598,56 @@ public class SoundManager extends ThreadPool {
             catch (IOException ex) {
                 ex.printStackTrace();
             }
+        }
+
+        private void applyGain(byte[] buffer, int length,
+            float gain)
+        {
+            if (gain == 1) {
+                return;
+            }
+            for (int i=0; i<length-1; i+=2) {
+                int sample = Math.round(
+                    SoundFilter.getSample(buffer, i) * gain);
+                sample = Math.max(Short.MIN_VALUE,
+                    Math.min(sample, Short.MAX_VALUE));
+                SoundFilter.setSample(buffer, i, (short)sample);
+            }
+        }
+    }
 
+
+    /**
+        The MixerPlayer class is the task that runs on the only
+        PooledThread in mixing mode. It mixes the Voices with the
+        SoundMixer and writes the mix to the thread's Line. It
+        runs until the SoundManager is closed.
+    */
+    protected class MixerPlayer implements Runnable {
+
+        public void run() {
+            SourceDataLine line = (SourceDataLine)localLine.get();
+            if (line == null) {
+                // the line is unavailable
+                return;
+            }
+            byte[] buffer = new byte[mixer.getPeriodSize()];
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // sleep while there's nothing to play
+                    if (!mixer.waitForVoices()) {
+                        break;
+                    }
+                }
+                catch (InterruptedException ex) {
+                    break;
+                }
+                if (!waitWhilePaused()) {
+                    break;
+                }
+                int numBytes = mixer.mix(buffer);
+                line.write(buffer, 0, numBytes);
+            }
         }
     }
 
@@ -0,0 +1,311 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+
+/**
+    The SoundMixer class mixes many Voices into one stream of
+    stereo samples, so many sounds can play over one line. Each
+    call to mix() reads one period of samples from every Voice,
+    applies each Voice's gain and pan, and adds them together.
+    The sum is clipped (saturated) to 16 bits, so loud mixes
+    clip instead of wrapping around.
+    <p>The Voices must be 16-bit, signed, little-endian, mono or
+    stereo. The output has the same sample rate, in stereo.
+    <p>When the maximum number of Voices are playing, a new Voice
+    steals the playing Voice with the lowest priority (the
+    quietest, then the oldest), if its priority is no higher
+    than the new Voice's; otherwise the new Voice is dropped. A
+    Voice that waits longer than the maximum latency to start
+    (for example, while the SoundManager is paused) is dropped.
+    mix() should only be called by one thread; Voices can be
+    added from any thread.
+*/
+public class SoundMixer {
+
+    private AudioFormat outputFormat;
+    private int voiceChannels;
+    private int framesPerPeriod;
+    private int maxVoices;
+    private ArrayList voices;
+    private Voice[] mixVoices;
+    private byte[] voiceBuffer;
+    private int[] mixBuffer;
+    private boolean finished;
+    private long maxLatency = -1;
+    private int numDropped;
+    private int numStolen;
+
+    /**
+        Creates a new SoundMixer for Voices in the specified
+        format. Each call to mix() mixes the specified number of
+        frames. At most maxVoices Voices play at once.
+        @throws IllegalArgumentException if the format isn't
+        16-bit, signed, little-endian, mono or stereo.
+    */
+    public SoundMixer(AudioFormat voiceFormat, int framesPerPeriod,
+        int maxVoices)
+    {
+        if (voiceFormat.getSampleSizeInBits() != 16 ||
+            voiceFormat.getChannels() < 1 ||
+            voiceFormat.getChannels() > 2 ||
+            voiceFormat.isBigEndian() ||
+            !voiceFormat.getEncoding().equals(
+                AudioFormat.Encoding.PCM_SIGNED))
+        {
+            throw new IllegalArgumentException(
+                "Can't mix format: " + voiceFormat);
+        }
+        outputFormat = new AudioFormat(
+            voiceFormat.getSampleRate(), 16, 2, true, false);
+        voiceChannels = voiceFormat.getChannels();
+        this.framesPerPeriod = framesPerPeriod;
+        this.maxVoices = maxVoices;
+        voices = new ArrayList();
+        mixVoices = new Voice[0];
+        voiceBuffer = new byte[framesPerPeriod * voiceChannels * 2];
+        mixBuffer = new int[framesPerPeriod * 2];
+    }
+
+
+    /**
+        Gets the format of the mixed samples (stereo).
+    */
+    public AudioFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+
+    /**
+        Gets the number of bytes mix() writes.
+    */
+    public int getPeriodSize() {
+        return framesPerPeriod * 4;
+    }
+
+
+    /**
+        Gets the maximum number of Voices that play at once.
+    */
+    public int getMaxVoices() {
+        return maxVoices;
+    }
+
+
+    /**
+        Sets the maximum time, in milliseconds, a Voice can wait
+        to start before it's dropped. A negative value (the
+        default) means Voices are never dropped for being late.
+    */
+    public synchronized void setMaxLatency(long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+
+    /**
+        Adds a Voice to mix. If the maximum number of Voices are
+        already playing, a Voice is stolen to make room. Returns
+        false if no Voice could be stolen, in which case the new
+        Voice is dropped.
+    */
+    public synchronized boolean add(Voice voice) {
+        if (voices.size() >= maxVoices) {
+            Voice victim = Voice.findVoiceToSteal(voices, voice);
+            if (victim == null) {
+                numDropped++;
+                return false;
+            }
+            voices.remove(victim);
+            victim.setDone();
+            numStolen++;
+        }
+        voices.add(voice);
+        notifyAll();
+        return true;
+    }
+
+
+    /**
+        Gets the number of Voices dropped because they couldn't
+        steal a playing Voice or waited too long to start.
+    */
+    public synchronized int getNumDropped() {
+        return numDropped;
+    }
+
+
+    /**
+        Gets the number of playing Voices that were stolen by
+        new Voices.
+    */
+    public synchronized int getNumStolen() {
+        return numStolen;
+    }
+
+
+    /**
+        Gets the number of Voices playing.
+    */
+    public synchronized int getNumVoices() {
+        return voices.size();
+    }
+
+
+    /**
+        Waits until there is at least one Voice to mix. Returns
+        false, without waiting, if there are no Voices and
+        finish() was called.
+        @throws InterruptedException if the thread is
+        interrupted while waiting.
+    */
+    public synchronized boolean waitForVoices()
+        throws InterruptedException
+    {
+        while (voices.isEmpty()) {
+            if (finished) {
+                return false;
+            }
+            wait();
+        }
+        return true;
+    }
+
+
+    /**
+        Signals that no more Voices will be added, so
+        waitForVoices() returns false once the playing Voices
+        are done.
+    */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+
+    /**
+        Mixes one period of samples from every Voice into the
+        specified buffer, which must be at least getPeriodSize()
+        bytes. Voices that are done or stopped are removed.
+        Returns the number of bytes written.
+    */
+    public int mix(byte[] output) {
+        int numVoices;
+        long maxLatency;
+        synchronized (this) {
+            numVoices = voices.size();
+            maxLatency = this.maxLatency;
+            if (mixVoices.length < numVoices) {
+                mixVoices = new Voice[Math.max(numVoices,
+                    mixVoices.length * 2)];
+            }
+            for (int i=0; i<numVoices; i++) {
+                mixVoices[i] = (Voice)voices.get(i);
+            }
+        }
+
+        Arrays.fill(mixBuffer, 0);
+        long now = System.currentTimeMillis();
+        for (int i=0; i<numVoices; i++) {
+            Voice voice = mixVoices[i];
+            mixVoices[i] = null;
+            boolean done = voice.isStopped();
+            if (!done && voice.getStartTime() == 0) {
+                // starting; drop it if it's too late
+                if (maxLatency >= 0 &&
+                    now - voice.getRequestTime() > maxLatency)
+                {
+                    done = true;
+                    synchronized (this) {
+                        numDropped++;
+                    }
+                }
+                else {
+                    voice.setStartTime(now);
+                }
+            }
+            if (!done) {
+                int numBytes = read(voice.getSource());
+                mixVoice(voice, numBytes);
+                done = (numBytes < voiceBuffer.length);
+            }
+            if (done) {
+                synchronized (this) {
+                    voices.remove(voice);
+                }
+                voice.setDone();
+            }
+        }
+
+        // clip and convert to bytes
+        for (int i=0; i<mixBuffer.length; i++) {
+            int sample = mixBuffer[i];
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            }
+            else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            output[i*2] = (byte)(sample & 0xff);
+            output[i*2+1] = (byte)((sample >> 8) & 0xff);
+        }
+        return getPeriodSize();
+    }
+
+
+    /**
+        Adds the samples of a Voice in the voice buffer to the
+        mix buffer.
+    */
+    private void mixVoice(Voice voice, int numBytes) {
+        float gain = voice.getGain();
+        float pan = voice.getPan();
+        float leftGain = gain * Math.min(1, 1 - pan);
+        float rightGain = gain * Math.min(1, 1 + pan);
+        if (voiceChannels == 1) {
+            int numFrames = numBytes / 2;
+            for (int i=0; i<numFrames; i++) {
+                short sample = SoundFilter.getSample(voiceBuffer, i*2);
+                mixBuffer[i*2] += (int)(sample * leftGain);
+                mixBuffer[i*2+1] += (int)(sample * rightGain);
+            }
+        }
+        else {
+            int numFrames = numBytes / 4;
+            for (int i=0; i<numFrames; i++) {
+                mixBuffer[i*2] += (int)(leftGain *
+                    SoundFilter.getSample(voiceBuffer, i*4));
+                mixBuffer[i*2+1] += (int)(rightGain *
+                    SoundFilter.getSample(voiceBuffer, i*4+2));
+            }
+        }
+    }
+
+
+    /**
+        Reads up to one period of samples from a Voice's source
+        into the voice buffer. Returns the number of bytes read,
+        which is less than a period only at the end of the
+        stream.
+    */
+    private int read(InputStream source) {
+        int numBytes = 0;
+        try {
+            while (numBytes < voiceBuffer.length) {
+                int count = source.read(voiceBuffer, numBytes,
+                    voiceBuffer.length - numBytes);
+                if (count <= 0) {
+                    break;
+                }
+                numBytes+=count;
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return numBytes;
+    }
+
+}
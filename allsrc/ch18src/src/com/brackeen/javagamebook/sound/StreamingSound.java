@@ -0,0 +1,293 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+    A StreamingSound is a Sound that isn't loaded into memory.
+    Each time it plays, a background thread decodes it from its
+    URL into a small ring of reusable buffers, just ahead of
+    playback. A few minutes of music or ambience only needs
+    NUM_BUFFERS * BUFFER_SIZE bytes while it plays, instead of
+    the whole decoded sound. A looping StreamingSound opens its
+    URL again when it reaches the end.
+    <p>If playback catches up with the decoder (an underrun),
+    silence is played until the decoder catches up, and the
+    underrun is counted.
+    <p>getSamples() returns null for a StreamingSound.
+*/
+public class StreamingSound extends Sound {
+
+    /**
+        The size, in bytes, of each buffer in the ring.
+    */
+    public static final int BUFFER_SIZE = 16384;
+
+    /**
+        The number of buffers in the ring.
+    */
+    public static final int NUM_BUFFERS = 4;
+
+    private SoundManager soundManager;
+    private URL url;
+    private int numUnderruns;
+
+    /**
+        Creates a new StreamingSound that plays the sound at the
+        specified URL, converted to the SoundManager's playback
+        format.
+    */
+    public StreamingSound(SoundManager soundManager, URL url) {
+        super(null);
+        this.soundManager = soundManager;
+        this.url = url;
+    }
+
+
+    /**
+        Gets the URL this StreamingSound plays.
+    */
+    public URL getURL() {
+        return url;
+    }
+
+
+    /**
+        Creates a stream that decodes and plays this Sound,
+        optionally looping. Each stream has its own decoding
+        thread, which stops when the stream is closed or the
+        sound ends.
+    */
+    public InputStream getInputStream(boolean loop) {
+        return new StreamingInputStream(loop);
+    }
+
+
+    /**
+        Gets the number of underruns (times playback had to wait
+        for the decoder) in every stream of this Sound.
+    */
+    public synchronized int getNumUnderruns() {
+        return numUnderruns;
+    }
+
+
+    private synchronized void underrun() {
+        numUnderruns++;
+    }
+
+
+    /**
+        Opens the URL as an AudioInputStream in the playback
+        format. Returns null if an error occurs.
+    */
+    private AudioInputStream open() {
+        try {
+            return soundManager.getAudioInputStream(url.openStream());
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+        The StreamingInputStream reads the samples the decoding
+        thread puts in the ring of buffers.
+    */
+    private class StreamingInputStream extends InputStream
+        implements Runnable
+    {
+        private boolean loop;
+        private byte[][] buffers;
+        private int[] lengths;
+        private int readIndex;
+        private int readPosition;
+        private int writeIndex;
+        private int numFull;
+        private boolean primed;
+        private boolean ended;
+        private boolean closed;
+        private int frameSize;
+
+        public StreamingInputStream(boolean loop) {
+            this.loop = loop;
+            buffers = new byte[NUM_BUFFERS][BUFFER_SIZE];
+            lengths = new int[NUM_BUFFERS];
+            frameSize = 1;
+            Thread thread = new Thread(this,
+                "StreamingSound-" + url.getFile());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY + 1);
+            thread.start();
+        }
+
+
+        /**
+            Decodes the sound into empty buffers until the end
+            of the sound or until this stream is closed.
+        */
+        public void run() {
+            AudioInputStream source = open();
+            if (source != null) {
+                synchronized (this) {
+                    frameSize = Math.max(1,
+                        source.getFormat().getFrameSize());
+                }
+            }
+            // bytes read since the source was opened
+            long passSize = 0;
+            boolean end = (source == null);
+            while (!end) {
+                byte[] buffer;
+                synchronized (this) {
+                    while (numFull == NUM_BUFFERS && !closed) {
+                        try {
+                            wait();
+                        }
+                        catch (InterruptedException ex) { }
+                    }
+                    if (closed) {
+                        break;
+                    }
+                    buffer = buffers[writeIndex];
+                }
+
+                // fill the buffer
+                int length = 0;
+                while (length < buffer.length) {
+                    int count = -1;
+                    try {
+                        count = source.read(buffer, length,
+                            buffer.length - length);
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                    if (count > 0) {
+                        length+=count;
+                        passSize+=count;
+                    }
+                    else if (loop && passSize > 0) {
+                        // start over
+                        close(source);
+                        source = open();
+                        passSize = 0;
+                        if (source == null) {
+                            end = true;
+                            break;
+                        }
+                    }
+                    else {
+                        end = true;
+                        break;
+                    }
+                }
+
+                synchronized (this) {
+                    if (length > 0) {
+                        lengths[writeIndex] = length;
+                        writeIndex = (writeIndex + 1) % NUM_BUFFERS;
+                        numFull++;
+                    }
+                    notifyAll();
+                }
+            }
+            close(source);
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+        }
+
+
+        private void close(AudioInputStream source) {
+            if (source != null) {
+                try {
+                    source.close();
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+
+        /**
+            Reads samples from the ring of buffers. If no buffers
+            are ready, silence is returned (and an underrun is
+            counted, unless the sound hasn't started yet).
+        */
+        public synchronized int read(byte[] b, int offset,
+            int length)
+        {
+            if (closed) {
+                return -1;
+            }
+            if (numFull == 0) {
+                if (ended) {
+                    return -1;
+                }
+                // underrun: play whole frames of silence
+                if (primed) {
+                    underrun();
+                }
+                int silence = length / frameSize * frameSize;
+                if (silence == 0) {
+                    silence = length;
+                }
+                Arrays.fill(b, offset, offset + silence, (byte)0);
+                return silence;
+            }
+
+            int count = 0;
+            while (count < length && numFull > 0) {
+                int size = Math.min(length - count,
+                    lengths[readIndex] - readPosition);
+                System.arraycopy(buffers[readIndex], readPosition,
+                    b, offset + count, size);
+                count+=size;
+                readPosition+=size;
+                if (readPosition == lengths[readIndex]) {
+                    // this buffer is empty; let the decoder
+                    // refill it
+                    readPosition = 0;
+                    readIndex = (readIndex + 1) % NUM_BUFFERS;
+                    numFull--;
+                    notifyAll();
+                }
+            }
+            primed = true;
+            return count;
+        }
+
+
+        public synchronized int available() {
+            int available = -readPosition;
+            for (int i=0; i<numFull; i++) {
+                available+=lengths[(readIndex + i) % NUM_BUFFERS];
+            }
+            return available;
+        }
+
+
+        /**
+            Closes this stream and stops the decoding thread.
+        */
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+}
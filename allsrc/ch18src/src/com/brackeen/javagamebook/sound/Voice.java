@@ -0,0 +1,236 @@
+package com.brackeen.javagamebook.sound;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+    A Voice is one sound playing in a SoundManager: the stream
+    of samples it plays, plus its gain (volume) and pan. The
+    gain and pan can be changed while the Voice plays.
+    <p>Pan only has an effect when the SoundManager mixes its
+    sounds (see SoundMixer), which plays in stereo.
+    <p>When too many sounds are playing, a Voice with a higher
+    priority can cut off (steal) one with a lower priority.
+*/
+public class Voice {
+
+    private InputStream source;
+    private float gain;
+    private float pan;
+    private int priority;
+    private long requestTime;
+    private long startTime;
+    private boolean stopped;
+    private boolean done;
+
+    /**
+        Creates a new Voice that plays the specified stream at
+        full volume, in the center.
+    */
+    public Voice(InputStream source) {
+        this(source, 1, 0);
+    }
+
+
+    /**
+        Creates a new Voice that plays the specified stream with
+        the specified gain and pan.
+    */
+    public Voice(InputStream source, float gain, float pan) {
+        this.source = source;
+        setGain(gain);
+        setPan(pan);
+    }
+
+
+    /**
+        Gets the stream of samples this Voice plays.
+    */
+    public InputStream getSource() {
+        return source;
+    }
+
+
+    /**
+        Sets the gain of this Voice. 1 is full volume, and 0 is
+        silent.
+    */
+    public synchronized void setGain(float gain) {
+        this.gain = Math.max(gain, 0);
+    }
+
+
+    /**
+        Gets the gain of this Voice.
+    */
+    public synchronized float getGain() {
+        return gain;
+    }
+
+
+    /**
+        Sets the pan of this Voice, from -1 (left) to 1 (right).
+        0 is the center.
+    */
+    public synchronized void setPan(float pan) {
+        this.pan = Math.max(-1, Math.min(pan, 1));
+    }
+
+
+    /**
+        Gets the pan of this Voice.
+    */
+    public synchronized float getPan() {
+        return pan;
+    }
+
+
+    /**
+        Sets the priority of this Voice. The default is 0. Set
+        the priority before the Voice is played.
+    */
+    public synchronized void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+
+    /**
+        Gets the priority of this Voice.
+    */
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+
+    /**
+        Sets the time (from System.currentTimeMillis()) this
+        Voice was requested to play.
+    */
+    synchronized void setRequestTime(long requestTime) {
+        this.requestTime = requestTime;
+    }
+
+
+    /**
+        Gets the time this Voice was requested to play.
+    */
+    synchronized long getRequestTime() {
+        return requestTime;
+    }
+
+
+    /**
+        Sets the time this Voice started playing.
+    */
+    synchronized void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+
+    /**
+        Gets the time this Voice started playing, or 0 if it
+        hasn't started yet.
+    */
+    synchronized long getStartTime() {
+        return startTime;
+    }
+
+
+    /**
+        Checks if this Voice should be stolen before the
+        specified Voice: it has a lower priority, or the same
+        priority and a lower gain, or the same priority and gain
+        and started earlier. A Voice that hasn't started yet is
+        the newest.
+    */
+    boolean isStealableBefore(Voice voice) {
+        int priority = getPriority();
+        int otherPriority = voice.getPriority();
+        if (priority != otherPriority) {
+            return (priority < otherPriority);
+        }
+        float gain = getGain();
+        float otherGain = voice.getGain();
+        if (gain != otherGain) {
+            return (gain < otherGain);
+        }
+        long startTime = getStartTime();
+        long otherStartTime = voice.getStartTime();
+        if (startTime == 0) {
+            startTime = Long.MAX_VALUE;
+        }
+        if (otherStartTime == 0) {
+            otherStartTime = Long.MAX_VALUE;
+        }
+        return (startTime < otherStartTime);
+    }
+
+
+    /**
+        Finds the Voice to steal for the specified new Voice, out
+        of a list of playing Voices: the first Voice to steal
+        (see isStealableBefore()) whose priority is no higher
+        than the new Voice's. Stopped Voices are skipped. Returns
+        null if no Voice can be stolen.
+    */
+    static Voice findVoiceToSteal(List voices, Voice newVoice) {
+        Voice victim = null;
+        for (int i=0; i<voices.size(); i++) {
+            Voice voice = (Voice)voices.get(i);
+            if (!voice.isStopped() &&
+                voice.getPriority() <= newVoice.getPriority() &&
+                (victim == null || voice.isStealableBefore(victim)))
+            {
+                victim = voice;
+            }
+        }
+        return victim;
+    }
+
+
+    /**
+        Stops this Voice. It may not stop immediately.
+    */
+    public synchronized void stop() {
+        stopped = true;
+    }
+
+
+    /**
+        Checks if stop() was called on this Voice.
+    */
+    public synchronized boolean isStopped() {
+        return stopped;
+    }
+
+
+    /**
+        Checks if this Voice has finished playing (or was
+        stopped and has been removed).
+    */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+
+    /**
+        Signals that this Voice has finished playing, and closes
+        its stream.
+    */
+    void setDone() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+        }
+        try {
+            source.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
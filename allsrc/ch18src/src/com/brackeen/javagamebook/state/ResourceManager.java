@@ -2,6 +2,7 @@ package com.brackeen.javagamebook.state;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
 import javax.swing.ImageIcon;
@@ -21,7 +22,9 @@ public class ResourceManager {
 
     /**
         Creates a new ResourceManager with the specified
-        GraphicsConfiguration.
+        GraphicsConfiguration. For headless use, the
+        GraphicsConfiguration, SoundManager, and MidiPlayer can
+        be null; sounds and sequences are then not loaded.
     */
     public ResourceManager(GraphicsConfiguration gc,
         SoundManager soundManager, MidiPlayer midiPlayer)
@@ -44,6 +47,15 @@ public class ResourceManager {
     }
 
 
+    /**
+        Gets the GraphicsConfiguration images are created for,
+        or null if there is no display.
+    */
+    public GraphicsConfiguration getGraphicsConfiguration() {
+        return gc;
+    }
+
+
     /**
         Gets an image from the images/ directory.
     */
@@ -73,10 +85,20 @@ public class ResourceManager {
             (y-1) * image.getHeight(null) / 2);
 
         // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
-            image.getWidth(null),
-            image.getHeight(null),
-            Transparency.BITMASK);
+        Image newImage;
+        if (gc != null) {
+            newImage = gc.createCompatibleImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                Transparency.BITMASK);
+        }
+        else {
+            // no display (headless)
+            newImage = new BufferedImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                BufferedImage.TYPE_INT_ARGB);
+        }
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -98,11 +120,34 @@ public class ResourceManager {
 
 
     public Sound loadSound(String name) {
+        if (soundManager == null) {
+            return null;
+        }
         return soundManager.getSound(getResourceAsStream(name));
     }
 
 
+    /**
+        Loads a sound that is decoded as it plays, instead of
+        being loaded into memory. Use it for long sounds like
+        music and ambience.
+    */
+    public Sound loadStreamingSound(String name) {
+        if (soundManager == null) {
+            return null;
+        }
+        URL url = getResource(name);
+        if (url == null) {
+            return null;
+        }
+        return soundManager.getStreamingSound(url);
+    }
+
+
     public Sequence loadSequence(String name) {
+        if (midiPlayer == null) {
+            return null;
+        }
         return midiPlayer.getSequence(getResourceAsStream(name));
     }
 
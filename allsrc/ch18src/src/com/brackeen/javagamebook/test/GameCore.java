@@ -8,6 +8,13 @@ import com.brackeen.javagamebook.graphics.ScreenManager;
 /**
     Simple abstract class used for testing. Subclasses should
     implement the draw() method.
+    <p>By default, update() is called once per frame with the
+    time elapsed since the last frame. In fixed-timestep mode,
+    update() is always called with the same amount of time (one
+    "tick"), as many times as needed to keep up with real time,
+    so the game behaves the same at any frame rate. The time
+    left over that isn't enough for a whole tick is passed to
+    draw() as an interpolation alpha.
 */
 public abstract class GameCore {
 
@@ -25,9 +32,22 @@ public abstract class GameCore {
         new DisplayMode(1024, 768, 24, 0),
     };
 
+    private static final int DEFAULT_TICK_RATE = 100;
+    private static final int DEFAULT_MAX_CATCH_UP_TICKS = 5;
+
+    // sleep until this many nanoseconds before the next frame,
+    // then yield until the frame starts
+    private static final long SLEEP_PRECISION = 2000000;
+
     private boolean isRunning;
     protected ScreenManager screen;
 
+    private boolean fixedTimestep;
+    private long tickTime = 1000 / DEFAULT_TICK_RATE;
+    private int maxCatchUpTicks = DEFAULT_MAX_CATCH_UP_TICKS;
+    private long frameTime;
+    private long numDroppedTicks;
+
 
     /**
         Signals the game loop that it's time to quit
@@ -99,32 +119,161 @@ public abstract class GameCore {
     }
 
 
+    /**
+        Turns fixed-timestep mode on or off.
+    */
+    public void setFixedTimestep(boolean fixedTimestep) {
+        this.fixedTimestep = fixedTimestep;
+    }
+
+
+    /**
+        Checks if fixed-timestep mode is on.
+    */
+    public boolean isFixedTimestep() {
+        return fixedTimestep;
+    }
+
+
+    /**
+        Sets the number of ticks per second in fixed-timestep
+        mode. update() works in whole milliseconds, so the tick
+        time is rounded to a whole number of milliseconds (for
+        example, 60 ticks per second gives 16ms ticks).
+    */
+    public void setTickRate(int ticksPerSecond) {
+        tickTime = Math.max(1, 1000 / ticksPerSecond);
+    }
+
+
+    /**
+        Gets the time of one tick in milliseconds.
+    */
+    public long getTickTime() {
+        return tickTime;
+    }
+
+
+    /**
+        Sets the maximum number of ticks run in one frame in
+        fixed-timestep mode. If the game falls further behind
+        than this (for example, when the computer is too slow),
+        the rest of the time is dropped and the game slows down
+        instead of trying to catch up forever.
+    */
+    public void setMaxCatchUpTicks(int maxCatchUpTicks) {
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+    }
+
+
+    /**
+        Gets the number of ticks dropped because the game fell
+        too far behind.
+    */
+    public long getNumDroppedTicks() {
+        return numDroppedTicks;
+    }
+
+
+    /**
+        Sets the maximum number of frames drawn per second, or
+        0 to draw frames as fast as possible.
+    */
+    public void setMaxFrameRate(int framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            frameTime = 0;
+        }
+        else {
+            frameTime = 1000000000L / framesPerSecond;
+        }
+    }
+
+
     /**
         Runs through the game loop until stop() is called.
     */
     public void gameLoop() {
-        long startTime = System.currentTimeMillis();
-        long currTime = startTime;
+        long currTime = System.nanoTime();
+        long nextFrameTime = currTime;
+        long accumulator = 0;
 
         while (isRunning) {
-            long elapsedTime =
-                System.currentTimeMillis() - currTime;
+            long elapsedTime = System.nanoTime() - currTime;
             currTime += elapsedTime;
 
             // update
-            update(elapsedTime);
+            float alpha = 1;
+            if (fixedTimestep) {
+                // read the tick time every frame, in case
+                // setTickRate() was called
+                long tickTime = this.tickTime;
+                long tickNanos = tickTime * 1000000;
+                accumulator += elapsedTime;
+                int numTicks = 0;
+                while (accumulator >= tickNanos &&
+                    numTicks < maxCatchUpTicks)
+                {
+                    update(tickTime);
+                    accumulator -= tickNanos;
+                    numTicks++;
+                }
+                if (accumulator >= tickNanos) {
+                    // too far behind; drop the whole ticks
+                    numDroppedTicks += accumulator / tickNanos;
+                    accumulator %= tickNanos;
+                }
+                alpha = (float)accumulator / tickNanos;
+            }
+            else {
+                // keep the rounding error for the next frame
+                long elapsedMillis = elapsedTime / 1000000;
+                currTime -= elapsedTime - elapsedMillis * 1000000;
+                update(elapsedMillis);
+            }
 
             // draw the screen
             Graphics2D g = screen.getGraphics();
-            draw(g);
+            draw(g, alpha);
             g.dispose();
             screen.update();
 
-            // don't take a nap! run as fast as possible
-            /*try {
-                Thread.sleep(20);
+            // wait for the next frame, if the frame rate is
+            // limited
+            if (frameTime > 0) {
+                nextFrameTime += frameTime;
+                long now = System.nanoTime();
+                if (nextFrameTime < now - frameTime) {
+                    // fell behind; don't try to catch up
+                    nextFrameTime = now;
+                }
+                waitUntil(nextFrameTime);
+            }
+        }
+    }
+
+
+    /**
+        Waits until System.nanoTime() reaches the specified
+        time. Thread.sleep() isn't precise enough on many
+        systems, so this method sleeps until shortly before
+        the time, then yields until the time is reached.
+    */
+    private void waitUntil(long time) {
+        while (true) {
+            long remaining = time - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            if (remaining > SLEEP_PRECISION) {
+                try {
+                    Thread.sleep((remaining - SLEEP_PRECISION) /
+                        1000000);
+                }
+                catch (InterruptedException ex) { }
+            }
+            else {
+                Thread.yield();
             }
-            catch (InterruptedException ex) { }*/
         }
     }
 
@@ -143,4 +292,16 @@ public abstract class GameCore {
         method.
     */
     public abstract void draw(Graphics2D g);
+
+
+    /**
+        Draws to the screen. In fixed-timestep mode, alpha is
+        the fraction of a tick (from 0 to 1) that has passed
+        since the last update, which can be used to draw moving
+        objects between their last two positions. Otherwise,
+        alpha is 1. By default, this method calls draw(g).
+    */
+    public void draw(Graphics2D g, float alpha) {
+        draw(g);
+    }
 }
@@ -26,25 +26,31 @@ public class GameManager extends GameCore {
     private static final AudioFormat PLAYBACK_FORMAT =
         new AudioFormat(44100, 16, 1, true, false);
 
+    // maximum number of sounds the SoundManager mixes at once
+    private static final int MAX_SOUNDS = 256;
+
 
     private MidiPlayer midiPlayer;
     private SoundManager soundManager;
     private ResourceManager resourceManager;
     private InputManager inputManager;
     private GameStateManager gameStateManager;
+    private MainGameState mainGameState;
     private TimeSmoothie timeSmoothie = new TimeSmoothie();
 
     public void init() {
         log.setLevel(Level.INFO);
 
         log.info("init sound manager");
-        soundManager = new SoundManager(PLAYBACK_FORMAT, 8);
+        soundManager = new SoundManager(PLAYBACK_FORMAT, MAX_SOUNDS,
+            true);
 
         log.info("init midi player");
         midiPlayer = new MidiPlayer();
 
         log.info("init gamecore");
         super.init();
+        setFixedTimestep(true);
 
         log.info("init input manager");
         inputManager = new InputManager(
@@ -61,9 +67,10 @@ public class GameManager extends GameCore {
         log.info("init game states");
         gameStateManager = new GameStateManager(inputManager,
             resourceManager.loadImage("loadingsplash.jpg"));
-        gameStateManager.addState(new MainGameState(
+        mainGameState = new MainGameState(
             soundManager, midiPlayer,
-            screen.getWidth(), screen.getHeight()));
+            screen.getWidth(), screen.getHeight());
+        gameStateManager.addState(mainGameState);
         gameStateManager.addState(
             new SplashGameState("gamesplash.jpg"));
 
@@ -96,7 +103,9 @@ public class GameManager extends GameCore {
             stop();
         }
         else {
-            elapsedTime = timeSmoothie.getTime(elapsedTime);
+            if (!isFixedTimestep()) {
+                elapsedTime = timeSmoothie.getTime(elapsedTime);
+            }
             gameStateManager.update(elapsedTime);
         }
     }
@@ -107,5 +116,11 @@ public class GameManager extends GameCore {
     }
 
 
+    public void draw(Graphics2D g, float alpha) {
+        mainGameState.setInterpolation(alpha);
+        draw(g);
+    }
+
+
 
 }
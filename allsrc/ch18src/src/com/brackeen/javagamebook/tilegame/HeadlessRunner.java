@@ -0,0 +1,404 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+import com.brackeen.javagamebook.input.GameAction;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.util.ThreadPool;
+
+/**
+    The HeadlessRunner runs the tile game without a display,
+    input devices, or sound, as fast as the CPU allows. It's
+    used for automated test runs over many maps: each map is
+    loaded with a TileGameResourceManager, a scripted
+    InputScript presses the game's GameActions, and
+    MainGameState.update() is called with a fixed tick until
+    the requested number of ticks has run. Several maps can be
+    run at the same time on separate threads.
+    <p>Run with -Djava.awt.headless=true, with the chapter
+    directory (containing images/ and maps/) in the classpath:
+    <pre>
+    java -Djava.awt.headless=true
+        com.brackeen.javagamebook.tilegame.HeadlessRunner
+        [-ticks n] [-threads n] [-updateThreads n]
+        [-script script] [-stream] map numbers...
+    </pre>
+    With -stream, compiled maps of any width are streamed with
+    a TileMapStreamer. -updateThreads sets the number of threads
+    each map uses to update its sprites (the default is 1, since
+    the maps already run in parallel).
+*/
+public class HeadlessRunner {
+
+    public static final long TICK_TIME = 10;
+
+    private static final int DEFAULT_NUM_TICKS = 100000;
+
+    // the screen size the game "draws" to
+    private static final int SCREEN_WIDTH = 800;
+    private static final int SCREEN_HEIGHT = 600;
+
+    private boolean streaming;
+    private int numUpdateThreads = 1;
+
+    public static void main(String[] args) {
+        int numTicks = DEFAULT_NUM_TICKS;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String script = InputScript.DEFAULT_SCRIPT;
+        boolean stream = false;
+        int numUpdateThreads = 1;
+        ArrayList maps = new ArrayList();
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-ticks")) {
+                numTicks = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-threads")) {
+                numThreads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-updateThreads")) {
+                numUpdateThreads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-script")) {
+                script = args[++i];
+            }
+            else if (args[i].equals("-stream")) {
+                stream = true;
+            }
+            else {
+                maps.add(Integer.valueOf(args[i]));
+            }
+        }
+        if (maps.isEmpty()) {
+            maps.add(Integer.valueOf(1));
+        }
+
+        int[] mapNumbers = new int[maps.size()];
+        for (int i=0; i<mapNumbers.length; i++) {
+            mapNumbers[i] = ((Integer)maps.get(i)).intValue();
+        }
+
+        long startTime = System.currentTimeMillis();
+        HeadlessRunner runner = new HeadlessRunner();
+        runner.setStreaming(stream);
+        runner.setNumUpdateThreads(numUpdateThreads);
+        Result[] results = runner.runAll(mapNumbers,
+            numTicks, new InputScript(script), numThreads);
+        long totalTime = System.currentTimeMillis() - startTime;
+
+        long totalTicks = 0;
+        for (int i=0; i<results.length; i++) {
+            System.out.println(results[i]);
+            totalTicks+=results[i].numTicks;
+        }
+        System.out.println("Total: " + totalTicks + " ticks in " +
+            totalTime + "ms (" +
+            (totalTicks * 1000 / Math.max(1, totalTime)) +
+            " ticks/sec) on " + numThreads + " thread(s)");
+    }
+
+
+    /**
+        A script of GameAction events. Each event is a time (in
+        milliseconds of game time), the name of a GameAction, and
+        a command ("press", "release", or "tap"). The script can
+        repeat with a period. A script is written as a
+        comma-separated list of events, optionally ending with
+        "repeat" and a period, for example:
+        <pre>
+        0 moveRight press, 600 jump tap, repeat 1200
+        </pre>
+    */
+    public static class InputScript {
+
+        public static final String DEFAULT_SCRIPT =
+            "0 moveRight press, 700 jump tap, 1500 jump tap, " +
+            "repeat 2000";
+
+        private static final int PRESS = 0;
+        private static final int RELEASE = 1;
+        private static final int TAP = 2;
+
+        private long[] times;
+        private String[] actions;
+        private int[] commands;
+        private long period;
+
+        /**
+            Creates a new InputScript from a script string.
+            @throws IllegalArgumentException if the script can't
+            be parsed.
+        */
+        public InputScript(String script) {
+            ArrayList events = new ArrayList();
+            StringTokenizer st = new StringTokenizer(script, ",");
+            while (st.hasMoreTokens()) {
+                String[] event = split(st.nextToken());
+                if (event.length == 2 && event[0].equals("repeat")) {
+                    period = Long.parseLong(event[1]);
+                }
+                else if (event.length == 3) {
+                    events.add(event);
+                }
+                else if (event.length > 0) {
+                    throw new IllegalArgumentException(
+                        "Bad event in script: " + script);
+                }
+            }
+
+            times = new long[events.size()];
+            actions = new String[events.size()];
+            commands = new int[events.size()];
+            for (int i=0; i<events.size(); i++) {
+                String[] event = (String[])events.get(i);
+                times[i] = Long.parseLong(event[0]);
+                actions[i] = event[1];
+                if (event[2].equals("press")) {
+                    commands[i] = PRESS;
+                }
+                else if (event[2].equals("release")) {
+                    commands[i] = RELEASE;
+                }
+                else if (event[2].equals("tap")) {
+                    commands[i] = TAP;
+                }
+                else {
+                    throw new IllegalArgumentException(
+                        "Bad command in script: " + event[2]);
+                }
+            }
+        }
+
+
+        private static String[] split(String s) {
+            StringTokenizer st = new StringTokenizer(s);
+            String[] tokens = new String[st.countTokens()];
+            for (int i=0; i<tokens.length; i++) {
+                tokens[i] = st.nextToken();
+            }
+            return tokens;
+        }
+
+
+        /**
+            Sends the events from the time span [startTime,
+            endTime) to the GameActions of a MainGameState.
+        */
+        public void apply(MainGameState state, long startTime,
+            long endTime)
+        {
+            if (period > 0) {
+                // move to the repetition the time span starts in
+                long offset = startTime - startTime % period;
+                startTime-=offset;
+                endTime-=offset;
+                if (endTime > period) {
+                    // the span crosses into the next repetition
+                    applyEvents(state, startTime, period);
+                    applyEvents(state, 0, endTime - period);
+                    return;
+                }
+            }
+            applyEvents(state, startTime, endTime);
+        }
+
+
+        private void applyEvents(MainGameState state, long startTime,
+            long endTime)
+        {
+            for (int i=0; i<times.length; i++) {
+                if (times[i] >= startTime && times[i] < endTime) {
+                    GameAction action =
+                        state.getGameAction(actions[i]);
+                    if (action == null) {
+                        continue;
+                    }
+                    if (commands[i] == PRESS) {
+                        action.press();
+                    }
+                    else if (commands[i] == RELEASE) {
+                        action.release();
+                    }
+                    else {
+                        action.tap();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        The results of running one map.
+    */
+    public static class Result {
+
+        int mapNumber;
+        long numTicks;
+        long time;
+        int numDeaths;
+        int numCompletions;
+        long numActiveCreatures;
+        long numDormantCreatures;
+        String error;
+
+        /**
+            Gets the number of ticks run per second of real
+            time.
+        */
+        public float getTicksPerSecond() {
+            return (time == 0) ? 0 : numTicks * 1000000000f / time;
+        }
+
+
+        /**
+            Gets the average number of active creatures per
+            tick.
+        */
+        public float getAverageActiveCreatures() {
+            return (numTicks == 0) ? 0 :
+                (float)numActiveCreatures / numTicks;
+        }
+
+
+        /**
+            Gets the average number of dormant creatures per
+            tick.
+        */
+        public float getAverageDormantCreatures() {
+            return (numTicks == 0) ? 0 :
+                (float)numDormantCreatures / numTicks;
+        }
+
+        public String toString() {
+            if (error != null) {
+                return "Map " + mapNumber + ": " + error;
+            }
+            return "Map " + mapNumber + ": " + numTicks +
+                " ticks in " + (time / 1000000) + "ms (" +
+                Math.round(getTicksPerSecond()) + " ticks/sec), " +
+                numDeaths + " deaths, " + numCompletions +
+                " completions, " +
+                Math.round(getAverageActiveCreatures()) + " active/" +
+                Math.round(getAverageDormantCreatures()) +
+                " dormant creatures";
+        }
+    }
+
+
+    /**
+        Sets whether every compiled map is streamed, no matter
+        how wide it is.
+    */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+
+    /**
+        Sets the number of threads each map uses to update its
+        sprites.
+    */
+    public void setNumUpdateThreads(int numUpdateThreads) {
+        this.numUpdateThreads = numUpdateThreads;
+    }
+
+
+    /**
+        Runs the specified maps, using a pool of threads (or the
+        current thread, if numThreads is 0), and returns the
+        results in the same order as the maps.
+    */
+    public Result[] runAll(int[] mapNumbers, final long numTicks,
+        final InputScript script, int numThreads)
+    {
+        final Result[] results = new Result[mapNumbers.length];
+        ThreadPool threadPool = null;
+        if (numThreads > 0) {
+            threadPool = new ThreadPool(
+                Math.min(numThreads, mapNumbers.length));
+        }
+        for (int i=0; i<mapNumbers.length; i++) {
+            final int index = i;
+            final int mapNumber = mapNumbers[i];
+            Runnable task = new Runnable() {
+                public void run() {
+                    results[index] =
+                        HeadlessRunner.this.run(mapNumber, numTicks, script);
+                }
+            };
+            if (threadPool != null) {
+                threadPool.runTask(task);
+            }
+            else {
+                task.run();
+            }
+        }
+        if (threadPool != null) {
+            threadPool.join();
+        }
+        return results;
+    }
+
+
+    /**
+        Runs one map for the specified number of ticks. If the
+        player finishes the map, the map starts over.
+    */
+    public Result run(int mapNumber, long numTicks,
+        InputScript script)
+    {
+        Result result = new Result();
+        result.mapNumber = mapNumber;
+
+        // load resources without a display or sound
+        TileGameResourceManager resourceManager =
+            new TileGameResourceManager(null, null, null);
+        if (streaming) {
+            resourceManager.setStreamingWidth(0);
+        }
+        MainGameState state = new MainGameState(null, null,
+            SCREEN_WIDTH, SCREEN_HEIGHT);
+        state.setNumUpdateThreads(numUpdateThreads);
+        state.loadResources(resourceManager);
+        TileMap map = resourceManager.loadMap(mapNumber);
+        if (map == null) {
+            result.error = "couldn't load map";
+            resourceManager.close();
+            return result;
+        }
+        state.setMap(map);
+
+        long gameTime = 0;
+        long startTime = System.nanoTime();
+        for (long tick=0; tick<numTicks; tick++) {
+            script.apply(state, gameTime, gameTime + TICK_TIME);
+
+            Creature player = (Creature)map.getPlayer();
+            boolean isDead = (player.getState() == Creature.STATE_DEAD);
+            state.update(TICK_TIME);
+            gameTime+=TICK_TIME;
+            result.numActiveCreatures+=state.getNumActiveCreatures();
+            result.numDormantCreatures+=state.getNumDormantCreatures();
+
+            if (state.getMap() != map) {
+                if (isDead) {
+                    // the map was reloaded
+                    result.numDeaths++;
+                }
+                else {
+                    // the goal was reached; start the map over
+                    result.numCompletions++;
+                    state.setMap(resourceManager.loadMap(mapNumber));
+                }
+                map = state.getMap();
+            }
+        }
+        result.time = System.nanoTime() - startTime;
+        result.numTicks = numTicks;
+        state.stop();
+        resourceManager.close();
+        return result;
+    }
+
+}
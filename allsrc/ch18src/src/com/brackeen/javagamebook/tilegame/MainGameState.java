@@ -2,6 +2,7 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
 import java.util.Iterator;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
@@ -12,6 +13,7 @@ import com.brackeen.javagamebook.sound.*;
 import com.brackeen.javagamebook.input.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 import com.brackeen.javagamebook.state.*;
+import com.brackeen.javagamebook.util.ParallelLoop;
 
 public class MainGameState implements GameState {
 
@@ -19,6 +21,30 @@ public class MainGameState implements GameState {
 
     public static final float GRAVITY = 0.002f;
 
+    // creatures closer than this (in tiles) chase the player
+    private static final int CHASE_DISTANCE = 12;
+    private static final long PATH_RECALC_TIME = 500;
+    // paths are only searched for this many tiles beyond the
+    // creature and the player, so a creature that can't reach
+    // the player doesn't search the whole map
+    private static final int PATH_SEARCH_MARGIN = CHASE_DISTANCE;
+
+    // number of sprites each thread updates at a time in the
+    // parallel update phase
+    private static final int UPDATE_BATCH_SIZE = 32;
+
+    // creatures further than this (in pixels) from the edges of
+    // the screen are dormant. Creatures close enough to chase
+    // the player stay awake.
+    public static final int DEFAULT_ACTIVITY_MARGIN =
+        TileMapRenderer.tilesToPixels(CHASE_DISTANCE);
+
+    // when a dormant creature becomes active, up to this much
+    // of the time it missed (in milliseconds) is replayed, in
+    // steps of CATCH_UP_STEP
+    private static final long MAX_CATCH_UP_TIME = 1000;
+    private static final long CATCH_UP_STEP = 50;
+
 
     private SoundManager soundManager;
     private MidiPlayer midiPlayer;
@@ -27,11 +53,27 @@ public class MainGameState implements GameState {
     private int height;
 
     private Point pointCache = new Point();
+    private ArrayList spriteCache = new ArrayList();
     private Sound prizeSound;
     private Sound boopSound;
     private Sequence music;
     private TileMap map;
+    // the player reached the goal; the next map is loaded at
+    // the start of the next update
+    private boolean goalReached;
     private TileMapRenderer renderer;
+    private TilePathFinder pathFinder;
+    private long pathRecalcTimer;
+    private int pathMapModCount;
+
+    private int numUpdateThreads;
+    private ParallelLoop updateLoop;
+    private TileSweep[] updateSweeps;
+    private ArrayList updateList = new ArrayList();
+    private SpriteUpdater spriteUpdater = new SpriteUpdater();
+    private int activityMargin = DEFAULT_ACTIVITY_MARGIN;
+    private int numActiveCreatures;
+    private int numDormantCreatures;
 
     private String stateChange;
 
@@ -55,9 +97,78 @@ public class MainGameState implements GameState {
             GameAction.DETECT_INITAL_PRESS_ONLY);
 
         renderer = new TileMapRenderer();
+        pathFinder = new TilePathFinder();
+        pathFinder.setSearchMargin(PATH_SEARCH_MARGIN);
+        setNumUpdateThreads(
+            Runtime.getRuntime().availableProcessors());
         toggleDrumPlayback();
     }
 
+
+    /**
+        Sets the number of threads that update the sprites
+        (other than the player). The default is the number of
+        processors. With one thread, the sprites are updated on
+        the game thread only. The results are the same for any
+        number of threads.
+    */
+    public void setNumUpdateThreads(int numUpdateThreads) {
+        this.numUpdateThreads = Math.max(1, numUpdateThreads);
+        updateSweeps = new TileSweep[this.numUpdateThreads];
+        for (int i=0; i<updateSweeps.length; i++) {
+            updateSweeps[i] = new TileSweep();
+        }
+        if (updateLoop != null) {
+            updateLoop.close();
+            updateLoop = null;
+        }
+    }
+
+
+    /**
+        Gets the number of threads that update the sprites.
+    */
+    public int getNumUpdateThreads() {
+        return numUpdateThreads;
+    }
+
+
+    /**
+        Sets the activity margin, in pixels. Creatures further
+        than this from the left or right edge of the screen are
+        dormant: they aren't moved or animated until they come
+        closer. A negative margin keeps every creature active.
+    */
+    public void setActivityMargin(int activityMargin) {
+        this.activityMargin = activityMargin;
+    }
+
+
+    /**
+        Gets the activity margin, in pixels.
+    */
+    public int getActivityMargin() {
+        return activityMargin;
+    }
+
+
+    /**
+        Gets the number of creatures (not counting the player)
+        that were updated in the last update.
+    */
+    public int getNumActiveCreatures() {
+        return numActiveCreatures;
+    }
+
+
+    /**
+        Gets the number of creatures that were dormant in the
+        last update.
+    */
+    public int getNumDormantCreatures() {
+        return numDormantCreatures;
+    }
+
     public String getName() {
         return "Main";
     }
@@ -77,7 +188,7 @@ public class MainGameState implements GameState {
             resourceManager.loadImage("background.png"));
 
         // load first map
-        map = resourceManager.loadNextMap();
+        setMap(resourceManager.loadNextMap());
 
         // load sounds
         prizeSound = resourceManager.loadSound("sounds/prize.wav");
@@ -92,15 +203,29 @@ public class MainGameState implements GameState {
         inputManager.mapToKey(jump, KeyEvent.VK_UP);
         inputManager.mapToKey(exit, KeyEvent.VK_ESCAPE);
 
-        soundManager.setPaused(false);
-        midiPlayer.setPaused(false);
-        midiPlayer.play(music, true);
+        if (soundManager != null) {
+            soundManager.setPaused(false);
+        }
+        if (midiPlayer != null) {
+            midiPlayer.setPaused(false);
+            midiPlayer.play(music, true);
+        }
         toggleDrumPlayback();
     }
 
     public void stop() {
-        soundManager.setPaused(true);
-        midiPlayer.setPaused(true);
+        if (soundManager != null) {
+            soundManager.setPaused(true);
+        }
+        if (midiPlayer != null) {
+            midiPlayer.setPaused(true);
+        }
+        // stop the update threads; they're started again on the
+        // next update
+        if (updateLoop != null) {
+            updateLoop.close();
+            updateLoop = null;
+        }
     }
 
 
@@ -109,10 +234,78 @@ public class MainGameState implements GameState {
     }
 
 
+    /**
+        Sets the interpolation alpha used to draw Sprites
+        between their last two positions.
+    */
+    public void setInterpolation(float alpha) {
+        renderer.setInterpolation(alpha);
+    }
+
+
+    /**
+        Gets the current map.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Sets the current map. The Sprites of the old map are
+        returned to the ResourceManager's pools, and if the old
+        map was streamed, its TileMapStreamer is closed.
+    */
+    public void setMap(TileMap map) {
+        if (this.map != null && this.map != map) {
+            if (this.map.getStreamer() != null) {
+                this.map.getStreamer().close();
+            }
+            // reuse the old map's sprites
+            resourceManager.releaseMap(this.map);
+        }
+        this.map = map;
+        goalReached = false;
+        if (map != null && map.getStreamer() != null) {
+            map.getStreamer().setChunkCache(renderer.getChunkCache());
+        }
+    }
+
+
+    /**
+        Gets the GameAction with the specified name ("moveLeft",
+        "moveRight", "jump", or "exit"), so input can be sent to
+        this state without an InputManager. Returns null if
+        there's no GameAction with the name.
+    */
+    public GameAction getGameAction(String name) {
+        GameAction[] actions = { moveLeft, moveRight, jump, exit };
+        for (int i=0; i<actions.length; i++) {
+            if (actions[i].getName().equals(name)) {
+                return actions[i];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+        Plays a sound, if this state has a SoundManager.
+    */
+    private void playSound(Sound sound, SoundFilter filter) {
+        if (soundManager != null) {
+            soundManager.play(sound, filter, false);
+        }
+    }
+
+
     /**
         Turns on/off drum playback in the midi music (track 1).
     */
     public void toggleDrumPlayback() {
+        if (midiPlayer == null) {
+            return;
+        }
         Sequencer sequencer = midiPlayer.getSequencer();
         if (sequencer != null) {
             sequencer.setTrackMute(DRUM_TRACK,
@@ -166,12 +359,19 @@ public class MainGameState implements GameState {
         int toTileY = TileMapRenderer.pixelsToTiles(
             toY + sprite.getHeight() - 1);
 
-        // check each tile for a collision
+        // check each tile for a collision. Tiles above and below
+        // the map are empty.
+        int mapWidth = map.getWidth();
+        int firstY = Math.max(fromTileY, 0);
+        int lastY = Math.min(toTileY, map.getHeight() - 1);
         for (int x=fromTileX; x<=toTileX; x++) {
-            for (int y=fromTileY; y<=toTileY; y++) {
-                if (x < 0 || x >= map.getWidth() ||
-                    map.getTile(x, y) != null)
-                {
+            if (x < 0 || x >= mapWidth) {
+                // collision with the edge of the map
+                pointCache.setLocation(x, fromTileY);
+                return pointCache;
+            }
+            for (int y=firstY; y<=lastY; y++) {
+                if (map.isSolidUnchecked(x, y)) {
                     // collision found, return the tile
                     pointCache.setLocation(x, y);
                     return pointCache;
@@ -223,17 +423,22 @@ public class MainGameState implements GameState {
     */
     public Sprite getSpriteCollision(Sprite sprite) {
 
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
+        // run through the list of Sprites near the Sprite
+        spriteCache.clear();
+        map.getSprites(Math.round(sprite.getX()),
+            Math.round(sprite.getY()), sprite.getWidth(),
+            sprite.getHeight(), spriteCache);
+        for (int i=0; i<spriteCache.size(); i++) {
+            Sprite otherSprite = (Sprite)spriteCache.get(i);
             if (isCollision(sprite, otherSprite)) {
                 // collision found, return the Sprite
+                spriteCache.clear();
                 return otherSprite;
             }
         }
 
         // no collision found
+        spriteCache.clear();
         return null;
     }
 
@@ -243,47 +448,210 @@ public class MainGameState implements GameState {
         in the current map.
     */
     public void update(long elapsedTime) {
+        // player reached the goal last update: go to the next
+        // map. The map isn't switched in the middle of an update,
+        // because the old map's Sprites (including the player)
+        // are released to their pools.
+        if (goalReached) {
+            setMap(resourceManager.loadNextMap());
+            return;
+        }
+
         Creature player = (Creature)map.getPlayer();
 
 
         // player is dead! start map over
         if (player.getState() == Creature.STATE_DEAD) {
-            map = resourceManager.reloadMap();
+            setMap(resourceManager.reloadMap());
             return;
         }
 
+        // stream in the tiles and sprites around the player
+        if (map.getStreamer() != null) {
+            map.getStreamer().update();
+        }
+
         // get keyboard/mouse input
         checkInput(elapsedTime);
 
         // update player
-        updateCreature(player, elapsedTime);
+        player.savePosition();
+        updateCreature(player, elapsedTime, updateSweeps[0]);
         player.update(elapsedTime);
 
-        // update other sprites
+        // check if it's time to find new paths
+        pathRecalcTimer-=elapsedTime;
+        boolean recalcPaths = (pathRecalcTimer <= 0);
+        if (recalcPaths) {
+            pathRecalcTimer = PATH_RECALC_TIME;
+            if (pathFinder.getMap() != map ||
+                pathMapModCount != map.getModCount())
+            {
+                pathFinder.setMap(map);
+                pathMapModCount = map.getModCount();
+            }
+        }
+
+        // get the part of the map on screen (the same view the
+        // renderer draws), and the activity region: the screen
+        // plus the margin
+        int screenLeft = -TileMapRenderer.getOffsetX(map, width,
+            Math.round(player.getX()));
+        int screenRight = screenLeft + width;
+        int activeLeft = Integer.MIN_VALUE;
+        int activeRight = Integer.MAX_VALUE;
+        if (activityMargin >= 0) {
+            activeLeft = screenLeft - activityMargin;
+            activeRight = screenRight + activityMargin;
+        }
+        numActiveCreatures = 0;
+        numDormantCreatures = 0;
+
+        // update other sprites in three phases. First, on this
+        // thread: remove dead creatures, put creatures outside
+        // the activity region to sleep, wake up the creatures on
+        // screen, and find paths (the path finder isn't
+        // thread-safe). Creatures are woken up here rather than
+        // when they're drawn, so a game that isn't drawn (like
+        // the HeadlessRunner) plays the same.
+        updateList.clear();
         Iterator i = map.getSprites();
         while (i.hasNext()) {
             Sprite sprite = (Sprite)i.next();
+            sprite.savePosition();
             if (sprite instanceof Creature) {
                 Creature creature = (Creature)sprite;
                 if (creature.getState() == Creature.STATE_DEAD) {
                     i.remove();
+                    resourceManager.releaseSprite(creature);
+                    continue;
+                }
+                int x = Math.round(creature.getX());
+                if (x + creature.getWidth() <= activeLeft ||
+                    x >= activeRight)
+                {
+                    // dormant
+                    creature.setDormantTime(
+                        creature.getDormantTime() + elapsedTime);
+                    numDormantCreatures++;
+                    continue;
+                }
+                numActiveCreatures++;
+                if (x >= screenLeft && x < screenRight) {
+                    creature.wakeUp();
                 }
-                else {
-                    updateCreature(creature, elapsedTime);
+                if (recalcPaths) {
+                    updatePath(creature, player);
                 }
             }
-            // normal update
-            sprite.update(elapsedTime);
+            updateList.add(sprite);
+        }
+
+        // Second, in parallel: move the sprites and check tile
+        // collisions. Each sprite only changes itself and only
+        // reads the tiles, so the batches are independent. Each
+        // thread has its own TileSweep.
+        spriteUpdater.elapsedTime = elapsedTime;
+        if (numUpdateThreads > 1 && updateLoop == null) {
+            updateLoop = new ParallelLoop(numUpdateThreads);
+        }
+        if (updateLoop != null) {
+            updateLoop.run(updateList.size(), UPDATE_BATCH_SIZE,
+                spriteUpdater);
+        }
+        else {
+            spriteUpdater.run(0, updateList.size(), 0);
+        }
+
+        // Third, on this thread, in map order: update the
+        // sprite locations in the map.
+        for (int j=0; j<updateList.size(); j++) {
+            map.updateSprite((Sprite)updateList.get(j));
+        }
+        updateList.clear();
+    }
+
+
+    /**
+        Updates a range of the sprites in the update list. Used
+        for the parallel phase of update().
+    */
+    private class SpriteUpdater implements ParallelLoop.Body {
+
+        long elapsedTime;
+
+        public void run(int start, int end, int worker) {
+            TileSweep sweep = updateSweeps[worker];
+            for (int i=start; i<end; i++) {
+                Sprite sprite = (Sprite)updateList.get(i);
+                if (sprite instanceof Creature) {
+                    Creature creature = (Creature)sprite;
+                    if (creature.getDormantTime() > 0) {
+                        catchUp(creature, sweep);
+                    }
+                    creature.followPath();
+                    updateCreature(creature, elapsedTime, sweep);
+                }
+                // normal update
+                sprite.update(elapsedTime);
+            }
+        }
+    }
+
+
+    /**
+        Catches up a creature that was dormant and just became
+        active. Up to MAX_CATCH_UP_TIME of the missed time is
+        replayed in large steps (without following a path), so
+        a creature that was falling or walking when it fell
+        asleep ends up about where it would have been. The
+        animation and state timer are advanced by all of the
+        missed time.
+    */
+    private void catchUp(Creature creature, TileSweep sweep) {
+        long dormantTime = creature.getDormantTime();
+        creature.setDormantTime(0);
+        long time = Math.min(dormantTime, MAX_CATCH_UP_TIME);
+        while (time > 0) {
+            long step = Math.min(time, CATCH_UP_STEP);
+            updateCreature(creature, step, sweep);
+            time-=step;
+        }
+        creature.update(dormantTime);
+        // don't draw a streak from the old location
+        creature.savePosition();
+    }
+
+
+    /**
+        Finds a path to the player for an awake creature that
+        is close to the player. Creatures further away stop
+        following their path.
+    */
+    private void updatePath(Creature creature, Creature player) {
+        TilePath path = creature.getPath();
+        boolean awake = (creature.getVelocityX() != 0 ||
+            creature.getVelocityY() != 0);
+        int distance = TileMapRenderer.pixelsToTiles(
+            Math.abs(creature.getX() - player.getX()));
+        if (awake && creature.isAlive() && player.isAlive() &&
+            distance <= CHASE_DISTANCE)
+        {
+            pathFinder.findPath(creature, player, path);
+        }
+        else {
+            path.clear();
         }
     }
 
 
     /**
         Updates the creature, applying gravity for creatures that
-        aren't flying, and checks collisions.
+        aren't flying, and checks collisions. The tile collisions
+        for both axes are found with one sweep.
     */
     private void updateCreature(Creature creature,
-        long elapsedTime)
+        long elapsedTime, TileSweep sweep)
     {
 
         // apply gravity
@@ -292,26 +660,15 @@ public class MainGameState implements GameState {
                 GRAVITY * elapsedTime);
         }
 
+        // move through the tiles
+        float oldY = creature.getY();
+        sweep.sweep(map, creature,
+            creature.getVelocityX() * elapsedTime,
+            creature.getVelocityY() * elapsedTime);
+
         // change x
-        float dx = creature.getVelocityX();
-        float oldX = creature.getX();
-        float newX = oldX + dx * elapsedTime;
-        Point tile =
-            getTileCollision(creature, newX, creature.getY());
-        if (tile == null) {
-            creature.setX(newX);
-        }
-        else {
-            // line up with the tile boundary
-            if (dx > 0) {
-                creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x) -
-                    creature.getWidth());
-            }
-            else if (dx < 0) {
-                creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x + 1));
-            }
+        creature.setX(sweep.getX());
+        if (sweep.isCollisionX()) {
             creature.collideHorizontal();
         }
         if (creature instanceof Player) {
@@ -319,24 +676,8 @@ public class MainGameState implements GameState {
         }
 
         // change y
-        float dy = creature.getVelocityY();
-        float oldY = creature.getY();
-        float newY = oldY + dy * elapsedTime;
-        tile = getTileCollision(creature, creature.getX(), newY);
-        if (tile == null) {
-            creature.setY(newY);
-        }
-        else {
-            // line up with the tile boundary
-            if (dy > 0) {
-                creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y) -
-                    creature.getHeight());
-            }
-            else if (dy < 0) {
-                creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y + 1));
-            }
+        creature.setY(sweep.getY());
+        if (sweep.isCollisionY()) {
             creature.collideVertical();
         }
         if (creature instanceof Player) {
@@ -368,7 +709,7 @@ public class MainGameState implements GameState {
             Creature badguy = (Creature)collisionSprite;
             if (canKill) {
                 // kill the badguy and make player bounce
-                soundManager.play(boopSound);
+                playSound(boopSound, null);
                 badguy.setState(Creature.STATE_DYING);
                 player.setY(badguy.getY() - player.getHeight());
                 player.jump(true);
@@ -383,26 +724,27 @@ public class MainGameState implements GameState {
 
     /**
         Gives the player the speicifed power up and removes it
-        from the map.
+        from the map. If the power up is the goal, the next map
+        is loaded at the start of the next update.
     */
     public void acquirePowerUp(PowerUp powerUp) {
         // remove it from the map
         map.removeSprite(powerUp);
+        resourceManager.releaseSprite(powerUp);
 
         if (powerUp instanceof PowerUp.Star) {
             // do something here, like give the player points
-            soundManager.play(prizeSound);
+            playSound(prizeSound, null);
         }
         else if (powerUp instanceof PowerUp.Music) {
             // change the music
-            soundManager.play(prizeSound);
+            playSound(prizeSound, null);
             toggleDrumPlayback();
         }
         else if (powerUp instanceof PowerUp.Goal) {
             // advance to next map
-            soundManager.play(prizeSound,
-                new EchoFilter(2000, .7f), false);
-            map = resourceManager.loadNextMap();
+            playSound(prizeSound, new EchoFilter(2000, .7f));
+            goalReached = true;
         }
     }
 
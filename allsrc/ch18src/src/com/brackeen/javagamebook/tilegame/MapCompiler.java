@@ -0,0 +1,148 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+    The MapCompiler compiles text map files (like maps/map1.txt)
+    into a compact binary format that can be loaded without
+    parsing. A compiled map file has the same name as the text
+    file, with a ".map" extension instead of ".txt".
+    <p>The format (all numbers big-endian) is:<pre>
+    int    MAGIC
+    int    VERSION
+    int    width (in tiles)
+    int    height (in tiles)
+    int    number of sprite spawns
+    short  tile ids, width * height, row-major (0 is empty,
+           1 is tile A, 2 is tile B, etc.)
+    spawns, each:
+        byte  the map character of the sprite ('o', '!', etc.)
+        int   tile x
+        int   tile y
+    </pre>
+    Usage: <code>MapCompiler [text map files...]</code>. With
+    no arguments, every map*.txt file in the maps/ directory is
+    compiled.
+*/
+public class MapCompiler {
+
+    public static final int MAGIC = 0x544d4150; // "TMAP"
+    public static final int VERSION = 1;
+
+    // size of the header in bytes
+    public static final int HEADER_SIZE = 20;
+
+    // size of a spawn in bytes
+    public static final int SPAWN_SIZE = 9;
+
+    public static void main(String[] args) throws IOException {
+        File[] files;
+        if (args.length == 0) {
+            files = new File("maps").listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.startsWith("map") &&
+                        name.endsWith(".txt");
+                }
+            });
+            if (files == null) {
+                System.out.println("No maps/ directory found.");
+                return;
+            }
+        }
+        else {
+            files = new File[args.length];
+            for (int i=0; i<args.length; i++) {
+                files[i] = new File(args[i]);
+            }
+        }
+
+        for (int i=0; i<files.length; i++) {
+            String name = files[i].getPath();
+            File outFile = new File(
+                name.substring(0, name.length() - 4) + ".map");
+            compile(files[i], outFile);
+            System.out.println("Compiled " + files[i] + " to " +
+                outFile + " (" + outFile.length() + " bytes)");
+        }
+    }
+
+
+    /**
+        Compiles a text map file to a binary map file.
+    */
+    public static void compile(File inFile, File outFile)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(inFile);
+        OutputStream out = new BufferedOutputStream(
+            new FileOutputStream(outFile));
+        try {
+            compile(in, out);
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    /**
+        Compiles a text map from an InputStream and writes the
+        binary map to an OutputStream.
+    */
+    public static void compile(InputStream in, OutputStream out)
+        throws IOException
+    {
+        // read every line except for comments
+        ArrayList lines = new ArrayList();
+        int width = 0;
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in));
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            if (!line.startsWith("#")) {
+                lines.add(line);
+                width = Math.max(width, line.length());
+            }
+        }
+        int height = lines.size();
+
+        // convert the chars to tile ids and spawns
+        short[] tiles = new short[width * height];
+        ByteArrayOutputStream spawnBytes = new ByteArrayOutputStream();
+        DataOutputStream spawns = new DataOutputStream(spawnBytes);
+        int numSpawns = 0;
+        for (int y=0; y<height; y++) {
+            String line = (String)lines.get(y);
+            for (int x=0; x<line.length(); x++) {
+                char ch = line.charAt(x);
+                if (ch >= 'A' && ch <= 'Z') {
+                    tiles[x + y * width] = (short)(ch - 'A' + 1);
+                }
+                else if (ch != ' ') {
+                    spawns.writeByte(ch);
+                    spawns.writeInt(x);
+                    spawns.writeInt(y);
+                    numSpawns++;
+                }
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeInt(numSpawns);
+        for (int i=0; i<tiles.length; i++) {
+            data.writeShort(tiles[i]);
+        }
+        spawnBytes.writeTo(data);
+        data.flush();
+    }
+
+}
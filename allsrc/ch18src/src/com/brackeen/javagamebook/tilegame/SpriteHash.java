@@ -0,0 +1,229 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteHash is a uniform spatial hash of Sprites, used to
+    quickly find the Sprites in an area of a TileMap without
+    checking every Sprite. Tile maps are much wider than they
+    are tall, so the map is split into buckets of tile columns
+    (4 columns by default), and each Sprite is in every bucket
+    it overlaps.
+    <p>Call update() after a Sprite moves, so it's moved to
+    the right buckets.
+*/
+public class SpriteHash {
+
+    private static final int DEFAULT_BUCKET_TILES = 4;
+
+    /**
+        A Sprite in the hash and the range of buckets it's in.
+    */
+    private static class Entry {
+        Sprite sprite;
+        int firstBucket;
+        int lastBucket;
+    }
+
+
+    private int bucketTiles;
+    private ArrayList[] buckets;
+    private IdentityHashMap entries;
+
+    /**
+        Creates a new SpriteHash for a map with the specified
+        width (in tiles).
+    */
+    public SpriteHash(int mapWidth) {
+        this(mapWidth, DEFAULT_BUCKET_TILES);
+    }
+
+
+    /**
+        Creates a new SpriteHash for a map with the specified
+        width, with each bucket the specified number of tiles
+        wide.
+    */
+    public SpriteHash(int mapWidth, int bucketTiles) {
+        this.bucketTiles = bucketTiles;
+        int numBuckets = Math.max(1,
+            (mapWidth + bucketTiles - 1) / bucketTiles);
+        buckets = new ArrayList[numBuckets];
+        for (int i=0; i<numBuckets; i++) {
+            buckets[i] = new ArrayList();
+        }
+        entries = new IdentityHashMap();
+    }
+
+
+    /**
+        Adds a Sprite to this hash.
+    */
+    public void add(Sprite sprite) {
+        if (entries.containsKey(sprite)) {
+            update(sprite);
+            return;
+        }
+        Entry entry = new Entry();
+        entry.sprite = sprite;
+        entry.firstBucket = getFirstBucket(sprite);
+        entry.lastBucket = getLastBucket(sprite);
+        addToBuckets(entry);
+        entries.put(sprite, entry);
+    }
+
+
+    /**
+        Removes a Sprite from this hash.
+    */
+    public void remove(Sprite sprite) {
+        Entry entry = (Entry)entries.remove(sprite);
+        if (entry != null) {
+            removeFromBuckets(entry);
+        }
+    }
+
+
+    /**
+        Moves a Sprite to the buckets for its current location.
+        Call this method after the Sprite moves.
+    */
+    public void update(Sprite sprite) {
+        Entry entry = (Entry)entries.get(sprite);
+        if (entry == null) {
+            return;
+        }
+        int firstBucket = getFirstBucket(sprite);
+        int lastBucket = getLastBucket(sprite);
+        if (firstBucket != entry.firstBucket ||
+            lastBucket != entry.lastBucket)
+        {
+            removeFromBuckets(entry);
+            entry.firstBucket = firstBucket;
+            entry.lastBucket = lastBucket;
+            addToBuckets(entry);
+        }
+    }
+
+
+    /**
+        Gets the number of Sprites in this hash.
+    */
+    public int size() {
+        return entries.size();
+    }
+
+
+    /**
+        Removes all Sprites from this hash.
+    */
+    public void clear() {
+        for (int i=0; i<buckets.length; i++) {
+            buckets[i].clear();
+        }
+        entries.clear();
+    }
+
+
+    /**
+        Adds every Sprite that overlaps the specified rectangle
+        (in pixels) to the result list, and returns the list.
+        Each Sprite is added once.
+    */
+    public List getSprites(int x, int y, int width, int height,
+        List result)
+    {
+        return getSprites(x, y, width, height, true, result);
+    }
+
+
+    /**
+        Adds every Sprite that overlaps the specified range of
+        columns (in pixels), at any height, to the result list,
+        and returns the list. Each Sprite is added once.
+    */
+    public List getSprites(int x, int width, List result) {
+        return getSprites(x, 0, width, 0, false, result);
+    }
+
+
+    private List getSprites(int x, int y, int width, int height,
+        boolean checkY, List result)
+    {
+        int firstBucket = getBucket(x);
+        int lastBucket = getBucket(x + width - 1);
+        for (int b=firstBucket; b<=lastBucket; b++) {
+            ArrayList bucket = buckets[b];
+            for (int i=0; i<bucket.size(); i++) {
+                Entry entry = (Entry)bucket.get(i);
+                // only check a Sprite in the first bucket of
+                // the range that it's in
+                if (b != Math.max(entry.firstBucket, firstBucket)) {
+                    continue;
+                }
+                Sprite sprite = entry.sprite;
+                int spriteX = Math.round(sprite.getX());
+                if (spriteX >= x + width ||
+                    x >= spriteX + sprite.getWidth())
+                {
+                    continue;
+                }
+                if (checkY) {
+                    int spriteY = Math.round(sprite.getY());
+                    if (spriteY >= y + height ||
+                        y >= spriteY + sprite.getHeight())
+                    {
+                        continue;
+                    }
+                }
+                result.add(sprite);
+            }
+        }
+        return result;
+    }
+
+
+    private void addToBuckets(Entry entry) {
+        for (int b=entry.firstBucket; b<=entry.lastBucket; b++) {
+            buckets[b].add(entry);
+        }
+    }
+
+
+    private void removeFromBuckets(Entry entry) {
+        for (int b=entry.firstBucket; b<=entry.lastBucket; b++) {
+            ArrayList bucket = buckets[b];
+            int i = bucket.indexOf(entry);
+            // move the last entry into the removed entry's place
+            int last = bucket.size() - 1;
+            bucket.set(i, bucket.get(last));
+            bucket.remove(last);
+        }
+    }
+
+
+    private int getFirstBucket(Sprite sprite) {
+        return getBucket(Math.round(sprite.getX()));
+    }
+
+
+    private int getLastBucket(Sprite sprite) {
+        return getBucket(Math.round(sprite.getX()) +
+            sprite.getWidth() - 1);
+    }
+
+
+    /**
+        Gets the bucket for a pixel x location. Locations off
+        the map are in the first or last bucket.
+    */
+    private int getBucket(int x) {
+        int bucket = TileMapRenderer.pixelsToTiles(x) / bucketTiles;
+        return Math.max(0, Math.min(bucket, buckets.length - 1));
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+    The TileChunkCache draws the tiles of a TileMap in chunks.
+    A chunk is a block of tiles (16x16 by default) that is
+    drawn once into a compatible image, so drawing the visible
+    tiles of a map usually takes 2 to 4 drawImage() calls
+    instead of one per tile.
+    <p>Chunks are created when they first appear on screen.
+    The least-recently drawn chunks are removed when the images
+    use more memory than the maximum, but chunks that are
+    visible in the current frame are never removed.
+    <p>The tiles of a TileMap aren't expected to change. If a
+    tile changes, call invalidate() for it.
+*/
+public class TileChunkCache {
+
+    private static final int DEFAULT_CHUNK_SIZE = 16;
+    private static final long DEFAULT_MAX_MEMORY = 32 * 1024 * 1024;
+
+    /**
+        A chunk of pre-drawn tiles.
+    */
+    private static class Chunk {
+        BufferedImage image;
+        long lastFrame;
+        long memory;
+    }
+
+
+    private int chunkSize;
+    private long maxMemory;
+    private LinkedHashMap chunks;
+    private TileMap map;
+    private GraphicsConfiguration gc;
+    private int numChunksAcross;
+    private long frame;
+
+    private long memoryUsage;
+    private int numHits;
+    private int numMisses;
+    private int numEvictions;
+
+    /**
+        Creates a new TileChunkCache with 16x16-tile chunks and
+        a maximum memory usage of 32MB.
+    */
+    public TileChunkCache() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+
+    /**
+        Creates a new TileChunkCache with the specified chunk
+        size (in tiles) and maximum memory usage (in bytes).
+    */
+    public TileChunkCache(int chunkSize, long maxMemory) {
+        this.chunkSize = chunkSize;
+        this.maxMemory = maxMemory;
+        // access-ordered, so the first chunk is the least
+        // recently drawn
+        chunks = new LinkedHashMap(16, 0.75f, true);
+    }
+
+
+    /**
+        Sets the maximum memory, in bytes, used by the chunk
+        images.
+    */
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+
+    /**
+        Draws the tiles of the specified TileMap that are
+        visible on screen, creating any chunks that aren't in
+        the cache yet. The offsets are the screen location of
+        the top-left corner of the map.
+    */
+    public void draw(Graphics2D g, TileMap map, int offsetX,
+        int offsetY, int screenWidth, int screenHeight)
+    {
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        if (map != this.map || gc != this.gc) {
+            clear();
+            this.map = map;
+            this.gc = gc;
+            numChunksAcross =
+                (map.getWidth() + chunkSize - 1) / chunkSize;
+        }
+        frame++;
+
+        // get the visible chunks
+        int chunkPixels = TileMapRenderer.tilesToPixels(chunkSize);
+        int numChunksDown =
+            (map.getHeight() + chunkSize - 1) / chunkSize;
+        int firstChunkX = Math.max(0, floorDiv(-offsetX, chunkPixels));
+        int lastChunkX = Math.min(numChunksAcross - 1,
+            floorDiv(screenWidth - 1 - offsetX, chunkPixels));
+        int firstChunkY = Math.max(0, floorDiv(-offsetY, chunkPixels));
+        int lastChunkY = Math.min(numChunksDown - 1,
+            floorDiv(screenHeight - 1 - offsetY, chunkPixels));
+
+        for (int y=firstChunkY; y<=lastChunkY; y++) {
+            for (int x=firstChunkX; x<=lastChunkX; x++) {
+                Chunk chunk = getChunk(x, y);
+                g.drawImage(chunk.image,
+                    x * chunkPixels + offsetX,
+                    y * chunkPixels + offsetY,
+                    null);
+            }
+        }
+
+        evict();
+    }
+
+
+    /**
+        Gets the chunk at the specified chunk location, drawing
+        it if it isn't in the cache.
+    */
+    private Chunk getChunk(int chunkX, int chunkY) {
+        Integer key = Integer.valueOf(chunkX + chunkY * numChunksAcross);
+        Chunk chunk = (Chunk)chunks.get(key);
+        if (chunk == null) {
+            numMisses++;
+            chunk = createChunk(chunkX, chunkY);
+            chunks.put(key, chunk);
+            memoryUsage+=chunk.memory;
+        }
+        else {
+            numHits++;
+        }
+        chunk.lastFrame = frame;
+        return chunk;
+    }
+
+
+    /**
+        Draws the tiles of a chunk into a new image.
+    */
+    private Chunk createChunk(int chunkX, int chunkY) {
+        int firstTileX = chunkX * chunkSize;
+        int firstTileY = chunkY * chunkSize;
+        int lastTileX = Math.min(firstTileX + chunkSize,
+            map.getWidth()) - 1;
+        int lastTileY = Math.min(firstTileY + chunkSize,
+            map.getHeight()) - 1;
+        int width = TileMapRenderer.tilesToPixels(
+            lastTileX - firstTileX + 1);
+        int height = TileMapRenderer.tilesToPixels(
+            lastTileY - firstTileY + 1);
+
+        // create a transparent (not translucent) image
+        Chunk chunk = new Chunk();
+        chunk.image = gc.createCompatibleImage(width, height,
+            Transparency.BITMASK);
+        chunk.memory = (long)width * height *
+            ((chunk.image.getColorModel().getPixelSize() + 7) / 8);
+
+        Graphics2D g = chunk.image.createGraphics();
+        TilePalette palette = map.getPalette();
+        for (int y=firstTileY; y<=lastTileY; y++) {
+            for (int x=firstTileX; x<=lastTileX; x++) {
+                int id = map.getTileIdUnchecked(x, y);
+                if (id != TilePalette.EMPTY) {
+                    palette.draw(g, id,
+                        TileMapRenderer.tilesToPixels(x - firstTileX),
+                        TileMapRenderer.tilesToPixels(y - firstTileY));
+                }
+            }
+        }
+        g.dispose();
+        return chunk;
+    }
+
+
+    /**
+        Removes the least-recently drawn chunks until the
+        memory usage is below the maximum, keeping the chunks
+        drawn in the current frame.
+    */
+    private void evict() {
+        Iterator i = chunks.values().iterator();
+        while (memoryUsage > maxMemory && i.hasNext()) {
+            Chunk chunk = (Chunk)i.next();
+            if (chunk.lastFrame == frame) {
+                // every chunk after this one was drawn this frame
+                break;
+            }
+            i.remove();
+            memoryUsage-=chunk.memory;
+            chunk.image.flush();
+            numEvictions++;
+        }
+    }
+
+
+    /**
+        Removes the chunk containing the specified tile, so
+        it's drawn again the next time it's visible.
+    */
+    public void invalidate(int tileX, int tileY) {
+        if (map == null) {
+            return;
+        }
+        Integer key = Integer.valueOf(tileX / chunkSize +
+            (tileY / chunkSize) * numChunksAcross);
+        Chunk chunk = (Chunk)chunks.remove(key);
+        if (chunk != null) {
+            memoryUsage-=chunk.memory;
+            chunk.image.flush();
+        }
+    }
+
+
+    /**
+        Removes the chunks containing the specified range of
+        tile columns, so they're drawn again the next time
+        they're visible.
+    */
+    public void invalidateColumns(int firstTileX, int lastTileX) {
+        if (map == null) {
+            return;
+        }
+        int numChunksDown =
+            (map.getHeight() + chunkSize - 1) / chunkSize;
+        for (int x=firstTileX / chunkSize; x<=lastTileX / chunkSize;
+            x++)
+        {
+            for (int y=0; y<numChunksDown; y++) {
+                invalidate(x * chunkSize, y * chunkSize);
+            }
+        }
+    }
+
+
+    /**
+        Removes all chunks from this cache.
+    */
+    public void clear() {
+        Iterator i = chunks.values().iterator();
+        while (i.hasNext()) {
+            ((Chunk)i.next()).image.flush();
+        }
+        chunks.clear();
+        memoryUsage = 0;
+        map = null;
+    }
+
+
+    /**
+        Gets the number of times a visible chunk was found in
+        the cache.
+    */
+    public int getNumHits() {
+        return numHits;
+    }
+
+
+    /**
+        Gets the number of times a visible chunk had to be
+        drawn.
+    */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+
+    /**
+        Gets the number of chunks removed to stay under the
+        maximum memory.
+    */
+    public int getNumEvictions() {
+        return numEvictions;
+    }
+
+
+    /**
+        Gets the number of chunks in the cache.
+    */
+    public int getNumChunks() {
+        return chunks.size();
+    }
+
+
+    /**
+        Gets the memory, in bytes, used by the chunk images.
+    */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+
+    private static int floorDiv(int a, int b) {
+        return (a >= 0) ? a / b : -((-a + b - 1) / b);
+    }
+
+}
@@ -3,32 +3,57 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.*;
 import java.io.*;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 import com.brackeen.javagamebook.sound.MidiPlayer;
 import com.brackeen.javagamebook.sound.SoundManager;
 import com.brackeen.javagamebook.state.ResourceManager;
+import com.brackeen.javagamebook.util.ThreadPool;
 
 
 /**
     The ResourceManager class loads and manages tile Images and
     "host" Sprites used in the game. Game Sprites are cloned from
     "host" Sprites.
+    <p>The tiles and sprite frames, including the mirrored and
+    flipped frames, are packed into a TextureAtlas by
+    loadResources().
 */
 public class TileGameResourceManager extends ResourceManager {
 
     private ArrayList tiles;
+    private TilePalette palette;
+    private TextureAtlas atlas;
     private int currentMap;
 
-    // host sprites used for cloning
-    private Sprite playerSprite;
-    private Sprite musicSprite;
-    private Sprite coinSprite;
-    private Sprite goalSprite;
-    private Sprite grubSprite;
-    private Sprite flySprite;
+    // compiled maps at least this wide (in tiles) are streamed
+    private static final int DEFAULT_STREAMING_WIDTH = 1024;
+
+    // the last map read, as it was loaded, for reloadMap()
+    private TileMap pristineMap;
+    private TileMapStreamer pristineStreamer;
+    private int pristineMapNumber;
+
+    private int streamingWidth = DEFAULT_STREAMING_WIDTH;
+    private ThreadPool streamingThreadPool;
+
+    // pools of sprites cloned from "host" sprites
+    private CreaturePool playerPool;
+    private PowerUpPool musicPool;
+    private PowerUpPool coinPool;
+    private PowerUpPool goalPool;
+    private CreaturePool grubPool;
+    private CreaturePool flyPool;
+
+    // the pool for each sprite class
+    private HashMap pools = new HashMap();
 
     /**
         Creates a new ResourceManager with the specified
@@ -42,9 +67,20 @@ public class TileGameResourceManager extends ResourceManager {
 
 
     public void loadResources() {
+        atlas = new TextureAtlas(getGraphicsConfiguration());
         loadTileImages();
         loadCreatureSprites();
         loadPowerUpSprites();
+        atlas.pack();
+    }
+
+
+    /**
+        Gets the TextureAtlas the tiles and sprite frames are
+        packed into.
+    */
+    public TextureAtlas getAtlas() {
+        return atlas;
     }
 
 
@@ -53,8 +89,7 @@ public class TileGameResourceManager extends ResourceManager {
         while (map == null) {
             currentMap++;
             try {
-                map = loadMap(
-                    "maps/map" + currentMap + ".txt");
+                map = readMap(currentMap);
             }
             catch (IOException ex) {
                 if (currentMap == 1) {
@@ -70,10 +105,42 @@ public class TileGameResourceManager extends ResourceManager {
     }
 
 
+    /**
+        Loads the map with the specified number, which becomes
+        the current map. Returns null if the map can't be
+        loaded.
+    */
+    public TileMap loadMap(int mapNumber) {
+        try {
+            TileMap map = readMap(mapNumber);
+            currentMap = mapNumber;
+            return map;
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    /**
+        Reloads the current map. The map isn't read again;
+        instead, a copy is made of the map as it was when it was
+        first loaded, or a streamed map is streamed from the
+        start.
+    */
     public TileMap reloadMap() {
+        if (pristineMapNumber == currentMap) {
+            if (pristineStreamer != null) {
+                pristineStreamer = pristineStreamer.restart();
+                return pristineStreamer.getMap();
+            }
+            if (pristineMap != null) {
+                return copyMap(pristineMap);
+            }
+        }
         try {
-            return loadMap(
-                "maps/map" + currentMap + ".txt");
+            return readMap(currentMap);
         }
         catch (IOException ex) {
             ex.printStackTrace();
@@ -82,7 +149,213 @@ public class TileGameResourceManager extends ResourceManager {
     }
 
 
-    private TileMap loadMap(String filename)
+    /**
+        Sets the width, in tiles, at which compiled maps are
+        streamed with a TileMapStreamer instead of being loaded
+        all at once. The default is 1024 tiles.
+    */
+    public void setStreamingWidth(int streamingWidth) {
+        this.streamingWidth = streamingWidth;
+    }
+
+
+    /**
+        Stops the thread that loads streamed maps.
+    */
+    public void close() {
+        if (streamingThreadPool != null) {
+            streamingThreadPool.close();
+            streamingThreadPool = null;
+        }
+    }
+
+
+    /**
+        Gets the TilePalette of the tiles loaded by
+        loadTileImages().
+    */
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Reads the map with the specified number, keeps it as the
+        pristine copy for reloadMap(), and returns a copy of it.
+        The compiled map (maps/mapN.map) is used if it exists;
+        otherwise the text map (maps/mapN.txt) is parsed. Wide
+        compiled maps are streamed.
+    */
+    private TileMap readMap(int mapNumber) throws IOException {
+        TileMap map;
+        URL url = getResource("maps/map" + mapNumber + ".map");
+        pristineMap = null;
+        pristineStreamer = null;
+        if (url != null) {
+            ByteBuffer buffer = readCompiledMap(url);
+            if (buffer.limit() >= MapCompiler.HEADER_SIZE &&
+                buffer.getInt(8) >= streamingWidth)
+            {
+                if (streamingThreadPool == null) {
+                    streamingThreadPool = new ThreadPool(1);
+                }
+                pristineStreamer = new TileMapStreamer(buffer, this,
+                    streamingThreadPool);
+                pristineMapNumber = mapNumber;
+                return pristineStreamer.getMap();
+            }
+            map = loadCompiledMap(buffer, url);
+        }
+        else {
+            map = loadTextMap("maps/map" + mapNumber + ".txt");
+        }
+        pristineMap = map;
+        pristineMapNumber = mapNumber;
+        return copyMap(map);
+    }
+
+
+    /**
+        Returns the player and every Sprite of a map to their
+        pools. Call this method when a map from loadNextMap(),
+        loadMap(), or reloadMap() isn't used anymore.
+    */
+    public void releaseMap(TileMap map) {
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            releaseSprite((Sprite)i.next());
+        }
+        releaseSprite(map.getPlayer());
+    }
+
+
+    /**
+        Returns a Sprite that was removed from a map to its
+        pool.
+    */
+    public void releaseSprite(Sprite sprite) {
+        SpritePool pool = getSpritePool(sprite);
+        if (pool != null) {
+            pool.release(sprite);
+        }
+    }
+
+
+    /**
+        Makes a copy of a map: the tiles are copied, and every
+        Sprite is copied from its pool at the same position.
+    */
+    private TileMap copyMap(TileMap map) {
+        TileMap newMap = map.copyTiles();
+        Iterator i = map.getSprites();
+        while (i.hasNext()) {
+            newMap.addSprite(copySprite((Sprite)i.next()));
+        }
+        newMap.setPlayer(copySprite(map.getPlayer()));
+        return newMap;
+    }
+
+
+    private Sprite copySprite(Sprite sprite) {
+        Sprite newSprite = getSpritePool(sprite).getSprite();
+        newSprite.setX(sprite.getX());
+        newSprite.setY(sprite.getY());
+        return newSprite;
+    }
+
+
+    /**
+        Reads a map compiled by the MapCompiler. If the map is a
+        file, it is memory-mapped; otherwise (for example, if it
+        is in a jar) it is read into memory.
+    */
+    private ByteBuffer readCompiledMap(URL url) throws IOException {
+        ByteBuffer buffer;
+        if (url.getProtocol().equals("file")) {
+            File file = new File(URLDecoder.decode(url.getFile(), "UTF-8"));
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            }
+            finally {
+                in.close();
+            }
+        }
+        else {
+            InputStream in = url.openStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                byte[] buf = new byte[4096];
+                int count;
+                while ((count = in.read(buf)) != -1) {
+                    bytes.write(buf, 0, count);
+                }
+            }
+            finally {
+                in.close();
+            }
+            buffer = ByteBuffer.wrap(bytes.toByteArray());
+        }
+        return buffer;
+    }
+
+
+    /**
+        Loads all of a map compiled by the MapCompiler.
+    */
+    private TileMap loadCompiledMap(ByteBuffer buffer, URL url)
+        throws IOException
+    {
+
+        // read the header
+        if (buffer.limit() < MapCompiler.HEADER_SIZE ||
+            buffer.getInt() != MapCompiler.MAGIC ||
+            buffer.getInt() != MapCompiler.VERSION)
+        {
+            throw new IOException("Not a compiled map: " + url);
+        }
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int numSpawns = buffer.getInt();
+        int numTiles = width * height;
+        if (buffer.limit() != MapCompiler.HEADER_SIZE + numTiles * 2 +
+            numSpawns * MapCompiler.SPAWN_SIZE)
+        {
+            throw new IOException("Bad compiled map size: " + url);
+        }
+
+        // read the tiles in one bulk copy
+        TileMap newMap = new TileMap(width, height, palette);
+        short[] tileIds = newMap.getTileIds();
+        buffer.asShortBuffer().get(tileIds, 0, numTiles);
+        int numTileTypes = palette.size();
+        for (int i=0; i<numTiles; i++) {
+            if (tileIds[i] >= numTileTypes) {
+                // no image for this tile
+                tileIds[i] = TilePalette.EMPTY;
+            }
+        }
+
+        // spawn the sprites
+        buffer.position(MapCompiler.HEADER_SIZE + numTiles * 2);
+        for (int i=0; i<numSpawns; i++) {
+            char ch = (char)(buffer.get() & 0xff);
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            addSprite(newMap, getSpritePool(ch), x, y);
+        }
+
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Loads a text map.
+    */
+    private TileMap loadTextMap(String filename)
         throws IOException
     {
         ArrayList lines = new ArrayList();
@@ -115,7 +388,7 @@ public class TileGameResourceManager extends ResourceManager {
 
         // parse the lines to create a TileEngine
         height = lines.size();
-        TileMap newMap = new TileMap(width, height);
+        TileMap newMap = new TileMap(width, height, palette);
         for (int y=0; y<height; y++) {
             String line = (String)lines.get(y);
             for (int x=0; x<line.length(); x++) {
@@ -124,62 +397,97 @@ public class TileGameResourceManager extends ResourceManager {
                 // check if the char represents tile A, B, C etc.
                 int tile = ch - 'A';
                 if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
+                    newMap.setTileId(x, y, tile + 1);
                 }
 
                 // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, coinSprite, x, y);
-                }
-                else if (ch == '!') {
-                    addSprite(newMap, musicSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, flySprite, x, y);
+                else {
+                    addSprite(newMap, getSpritePool(ch), x, y);
                 }
             }
         }
 
+        addPlayer(newMap);
+        return newMap;
+    }
+
+
+    /**
+        Gets the SpritePool for a map character, or null if
+        the character isn't a sprite.
+    */
+    SpritePool getSpritePool(char ch) {
+        switch (ch) {
+            case 'o': return coinPool;
+            case '!': return musicPool;
+            case '*': return goalPool;
+            case '1': return grubPool;
+            case '2': return flyPool;
+            default: return null;
+        }
+    }
+
+
+    /**
+        Gets the SpritePool a Sprite came from, or null if it
+        didn't come from a pool.
+    */
+    SpritePool getSpritePool(Sprite sprite) {
+        return (SpritePool)pools.get(sprite.getClass());
+    }
+
+
+    private void addPool(SpritePool pool) {
+        pools.put(pool.getHost().getClass(), pool);
+    }
+
+
+    void addPlayer(TileMap map) {
         // add the player to the map
-        Sprite player = (Sprite)playerSprite.clone();
+        Sprite player = playerPool.get();
         player.setX(TileMapRenderer.tilesToPixels(3));
         player.setY(0);
-        newMap.setPlayer(player);
-
-        return newMap;
+        map.setPlayer(player);
     }
 
 
     private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
+        SpritePool pool, int tileX, int tileY)
     {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
-
-            // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
-                (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
-
-            // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
-
-            // add it to the map
+        Sprite sprite = createSprite(pool, tileX, tileY);
+        if (sprite != null) {
             map.addSprite(sprite);
         }
     }
 
 
+    /**
+        Gets a Sprite from a pool and places it in the specified
+        tile. Returns null if the pool is null.
+    */
+    Sprite createSprite(SpritePool pool, int tileX, int tileY) {
+        if (pool == null) {
+            return null;
+        }
+
+        // get a sprite cloned from the "host"
+        Sprite sprite = pool.getSprite();
+
+        // center the sprite
+        sprite.setX(
+            TileMapRenderer.tilesToPixels(tileX) +
+            (TileMapRenderer.tilesToPixels(1) -
+            sprite.getWidth()) / 2);
+
+        // bottom-justify the sprite
+        sprite.setY(
+            TileMapRenderer.tilesToPixels(tileY + 1) -
+            sprite.getHeight());
+
+        return sprite;
+    }
+
+
     // -----------------------------------------------------------
     // code for loading sprites and images
     // -----------------------------------------------------------
@@ -189,6 +497,7 @@ public class TileGameResourceManager extends ResourceManager {
         // keep looking for tile A,B,C, etc. this makes it
         // easy to drop new tiles in the images/ directory
         tiles = new ArrayList();
+        palette = new TilePalette();
         char ch = 'A';
         while (true) {
             String name = "tile_" + ch + ".png";
@@ -197,7 +506,10 @@ public class TileGameResourceManager extends ResourceManager {
             if (url == null) {
                 break;
             }
-            tiles.add(loadImage(name));
+            Image image = loadImage(name);
+            tiles.add(image);
+            // tile 'A' is id 1, 'B' is id 2, etc.
+            palette.add(atlas.add(image), TilePalette.FLAG_SOLID);
             ch++;
         }
     }
@@ -205,7 +517,7 @@ public class TileGameResourceManager extends ResourceManager {
 
     public void loadCreatureSprites() {
 
-        Image[][] images = new Image[4][];
+        Image[][] images = new Image[1][];
 
         // load left-facing images
         images[0] = new Image[] {
@@ -219,16 +531,19 @@ public class TileGameResourceManager extends ResourceManager {
             loadImage("grub2.png"),
         };
 
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
+        AtlasRegion[][] regions = new AtlasRegion[4][];
+        for (int i=0; i<4; i++) {
+            regions[i] = new AtlasRegion[images[0].length];
+        }
         for (int i=0; i<images[0].length; i++) {
+            // left-facing images
+            regions[0][i] = atlas.add(images[0][i]);
             // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
+            regions[1][i] = atlas.add(images[0][i], true, false);
             // left-facing "dead" images
-            images[2][i] = getFlippedImage(images[0][i]);
+            regions[2][i] = atlas.add(images[0][i], false, true);
             // right-facing "dead" images
-            images[3][i] = getFlippedImage(images[1][i]);
+            regions[3][i] = atlas.add(images[0][i], true, true);
         }
 
         // create creature animations
@@ -237,25 +552,28 @@ public class TileGameResourceManager extends ResourceManager {
         Animation[] grubAnim = new Animation[4];
         for (int i=0; i<4; i++) {
             playerAnim[i] = createPlayerAnim(
-                images[i][0], images[i][1], images[i][2]);
+                regions[i][0], regions[i][1], regions[i][2]);
             flyAnim[i] = createFlyAnim(
-                images[i][3], images[i][4], images[i][5]);
+                regions[i][3], regions[i][4], regions[i][5]);
             grubAnim[i] = createGrubAnim(
-                images[i][6], images[i][7]);
+                regions[i][6], regions[i][7]);
         }
 
         // create creature sprites
-        playerSprite = new Player(playerAnim[0], playerAnim[1],
-            playerAnim[2], playerAnim[3]);
-        flySprite = new Fly(flyAnim[0], flyAnim[1],
-            flyAnim[2], flyAnim[3]);
-        grubSprite = new Grub(grubAnim[0], grubAnim[1],
-            grubAnim[2], grubAnim[3]);
+        playerPool = new CreaturePool(new Player(playerAnim[0],
+            playerAnim[1], playerAnim[2], playerAnim[3]));
+        flyPool = new CreaturePool(new Fly(flyAnim[0], flyAnim[1],
+            flyAnim[2], flyAnim[3]));
+        grubPool = new CreaturePool(new Grub(grubAnim[0],
+            grubAnim[1], grubAnim[2], grubAnim[3]));
+        addPool(playerPool);
+        addPool(flyPool);
+        addPool(grubPool);
     }
 
 
-    private Animation createPlayerAnim(Image player1,
-        Image player2, Image player3)
+    private Animation createPlayerAnim(AtlasRegion player1,
+        AtlasRegion player2, AtlasRegion player3)
     {
         Animation anim = new Animation();
         anim.addFrame(player1, 250);
@@ -268,8 +586,8 @@ public class TileGameResourceManager extends ResourceManager {
     }
 
 
-    private Animation createFlyAnim(Image img1, Image img2,
-        Image img3)
+    private Animation createFlyAnim(AtlasRegion img1,
+        AtlasRegion img2, AtlasRegion img3)
     {
         Animation anim = new Animation();
         anim.addFrame(img1, 50);
@@ -280,7 +598,9 @@ public class TileGameResourceManager extends ResourceManager {
     }
 
 
-    private Animation createGrubAnim(Image img1, Image img2) {
+    private Animation createGrubAnim(AtlasRegion img1,
+        AtlasRegion img2)
+    {
         Animation anim = new Animation();
         anim.addFrame(img1, 250);
         anim.addFrame(img2, 250);
@@ -291,27 +611,32 @@ public class TileGameResourceManager extends ResourceManager {
     private void loadPowerUpSprites() {
         // create "goal" sprite
         Animation anim = new Animation();
-        anim.addFrame(loadImage("heart1.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        anim.addFrame(loadImage("heart3.png"), 150);
-        anim.addFrame(loadImage("heart2.png"), 150);
-        goalSprite = new PowerUp.Goal(anim);
+        AtlasRegion heart2 = atlas.add(loadImage("heart2.png"));
+        anim.addFrame(atlas.add(loadImage("heart1.png")), 150);
+        anim.addFrame(heart2, 150);
+        anim.addFrame(atlas.add(loadImage("heart3.png")), 150);
+        anim.addFrame(heart2, 150);
+        goalPool = new PowerUpPool(new PowerUp.Goal(anim));
+        addPool(goalPool);
 
         // create "star" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("star1.png"), 100);
-        anim.addFrame(loadImage("star2.png"), 100);
-        anim.addFrame(loadImage("star3.png"), 100);
-        anim.addFrame(loadImage("star4.png"), 100);
-        coinSprite = new PowerUp.Star(anim);
+        anim.addFrame(atlas.add(loadImage("star1.png")), 100);
+        anim.addFrame(atlas.add(loadImage("star2.png")), 100);
+        anim.addFrame(atlas.add(loadImage("star3.png")), 100);
+        anim.addFrame(atlas.add(loadImage("star4.png")), 100);
+        coinPool = new PowerUpPool(new PowerUp.Star(anim));
+        addPool(coinPool);
 
         // create "music" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("music1.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        anim.addFrame(loadImage("music3.png"), 150);
-        anim.addFrame(loadImage("music2.png"), 150);
-        musicSprite = new PowerUp.Music(anim);
+        AtlasRegion music2 = atlas.add(loadImage("music2.png"));
+        anim.addFrame(atlas.add(loadImage("music1.png")), 150);
+        anim.addFrame(music2, 150);
+        anim.addFrame(atlas.add(loadImage("music3.png")), 150);
+        anim.addFrame(music2, 150);
+        musicPool = new PowerUpPool(new PowerUp.Music(anim));
+        addPool(musicPool);
     }
 
 }
@@ -3,28 +3,57 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.Image;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.List;
 
 import com.brackeen.javagamebook.graphics.Sprite;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is a tile id, and a
+    TilePalette maps the ids to Images (and flags, like whether
+    the tile is solid). Of course, ids are used multiple times
+    in the tile map.
+    <p>The tile ids are stored in one row-major short array, so
+    a map of 10,000 by 15 tiles only takes about 300K, and
+    scanning tiles across a row reads memory in order.
+    <p>Sprites are also kept in a SpriteHash, so the Sprites in
+    an area of the map can be found quickly. Call updateSprite()
+    after a Sprite moves.
 */
 public class TileMap {
 
-    private Image[][] tiles;
+    private short[] tiles;
+    private int width;
+    private int height;
+    private TilePalette palette;
     private LinkedList sprites;
+    private SpriteHash spriteHash;
     private Sprite player;
+    private TileMapStreamer streamer;
+    private int modCount;
 
     /**
         Creates a new TileMap with the specified width and
-        height (in number of tiles) of the map.
+        height (in number of tiles) of the map, with its own
+        TilePalette.
     */
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
+        this(width, height, new TilePalette());
+    }
+
+
+    /**
+        Creates a new TileMap with the specified width and
+        height (in number of tiles) of the map, using the
+        specified TilePalette.
+    */
+    public TileMap(int width, int height, TilePalette palette) {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        tiles = new short[width * height];
         sprites = new LinkedList();
+        spriteHash = new SpriteHash(width);
     }
 
 
@@ -32,7 +61,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -40,7 +69,15 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
+    }
+
+
+    /**
+        Gets the TilePalette of this TileMap.
+    */
+    public TilePalette getPalette() {
+        return palette;
     }
 
 
@@ -50,22 +87,129 @@ public class TileMap {
         bounds.
     */
     public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
             return null;
         }
         else {
-            return tiles[x][y];
+            return palette.getImage(tiles[x + y * width]);
         }
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Sets the tile at the specified location. The Image is
+        added to the palette (as a solid tile) if it isn't
+        already in it.
     */
     public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+        setTileId(x, y, palette.getId(tile));
+    }
+
+
+    /**
+        Gets the tile id at the specified location. Returns
+        TilePalette.EMPTY if the location is out of bounds.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return TilePalette.EMPTY;
+        }
+        else {
+            return tiles[x + y * width];
+        }
+    }
+
+
+    /**
+        Gets the tile id at the specified location, which must
+        be in bounds. This method doesn't check bounds, so use
+        it in loops that already clip to the map.
+    */
+    public int getTileIdUnchecked(int x, int y) {
+        return tiles[x + y * width];
+    }
+
+
+    /**
+        Sets the tile id at the specified location.
+    */
+    public void setTileId(int x, int y, int id) {
+        tiles[x + y * width] = (short)id;
+        modCount++;
+    }
+
+
+    /**
+        Gets the number of times the tiles of this map have
+        changed. Classes that copy tiles, like the
+        TilePathFinder, can compare this count to see if the
+        copy is out of date.
+    */
+    public int getModCount() {
+        return modCount;
+    }
+
+
+    /**
+        Notifies this map that tiles were changed directly in the
+        array returned by getTileIds().
+    */
+    void tilesChanged() {
+        modCount++;
+    }
+
+
+    /**
+        Gets the array of tile ids, in row-major order. The
+        array isn't copied, so changes to it change this map.
+        Used to load tiles in bulk.
+    */
+    short[] getTileIds() {
+        return tiles;
+    }
+
+
+    /**
+        Creates a new TileMap with the same size, palette, and
+        tiles as this map, but with no Sprites.
+    */
+    public TileMap copyTiles() {
+        TileMap map = new TileMap(width, height, palette);
+        System.arraycopy(tiles, 0, map.tiles, 0, tiles.length);
+        return map;
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Returns false if the location is out of bounds.
+    */
+    public boolean isSolid(int x, int y) {
+        return palette.isSolid(getTileId(x, y));
+    }
+
+
+    /**
+        Checks if the tile at the specified location, which must
+        be in bounds, is solid. This method doesn't check
+        bounds.
+    */
+    public boolean isSolidUnchecked(int x, int y) {
+        return palette.isSolid(tiles[x + y * width]);
+    }
+
+
+    /**
+        Gets the TileMapStreamer that loads this map, or null if
+        the whole map is loaded.
+    */
+    public TileMapStreamer getStreamer() {
+        return streamer;
+    }
+
+
+    void setStreamer(TileMapStreamer streamer) {
+        this.streamer = streamer;
     }
 
 
@@ -90,6 +234,7 @@ public class TileMap {
     */
     public void addSprite(Sprite sprite) {
         sprites.add(sprite);
+        spriteHash.add(sprite);
     }
 
 
@@ -98,15 +243,74 @@ public class TileMap {
     */
     public void removeSprite(Sprite sprite) {
         sprites.remove(sprite);
+        spriteHash.remove(sprite);
+    }
+
+
+    /**
+        Notifies this map that a Sprite moved. Call this method
+        after a Sprite in this map changes position.
+    */
+    public void updateSprite(Sprite sprite) {
+        spriteHash.update(sprite);
     }
 
 
     /**
         Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        excluding the player Sprite. Sprites can be removed with
+        the Iterator's remove() method.
     */
     public Iterator getSprites() {
-        return sprites.iterator();
+        return new SpriteIterator();
+    }
+
+
+    /**
+        Adds every Sprite in this map (excluding the player
+        Sprite) that overlaps the specified rectangle, in
+        pixels, to the result list, and returns the list.
+    */
+    public List getSprites(int x, int y, int width, int height,
+        List result)
+    {
+        return spriteHash.getSprites(x, y, width, height, result);
+    }
+
+
+    /**
+        Adds every Sprite in this map (excluding the player
+        Sprite) that overlaps the specified range of columns, in
+        pixels, to the result list, and returns the list. Use
+        this method to find the Sprites in the viewport.
+    */
+    public List getSprites(int x, int width, List result) {
+        return spriteHash.getSprites(x, width, result);
+    }
+
+
+    /**
+        Iterator of the Sprites in this map that also removes
+        Sprites from the SpriteHash.
+    */
+    private class SpriteIterator implements Iterator {
+
+        private Iterator i = sprites.iterator();
+        private Sprite current;
+
+        public boolean hasNext() {
+            return i.hasNext();
+        }
+
+        public Object next() {
+            current = (Sprite)i.next();
+            return current;
+        }
+
+        public void remove() {
+            i.remove();
+            spriteHash.remove(current);
+        }
     }
 
 }
@@ -1,10 +1,11 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 
+import com.brackeen.javagamebook.graphics.DirtyRegionTracker;
 import com.brackeen.javagamebook.graphics.Sprite;
-import com.brackeen.javagamebook.tilegame.sprites.Creature;
 
 /**
     The TileMapRenderer class draws a TileMap on the screen.
@@ -18,6 +19,14 @@ import com.brackeen.javagamebook.tilegame.sprites.Creature;
     <p>Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
 
+    <p>By default, tiles are drawn in pre-drawn chunks using a
+    TileChunkCache. The cache can be disabled to draw each tile
+    separately.
+
+    <p>Optionally, only the parts of the screen that changed
+    since the last frame are drawn (see
+    setDirtyRectanglesEnabled()).
+
     <p>This TileMapRender uses a tile size of 64.
 */
 public class TileMapRenderer {
@@ -28,6 +37,23 @@ public class TileMapRenderer {
     private static final int TILE_SIZE_BITS = 6;
 
     private Image background;
+    private TileChunkCache chunkCache = new TileChunkCache();
+    private ArrayList visibleSprites = new ArrayList();
+    private float alpha = 1;
+
+    // dirty-rectangle drawing
+    private boolean dirtyRectanglesEnabled;
+    private float fullRepaintThreshold = 0.5f;
+    private BufferedImage buffer;
+    private GraphicsConfiguration bufferGc;
+    private DirtyRegionTracker tracker;
+    private TileMap bufferMap;
+    private int bufferModCount;
+    private int bufferOffsetX;
+    private int bufferOffsetY;
+    private int numFullRepaints;
+    private int numPartialRepaints;
+    private int numScrolls;
 
     /**
         Converts a pixel position to a tile position.
@@ -72,6 +98,126 @@ public class TileMapRenderer {
     }
 
 
+    /**
+        Sets the interpolation alpha used to draw Sprites
+        between their saved position (0) and their current
+        position (1). The default is 1.
+    */
+    public void setInterpolation(float alpha) {
+        this.alpha = alpha;
+    }
+
+
+    /**
+        Gets the TileChunkCache used to draw tiles, or null if
+        the cache is disabled.
+    */
+    public TileChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+
+    /**
+        Enables or disables drawing tiles in pre-drawn chunks.
+    */
+    public void setChunkCacheEnabled(boolean enabled) {
+        if (!enabled && chunkCache != null) {
+            chunkCache.clear();
+            chunkCache = null;
+        }
+        else if (enabled && chunkCache == null) {
+            chunkCache = new TileChunkCache();
+        }
+    }
+
+
+    /**
+        Enables or disables dirty-rectangle drawing. When
+        enabled, the map is drawn into a back buffer that is
+        kept between frames, and only the parts of the buffer
+        that changed are drawn again: the rectangles of Sprites
+        that moved or animated, and the strip uncovered when the
+        view scrolls (the rest of the buffer is moved with
+        copyArea()). The buffer is then copied to the screen.
+        If the changed area is larger than the full repaint
+        threshold, the whole buffer is drawn again.
+        <p>The view can only be scrolled with copyArea() if the
+        background scrolls by the same amount as the tiles, so
+        with a parallax background, frames where the view
+        scrolls are fully drawn.
+    */
+    public void setDirtyRectanglesEnabled(boolean enabled) {
+        dirtyRectanglesEnabled = enabled;
+        if (!enabled && buffer != null) {
+            buffer.flush();
+            buffer = null;
+            tracker = null;
+        }
+    }
+
+
+    /**
+        Checks if dirty-rectangle drawing is enabled.
+    */
+    public boolean isDirtyRectanglesEnabled() {
+        return dirtyRectanglesEnabled;
+    }
+
+
+    /**
+        Sets the fraction of the screen (0 to 1) that can be
+        dirty before the whole screen is drawn instead of just
+        the dirty rectangles. The default is 0.5.
+    */
+    public void setFullRepaintThreshold(float threshold) {
+        fullRepaintThreshold = threshold;
+    }
+
+
+    /**
+        Gets the number of frames completely drawn in
+        dirty-rectangle mode.
+    */
+    public int getNumFullRepaints() {
+        return numFullRepaints;
+    }
+
+
+    /**
+        Gets the number of frames where only the dirty
+        rectangles were drawn.
+    */
+    public int getNumPartialRepaints() {
+        return numPartialRepaints;
+    }
+
+
+    /**
+        Gets the number of frames where the back buffer was
+        scrolled with copyArea().
+    */
+    public int getNumScrolls() {
+        return numScrolls;
+    }
+
+
+    /**
+        Gets the scrolling position (the x offset to draw the
+        map at) of a map when the player is at the specified x
+        location. The left edge of the screen is at -offsetX in
+        the map.
+    */
+    public static int getOffsetX(TileMap map, int screenWidth,
+        int playerX)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
+        int offsetX = screenWidth / 2 - playerX - TILE_SIZE;
+        offsetX = Math.min(offsetX, 0);
+        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
+
+
     /**
         Draws the specified TileMap.
     */
@@ -79,19 +225,45 @@ public class TileMapRenderer {
         int screenWidth, int screenHeight)
     {
         Sprite player = map.getPlayer();
-        int mapWidth = tilesToPixels(map.getWidth());
 
         // get the scrolling position of the map
         // based on player's position
-        int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
-        offsetX = Math.min(offsetX, 0);
-        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        int offsetX = getOffsetX(map, screenWidth,
+            Math.round(player.getInterpolatedX(alpha)));
 
         // get the y offset to draw all sprites and tiles
         int offsetY = screenHeight -
             tilesToPixels(map.getHeight());
 
+        // get the sprites on screen
+        map.getSprites(-offsetX, screenWidth, visibleSprites);
+
+        if (dirtyRectanglesEnabled) {
+            drawDirty(g, map, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            drawScene(g, map, offsetX, offsetY,
+                screenWidth, screenHeight, null);
+        }
+        visibleSprites.clear();
+    }
+
+
+    /**
+        Draws the background, tiles, and sprites. If the clip
+        rectangle isn't null, only the parts inside it are
+        drawn.
+    */
+    private void drawScene(Graphics2D g, TileMap map,
+        int offsetX, int offsetY, int screenWidth, int screenHeight,
+        Rectangle clip)
+    {
+        Sprite player = map.getPlayer();
+        if (clip != null) {
+            g.setClip(clip);
+        }
+
         // draw black background, if needed
         if (background == null ||
             screenHeight > background.getHeight(null))
@@ -102,51 +274,196 @@ public class TileMapRenderer {
 
         // draw parallax background image
         if (background != null) {
-            int x = offsetX *
-                (screenWidth - background.getWidth(null)) /
-                (screenWidth - mapWidth);
+            int x = getBackgroundX(map, offsetX, screenWidth);
             int y = screenHeight - background.getHeight(null);
 
             g.drawImage(background, x, y, null);
         }
 
         // draw the visible tiles
-        int firstTileX = pixelsToTiles(-offsetX);
-        int lastTileX = firstTileX +
-            pixelsToTiles(screenWidth) + 1;
+        if (clip == null) {
+            drawTileLayer(g, map, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            // draw just the tiles in the clip rectangle
+            g.translate(clip.x, clip.y);
+            drawTileLayer(g, map, offsetX - clip.x,
+                offsetY - clip.y, clip.width, clip.height);
+            g.translate(-clip.x, -clip.y);
+        }
+
+        // draw player
+        drawSprite(g, player, offsetX, offsetY, clip);
+
+        // draw the sprites on screen
+        for (int i=0; i<visibleSprites.size(); i++) {
+            drawSprite(g, (Sprite)visibleSprites.get(i),
+                offsetX, offsetY, clip);
+        }
+    }
+
+
+    private void drawTileLayer(Graphics2D g, TileMap map,
+        int offsetX, int offsetY, int screenWidth, int screenHeight)
+    {
+        if (chunkCache != null) {
+            chunkCache.draw(g, map, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            drawTiles(g, map, offsetX, offsetY, screenWidth);
+        }
+    }
+
+
+    private void drawSprite(Graphics2D g, Sprite sprite,
+        int offsetX, int offsetY, Rectangle clip)
+    {
+        int x = Math.round(sprite.getInterpolatedX(alpha)) +
+            offsetX;
+        int y = Math.round(sprite.getInterpolatedY(alpha)) +
+            offsetY;
+        if (clip == null || clip.intersects(x, y,
+            sprite.getWidth(), sprite.getHeight()))
+        {
+            sprite.draw(g, x, y);
+        }
+    }
+
+
+    /**
+        Gets the x location of the parallax background.
+    */
+    private int getBackgroundX(TileMap map, int offsetX,
+        int screenWidth)
+    {
+        int mapWidth = tilesToPixels(map.getWidth());
+        return offsetX *
+            (screenWidth - background.getWidth(null)) /
+            (screenWidth - mapWidth);
+    }
+
+
+    /**
+        Draws the map into the back buffer, drawing only the
+        dirty rectangles if possible, then copies the buffer to
+        the screen.
+    */
+    private void drawDirty(Graphics2D g, TileMap map,
+        int offsetX, int offsetY, int screenWidth, int screenHeight)
+    {
+        boolean fullRepaint = false;
+
+        // create the back buffer
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        if (buffer == null || buffer.getWidth() != screenWidth ||
+            buffer.getHeight() != screenHeight || gc != bufferGc)
+        {
+            if (buffer != null) {
+                buffer.flush();
+            }
+            buffer = gc.createCompatibleImage(screenWidth,
+                screenHeight);
+            bufferGc = gc;
+            tracker = new DirtyRegionTracker(screenWidth,
+                screenHeight);
+            fullRepaint = true;
+        }
+
+        // the tiles changed or a different map is drawn
+        if (map != bufferMap || map.getModCount() != bufferModCount ||
+            offsetY != bufferOffsetY)
+        {
+            fullRepaint = true;
+        }
+
+        Graphics2D bufferGraphics = buffer.createGraphics();
+        tracker.beginFrame();
+
+        // scroll the buffer
+        int dx = offsetX - bufferOffsetX;
+        if (!fullRepaint && dx != 0) {
+            boolean backgroundScrolls = (background == null ||
+                getBackgroundX(map, offsetX, screenWidth) -
+                getBackgroundX(map, bufferOffsetX, screenWidth) == dx);
+            if (backgroundScrolls && Math.abs(dx) < screenWidth) {
+                bufferGraphics.copyArea(0, 0, screenWidth,
+                    screenHeight, dx, 0);
+                tracker.scroll(dx, 0);
+                numScrolls++;
+            }
+            else {
+                fullRepaint = true;
+            }
+        }
+
+        // find the sprites that moved or animated
+        Sprite player = map.getPlayer();
+        trackSprite(player, offsetX, offsetY);
+        for (int i=0; i<visibleSprites.size(); i++) {
+            trackSprite((Sprite)visibleSprites.get(i),
+                offsetX, offsetY);
+        }
+        tracker.endFrame();
+
+        // draw the dirty rectangles, or the whole screen
+        if (fullRepaint || tracker.getDirtyArea() >
+            fullRepaintThreshold * screenWidth * screenHeight)
+        {
+            drawScene(bufferGraphics, map, offsetX, offsetY,
+                screenWidth, screenHeight, null);
+            numFullRepaints++;
+        }
+        else if (tracker.getDirtyRects().size() > 0) {
+            ArrayList dirtyRects = tracker.getDirtyRects();
+            for (int i=0; i<dirtyRects.size(); i++) {
+                drawScene(bufferGraphics, map, offsetX, offsetY,
+                    screenWidth, screenHeight,
+                    (Rectangle)dirtyRects.get(i));
+            }
+            numPartialRepaints++;
+        }
+        bufferGraphics.dispose();
+
+        g.drawImage(buffer, 0, 0, null);
+
+        bufferMap = map;
+        bufferModCount = map.getModCount();
+        bufferOffsetX = offsetX;
+        bufferOffsetY = offsetY;
+    }
+
+
+    private void trackSprite(Sprite sprite, int offsetX,
+        int offsetY)
+    {
+        tracker.trackSprite(sprite,
+            Math.round(sprite.getInterpolatedX(alpha)) + offsetX,
+            Math.round(sprite.getInterpolatedY(alpha)) + offsetY);
+    }
+
+
+    /**
+        Draws the visible tiles one at a time.
+    */
+    private void drawTiles(Graphics2D g, TileMap map,
+        int offsetX, int offsetY, int screenWidth)
+    {
+        TilePalette palette = map.getPalette();
+        int firstTileX = Math.max(pixelsToTiles(-offsetX), 0);
+        int lastTileX = Math.min(firstTileX +
+            pixelsToTiles(screenWidth) + 1, map.getWidth() - 1);
         for (int y=0; y<map.getHeight(); y++) {
             for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
-                if (image != null) {
-                    g.drawImage(image,
+                int id = map.getTileIdUnchecked(x, y);
+                if (id != TilePalette.EMPTY) {
+                    palette.draw(g, id,
                         tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
-                        null);
+                        tilesToPixels(y) + offsetY);
                 }
             }
         }
-
-        // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
-
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
-
-            // wake up the creature when it's on screen
-            if (sprite instanceof Creature &&
-                x >= 0 && x < screenWidth)
-            {
-                ((Creature)sprite).wakeUp();
-            }
-        }
     }
 
 }
@@ -0,0 +1,608 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+import com.brackeen.javagamebook.util.ThreadPool;
+
+/**
+    The TileMapStreamer streams a long compiled map (see
+    MapCompiler) into a TileMap a few columns at a time, so a
+    level doesn't have to be loaded all at once. The map is
+    split into chunks of columns (16 tiles wide by default), and
+    only the chunks in a window around the player are resident:
+    their tiles are in the TileMap and their Sprites are
+    spawned.
+    <p>Chunks ahead of the player, in the direction the player
+    is moving, are loaded on a background thread. When the
+    player turns around, chunks are kept loaded on both sides
+    until the player moves into another chunk, so turning back
+    and forth doesn't unload and reload chunks. Chunks far
+    behind the player are unloaded: their tiles are cleared,
+    and the state of their Sprites is saved, so coins that were
+    picked up and creatures that were killed stay gone when the
+    chunk is loaded again. Sprites that wander out of the
+    window are saved the same way.
+    <p>Call update() once per update, from the game thread.
+*/
+public class TileMapStreamer {
+
+    public static final int DEFAULT_CHUNK_TILES = 16;
+
+    // number of chunks kept resident in front of and behind the
+    // player
+    private static final int CHUNKS_AHEAD = 3;
+    private static final int CHUNKS_BEHIND = 2;
+
+    // chunk states
+    private static final int UNLOADED = 0;
+    private static final int LOADING = 1;
+    private static final int RESIDENT = 2;
+
+    /**
+        A chunk read from the map, before it's added to the
+        TileMap.
+    */
+    private static class Chunk {
+        int index;
+        int loadId;
+        short[] tiles;
+        ArrayList sprites = new ArrayList();
+        StringBuffer types = new StringBuffer();
+    }
+
+
+    /**
+        The saved Sprites of a chunk that isn't resident. Each
+        Sprite is saved as its map character, location, and
+        velocity.
+    */
+    private static class SavedSprites {
+        char[] types = new char[4];
+        float[] state = new float[16];
+        int size;
+
+        void add(char type, Sprite sprite) {
+            if (size == types.length) {
+                char[] newTypes = new char[size * 2];
+                float[] newState = new float[size * 8];
+                System.arraycopy(types, 0, newTypes, 0, size);
+                System.arraycopy(state, 0, newState, 0, size * 4);
+                types = newTypes;
+                state = newState;
+            }
+            types[size] = type;
+            state[size * 4] = sprite.getX();
+            state[size * 4 + 1] = sprite.getY();
+            state[size * 4 + 2] = sprite.getVelocityX();
+            state[size * 4 + 3] = sprite.getVelocityY();
+            size++;
+        }
+    }
+
+
+    // the map data, shared by restarted streamers
+    private ByteBuffer buffer;
+    private TileGameResourceManager resourceManager;
+    private ThreadPool threadPool;
+    private int width;
+    private int height;
+    private int chunkTiles;
+    private int numChunks;
+    private char[] spawnTypes;
+    private int[] spawnX;
+    private int[] spawnY;
+    private int[] chunkSpawnStart;
+
+    private TileMap map;
+    private int[] chunkStates;
+    private int[] chunkLoadIds;
+    private SavedSprites[] savedSprites;
+    private LinkedList readyChunks;
+    private IdentityHashMap spriteTypes;
+    private ArrayList spriteCache;
+    private TileChunkCache chunkCache;
+    private int firstChunk;
+    private int lastChunk;
+    private int direction;
+    // when turning, the chunk the player turned around in
+    private boolean turning;
+    private int turnChunk;
+    private boolean closed;
+
+    private int numLoads;
+    private int numSyncLoads;
+    private int numUnloads;
+
+    /**
+        Creates a new TileMapStreamer for a compiled map. Tiles
+        are read from the buffer as they are needed, so the
+        buffer should not change. Chunks are loaded in the
+        background with the specified ThreadPool.
+        @throws IOException if the buffer isn't a compiled map.
+    */
+    public TileMapStreamer(ByteBuffer buffer,
+        TileGameResourceManager resourceManager,
+        ThreadPool threadPool) throws IOException
+    {
+        this.buffer = buffer;
+        this.resourceManager = resourceManager;
+        this.threadPool = threadPool;
+        chunkTiles = DEFAULT_CHUNK_TILES;
+
+        // read the header
+        if (buffer.limit() < MapCompiler.HEADER_SIZE ||
+            buffer.getInt(0) != MapCompiler.MAGIC ||
+            buffer.getInt(4) != MapCompiler.VERSION)
+        {
+            throw new IOException("Not a compiled map");
+        }
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        int numSpawns = buffer.getInt(16);
+        int spawnOffset = MapCompiler.HEADER_SIZE + width * height * 2;
+        if (buffer.limit() !=
+            spawnOffset + numSpawns * MapCompiler.SPAWN_SIZE)
+        {
+            throw new IOException("Bad compiled map size");
+        }
+        numChunks = (width + chunkTiles - 1) / chunkTiles;
+
+        // sort the spawns by chunk
+        chunkSpawnStart = new int[numChunks + 1];
+        for (int i=0; i<numSpawns; i++) {
+            int x = buffer.getInt(
+                spawnOffset + i * MapCompiler.SPAWN_SIZE + 1);
+            chunkSpawnStart[getChunk(x) + 1]++;
+        }
+        for (int i=0; i<numChunks; i++) {
+            chunkSpawnStart[i + 1]+=chunkSpawnStart[i];
+        }
+        int[] next = new int[numChunks];
+        System.arraycopy(chunkSpawnStart, 0, next, 0, numChunks);
+        spawnTypes = new char[numSpawns];
+        spawnX = new int[numSpawns];
+        spawnY = new int[numSpawns];
+        for (int i=0; i<numSpawns; i++) {
+            int offset = spawnOffset + i * MapCompiler.SPAWN_SIZE;
+            int x = buffer.getInt(offset + 1);
+            int j = next[getChunk(x)]++;
+            spawnTypes[j] = (char)(buffer.get(offset) & 0xff);
+            spawnX[j] = x;
+            spawnY[j] = buffer.getInt(offset + 5);
+        }
+
+        start();
+    }
+
+
+    /**
+        Creates a new TileMapStreamer that streams the same map
+        as another, from the start.
+    */
+    private TileMapStreamer(TileMapStreamer streamer) {
+        buffer = streamer.buffer;
+        resourceManager = streamer.resourceManager;
+        threadPool = streamer.threadPool;
+        width = streamer.width;
+        height = streamer.height;
+        chunkTiles = streamer.chunkTiles;
+        numChunks = streamer.numChunks;
+        spawnTypes = streamer.spawnTypes;
+        spawnX = streamer.spawnX;
+        spawnY = streamer.spawnY;
+        chunkSpawnStart = streamer.chunkSpawnStart;
+        start();
+    }
+
+
+    /**
+        Creates the TileMap and loads the chunks around the
+        player.
+    */
+    private void start() {
+        map = new TileMap(width, height,
+            resourceManager.getPalette());
+        map.setStreamer(this);
+        chunkStates = new int[numChunks];
+        chunkLoadIds = new int[numChunks];
+        savedSprites = new SavedSprites[numChunks];
+        readyChunks = new LinkedList();
+        spriteTypes = new IdentityHashMap();
+        spriteCache = new ArrayList();
+        firstChunk = 0;
+        lastChunk = -1;
+        direction = 1;
+        turning = false;
+        resourceManager.addPlayer(map);
+        update();
+    }
+
+
+    /**
+        Creates a new TileMapStreamer that streams the same map
+        from the start, as it was before any chunks were loaded.
+        This streamer should be closed.
+    */
+    public TileMapStreamer restart() {
+        return new TileMapStreamer(this);
+    }
+
+
+    /**
+        Stops loading chunks. Chunks that are loading in the
+        background are thrown away.
+    */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            while (!readyChunks.isEmpty()) {
+                releaseChunk((Chunk)readyChunks.removeFirst());
+            }
+        }
+    }
+
+
+    /**
+        Gets the TileMap this streamer loads chunks into.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Sets the TileChunkCache that draws the map, so chunks of
+        the cache can be redrawn when tiles are loaded or
+        unloaded.
+    */
+    public void setChunkCache(TileChunkCache chunkCache) {
+        this.chunkCache = chunkCache;
+    }
+
+
+    /**
+        Gets the number of chunks loaded.
+    */
+    public int getNumLoads() {
+        return numLoads;
+    }
+
+
+    /**
+        Gets the number of chunks that weren't loaded in the
+        background in time, and were loaded on the game thread.
+    */
+    public int getNumSyncLoads() {
+        return numSyncLoads;
+    }
+
+
+    /**
+        Gets the number of chunks unloaded.
+    */
+    public int getNumUnloads() {
+        return numUnloads;
+    }
+
+
+    /**
+        Moves the window of resident chunks to the player's
+        location. Chunks that finished loading in the background
+        are added to the map, chunks that entered the window are
+        requested, and chunks that left the window are unloaded.
+    */
+    public void update() {
+        Sprite player = map.getPlayer();
+        int center = getChunk(
+            TileMapRenderer.pixelsToTiles(player.getX()));
+        if (turning) {
+            // the direction is the way the player left the
+            // chunk it turned around in
+            if (center != turnChunk) {
+                direction = (center > turnChunk) ? 1 : -1;
+                turning = false;
+            }
+        }
+        else if (player.getVelocityX() * direction < 0) {
+            turning = true;
+            turnChunk = center;
+        }
+        int first;
+        int last;
+        if (turning) {
+            // keep the chunks ahead on both sides
+            first = Math.max(0, center - CHUNKS_AHEAD);
+            last = Math.min(numChunks - 1, center + CHUNKS_AHEAD);
+        }
+        else {
+            first = Math.max(0, center -
+                ((direction > 0) ? CHUNKS_BEHIND : CHUNKS_AHEAD));
+            last = Math.min(numChunks - 1, center +
+                ((direction > 0) ? CHUNKS_AHEAD : CHUNKS_BEHIND));
+        }
+
+        // unload the chunks that left the window
+        if (first != firstChunk || last != lastChunk) {
+            for (int i=firstChunk; i<=lastChunk; i++) {
+                if ((i < first || i > last) &&
+                    chunkStates[i] == RESIDENT)
+                {
+                    unloadChunk(i);
+                }
+            }
+            firstChunk = first;
+            lastChunk = last;
+        }
+
+        // add the chunks loaded in the background
+        while (true) {
+            Chunk chunk;
+            synchronized (this) {
+                if (readyChunks.isEmpty()) {
+                    break;
+                }
+                chunk = (Chunk)readyChunks.removeFirst();
+            }
+            if (chunk.loadId != chunkLoadIds[chunk.index]) {
+                // the chunk was loaded on the game thread instead
+                releaseChunk(chunk);
+                continue;
+            }
+            if (chunk.index < first || chunk.index > last) {
+                // left the window before it was added
+                chunkStates[chunk.index] = UNLOADED;
+                releaseChunk(chunk);
+            }
+            else {
+                addChunk(chunk);
+            }
+        }
+
+        // the chunks next to the player are needed now
+        for (int i=Math.max(0, center - 1);
+            i<=Math.min(numChunks - 1, center + 1); i++)
+        {
+            if (chunkStates[i] != RESIDENT) {
+                loadChunkNow(i);
+            }
+        }
+
+        // request the rest of the window, nearest chunks first
+        for (int d=2; d<=CHUNKS_AHEAD; d++) {
+            requestChunk(center + d * direction, first, last);
+            requestChunk(center - d * direction, first, last);
+        }
+
+        // save the Sprites that wandered out of the window
+        despawnSprites(0, first - 1);
+        despawnSprites(last + 1, numChunks - 1);
+    }
+
+
+    /**
+        Requests a chunk in the window to be loaded in the
+        background, if it isn't loaded.
+    */
+    private void requestChunk(final int index, int first, int last) {
+        if (index < first || index > last ||
+            chunkStates[index] != UNLOADED)
+        {
+            return;
+        }
+        final SavedSprites saved = savedSprites[index];
+        final int loadId = ++chunkLoadIds[index];
+        chunkStates[index] = LOADING;
+        threadPool.runTask(new Runnable() {
+            public void run() {
+                synchronized (TileMapStreamer.this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                Chunk chunk = readChunk(index, saved);
+                chunk.loadId = loadId;
+                synchronized (TileMapStreamer.this) {
+                    if (!closed) {
+                        readyChunks.add(chunk);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+        Loads a chunk on the game thread. If the chunk is still
+        loading in the background, it's loaded again, and the
+        background copy is thrown away when it's ready.
+    */
+    private void loadChunkNow(int index) {
+        // the chunk is loaded in the background, but isn't
+        // ready yet
+        chunkLoadIds[index]++;
+        numSyncLoads++;
+        addChunk(readChunk(index, savedSprites[index]));
+    }
+
+
+    /**
+        Reads the tiles of a chunk and creates its Sprites,
+        either from the saved Sprites or from the map's spawns.
+        This method can be called from any thread.
+    */
+    private Chunk readChunk(int index, SavedSprites saved) {
+        Chunk chunk = new Chunk();
+        chunk.index = index;
+
+        // read the tiles (absolute reads, so the buffer can be
+        // shared between threads)
+        int firstX = index * chunkTiles;
+        int chunkWidth = Math.min(chunkTiles, width - firstX);
+        int numTileTypes = resourceManager.getPalette().size();
+        chunk.tiles = new short[chunkWidth * height];
+        for (int y=0; y<height; y++) {
+            int offset = MapCompiler.HEADER_SIZE +
+                (firstX + y * width) * 2;
+            for (int x=0; x<chunkWidth; x++) {
+                short id = buffer.getShort(offset + x * 2);
+                if (id >= numTileTypes) {
+                    // no image for this tile
+                    id = TilePalette.EMPTY;
+                }
+                chunk.tiles[x + y * chunkWidth] = id;
+            }
+        }
+
+        // create the sprites
+        if (saved != null) {
+            for (int i=0; i<saved.size; i++) {
+                Sprite sprite = resourceManager.getSpritePool(
+                    saved.types[i]).getSprite();
+                sprite.setX(saved.state[i * 4]);
+                sprite.setY(saved.state[i * 4 + 1]);
+                sprite.setVelocityX(saved.state[i * 4 + 2]);
+                sprite.setVelocityY(saved.state[i * 4 + 3]);
+                chunk.sprites.add(sprite);
+                chunk.types.append(saved.types[i]);
+            }
+        }
+        else {
+            for (int i=chunkSpawnStart[index];
+                i<chunkSpawnStart[index + 1]; i++)
+            {
+                Sprite sprite = resourceManager.createSprite(
+                    resourceManager.getSpritePool(spawnTypes[i]),
+                    spawnX[i], spawnY[i]);
+                if (sprite != null) {
+                    chunk.sprites.add(sprite);
+                    chunk.types.append(spawnTypes[i]);
+                }
+            }
+        }
+        return chunk;
+    }
+
+
+    /**
+        Adds the tiles and Sprites of a loaded chunk to the map.
+    */
+    private void addChunk(Chunk chunk) {
+        int firstX = chunk.index * chunkTiles;
+        int chunkWidth = chunk.tiles.length / height;
+        short[] tiles = map.getTileIds();
+        for (int y=0; y<height; y++) {
+            System.arraycopy(chunk.tiles, y * chunkWidth,
+                tiles, firstX + y * width, chunkWidth);
+        }
+        map.tilesChanged();
+        invalidate(firstX, chunkWidth);
+
+        for (int i=0; i<chunk.sprites.size(); i++) {
+            Sprite sprite = (Sprite)chunk.sprites.get(i);
+            map.addSprite(sprite);
+            spriteTypes.put(sprite,
+                Character.valueOf(chunk.types.charAt(i)));
+        }
+        chunkStates[chunk.index] = RESIDENT;
+        savedSprites[chunk.index] = null;
+        numLoads++;
+    }
+
+
+    /**
+        Clears the tiles of a chunk and saves its Sprites.
+    */
+    private void unloadChunk(int index) {
+        int firstX = index * chunkTiles;
+        int chunkWidth = Math.min(chunkTiles, width - firstX);
+        short[] tiles = map.getTileIds();
+        for (int y=0; y<height; y++) {
+            Arrays.fill(tiles, firstX + y * width,
+                firstX + y * width + chunkWidth, (short)TilePalette.EMPTY);
+        }
+        map.tilesChanged();
+        invalidate(firstX, chunkWidth);
+
+        chunkStates[index] = UNLOADED;
+        despawnSprites(index, index);
+        numUnloads++;
+    }
+
+
+    /**
+        Removes the Sprites whose center is in an unloaded chunk
+        in the specified range of chunks from the map, and saves
+        them with their chunk. Creatures that are dying or dead
+        are not saved.
+    */
+    private void despawnSprites(int firstIndex, int lastIndex) {
+        if (firstIndex > lastIndex) {
+            return;
+        }
+        map.getSprites(
+            TileMapRenderer.tilesToPixels(firstIndex * chunkTiles),
+            TileMapRenderer.tilesToPixels(
+                (lastIndex - firstIndex + 1) * chunkTiles),
+            spriteCache);
+        for (int i=0; i<spriteCache.size(); i++) {
+            Sprite sprite = (Sprite)spriteCache.get(i);
+            Character type = (Character)spriteTypes.get(sprite);
+            int index = getChunk(TileMapRenderer.pixelsToTiles(
+                sprite.getX() + sprite.getWidth() / 2));
+            if (type == null || index < firstIndex ||
+                index > lastIndex || chunkStates[index] != UNLOADED)
+            {
+                continue;
+            }
+            map.removeSprite(sprite);
+            spriteTypes.remove(sprite);
+            if (!(sprite instanceof Creature) ||
+                ((Creature)sprite).isAlive())
+            {
+                if (savedSprites[index] == null) {
+                    savedSprites[index] = new SavedSprites();
+                }
+                savedSprites[index].add(type.charValue(), sprite);
+            }
+            resourceManager.releaseSprite(sprite);
+        }
+        spriteCache.clear();
+    }
+
+
+    /**
+        Returns the Sprites of a chunk that won't be added to the
+        map to their pools.
+    */
+    private void releaseChunk(Chunk chunk) {
+        for (int i=0; i<chunk.sprites.size(); i++) {
+            resourceManager.releaseSprite((Sprite)chunk.sprites.get(i));
+        }
+    }
+
+
+    private void invalidate(int firstX, int chunkWidth) {
+        if (chunkCache != null) {
+            chunkCache.invalidateColumns(firstX,
+                firstX + chunkWidth - 1);
+        }
+    }
+
+
+    /**
+        Gets the chunk for a tile x location. Locations off
+        the map are in the first or last chunk.
+    */
+    private int getChunk(int tileX) {
+        return Math.max(0, Math.min(tileX / chunkTiles,
+            numChunks - 1));
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Graphics;
+import java.awt.Image;
+
+import com.brackeen.javagamebook.graphics.AtlasRegion;
+
+/**
+    A TilePalette maps tile ids to tile Images and tile flags
+    (like whether the tile is solid). Tile id 0 is always the
+    empty tile, with no Image and no flags. A TileMap only
+    stores tile ids, so many TileMaps can share one palette.
+    <p>A tile can be an Image or an AtlasRegion of a
+    TextureAtlas.
+*/
+public class TilePalette {
+
+    /**
+        Flag for tiles that sprites can't move through.
+    */
+    public static final int FLAG_SOLID = 1;
+
+    /**
+        The id of the empty tile.
+    */
+    public static final int EMPTY = 0;
+
+    private Image[] images;
+    private AtlasRegion[] regions;
+    private byte[] flags;
+    private int size;
+
+    /**
+        Creates a new TilePalette with just the empty tile.
+    */
+    public TilePalette() {
+        images = new Image[16];
+        regions = new AtlasRegion[16];
+        flags = new byte[16];
+        size = 1;
+    }
+
+
+    /**
+        Adds a tile to this palette and returns its id.
+    */
+    public int add(Image image, int tileFlags) {
+        return add(image, null, tileFlags);
+    }
+
+
+    /**
+        Adds a tile that is a region of a TextureAtlas to this
+        palette and returns its id.
+    */
+    public int add(AtlasRegion region, int tileFlags) {
+        return add(null, region, tileFlags);
+    }
+
+
+    private int add(Image image, AtlasRegion region, int tileFlags) {
+        if (size > Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many tiles");
+        }
+        if (size == images.length) {
+            Image[] newImages = new Image[size * 2];
+            AtlasRegion[] newRegions = new AtlasRegion[size * 2];
+            byte[] newFlags = new byte[size * 2];
+            System.arraycopy(images, 0, newImages, 0, size);
+            System.arraycopy(regions, 0, newRegions, 0, size);
+            System.arraycopy(flags, 0, newFlags, 0, size);
+            images = newImages;
+            regions = newRegions;
+            flags = newFlags;
+        }
+        images[size] = image;
+        regions[size] = region;
+        flags[size] = (byte)tileFlags;
+        size++;
+        return size - 1;
+    }
+
+
+    /**
+        Gets the id of the tile with the specified Image, adding
+        a new solid tile if there is no tile with the Image. The
+        Image of an AtlasRegion tile (from getImage()) is the
+        region's tile. Returns EMPTY if the Image is null.
+    */
+    public int getId(Image image) {
+        if (image == null) {
+            return EMPTY;
+        }
+        for (int i=1; i<size; i++) {
+            if (images[i] == image ||
+                (regions[i] != null && regions[i].isImage(image)))
+            {
+                return i;
+            }
+        }
+        return add(image, FLAG_SOLID);
+    }
+
+
+    /**
+        Gets the number of tiles in this palette, including the
+        empty tile.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the Image of the tile with the specified id.
+    */
+    public Image getImage(int id) {
+        if (regions[id] != null) {
+            return regions[id].getImage();
+        }
+        return images[id];
+    }
+
+
+    /**
+        Gets the AtlasRegion of the tile with the specified id,
+        or null if the tile isn't in a TextureAtlas.
+    */
+    public AtlasRegion getRegion(int id) {
+        return regions[id];
+    }
+
+
+    /**
+        Draws the tile with the specified id at the specified
+        location.
+    */
+    public void draw(Graphics g, int id, int x, int y) {
+        if (regions[id] != null) {
+            regions[id].draw(g, x, y);
+        }
+        else {
+            g.drawImage(images[id], x, y, null);
+        }
+    }
+
+
+    /**
+        Gets the flags of the tile with the specified id.
+    */
+    public int getFlags(int id) {
+        return flags[id];
+    }
+
+
+    /**
+        Checks if the tile with the specified id is solid.
+    */
+    public boolean isSolid(int id) {
+        return ((flags[id] & FLAG_SOLID) != 0);
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    A TilePath is a list of tile locations (waypoints) found by
+    a TilePathFinder, and a position along that list. The first
+    waypoint is the start tile. A TilePath keeps its arrays
+    between searches, so a Creature can reuse the same TilePath
+    for every search without allocating new objects.
+*/
+public class TilePath {
+
+    private int[] tileX;
+    private int[] tileY;
+    private int size;
+    private int index;
+
+    /**
+        Creates a new, empty TilePath.
+    */
+    public TilePath() {
+        tileX = new int[16];
+        tileY = new int[16];
+    }
+
+
+    /**
+        Removes all waypoints from this path.
+    */
+    public void clear() {
+        size = 0;
+        index = 0;
+    }
+
+
+    /**
+        Sets the number of waypoints in this path and moves to
+        the first waypoint. The arrays only grow if they are too
+        small.
+    */
+    void setSize(int size) {
+        if (size > tileX.length) {
+            int capacity = Math.max(size, tileX.length * 2);
+            tileX = new int[capacity];
+            tileY = new int[capacity];
+        }
+        this.size = size;
+        index = 0;
+    }
+
+
+    /**
+        Sets the waypoint at the specified index.
+    */
+    void set(int i, int x, int y) {
+        tileX[i] = x;
+        tileY[i] = y;
+    }
+
+
+    /**
+        Gets the number of waypoints in this path.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the tile x location of the specified waypoint.
+    */
+    public int getX(int i) {
+        return tileX[i];
+    }
+
+
+    /**
+        Gets the tile y location of the specified waypoint.
+    */
+    public int getY(int i) {
+        return tileY[i];
+    }
+
+
+    /**
+        Returns true if every waypoint in this path has been
+        reached (or if the path is empty).
+    */
+    public boolean isDone() {
+        return (index >= size);
+    }
+
+
+    /**
+        Gets the tile x location of the next waypoint.
+    */
+    public int getNextX() {
+        return tileX[index];
+    }
+
+
+    /**
+        Gets the tile y location of the next waypoint.
+    */
+    public int getNextY() {
+        return tileY[index];
+    }
+
+
+    /**
+        Moves on to the next waypoint.
+    */
+    public void next() {
+        index++;
+    }
+
+}
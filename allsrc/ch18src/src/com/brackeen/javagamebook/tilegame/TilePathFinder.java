@@ -0,0 +1,749 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Arrays;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The TilePathFinder finds paths between tiles of a TileMap
+    using the A* algorithm with jump-point pruning.
+    <p>Flying creatures can move in all eight directions, but
+    can't cut the corner of a solid tile. Jump-point search
+    skips over the long straight and diagonal runs of empty
+    tiles, so only a few tiles ("jump points") are ever put
+    on the open list.
+    <p>Walking creatures are affected by gravity. They can only
+    stand on top of a solid tile, and move by walking along
+    the ground, by falling off a ledge, or by jumping up to a
+    maximum height and width. While walking, tiles are skipped
+    until the ground ends or the tiles above or ahead change,
+    because until then any jump from the skipped tiles can be
+    made from the jump point as well.
+    <p>A search can be limited to a window of columns around
+    the start and goal tiles (see setSearchMargin()), so a
+    search for an unreachable goal doesn't flood the whole map.
+    <p>All search state is kept in arrays with one entry per
+    tile, which are allocated when the map is set and reused
+    for every search, so a search allocates no objects.
+*/
+public class TilePathFinder {
+
+    private static final float SQRT2 = (float)Math.sqrt(2);
+
+    // extra cost of a jump, so creatures don't jump when they
+    // can walk
+    private static final float JUMP_COST = 1;
+    // cost per tile of a fall
+    private static final float FALL_COST = .5f;
+    // the ground and the tiles up to the jump height must fit
+    // in one int
+    private static final int MAX_JUMP_HEIGHT = 29;
+
+    private static final int NOT_OPEN = -1;
+    private static final int CLOSED = -2;
+
+    private TileMap map;
+    private int width;
+    private int height;
+    private boolean[] solid;
+    private int searchMargin = -1;
+
+    // the node pool: search state for every tile, indexed by
+    // x + y * width
+    private float[] costFromStart;
+    private float[] totalCost;
+    private int[] pathParent;
+    private int[] heapIndex;
+    private int[] searchId;
+    private int currentSearchId;
+
+    // the open list, a binary heap of tile indices
+    private int[] heap;
+    private int heapSize;
+
+    // the current search
+    private int minX;
+    private int maxX;
+    private int goalX;
+    private int goalY;
+    private int jumpHeight;
+    private int jumpWidth;
+    private int numNodesExpanded;
+
+    /**
+        Creates a new TilePathFinder. Call setMap() before
+        finding paths.
+    */
+    public TilePathFinder() {
+
+    }
+
+
+    /**
+        Sets the TileMap to find paths in. The solid tiles of
+        the map are copied, so call this method again if the
+        tiles of the map change.
+    */
+    public void setMap(TileMap map) {
+        this.map = map;
+        width = map.getWidth();
+        height = map.getHeight();
+        int size = width * height;
+        if (solid == null || solid.length < size) {
+            solid = new boolean[size];
+            costFromStart = new float[size];
+            totalCost = new float[size];
+            pathParent = new int[size];
+            heapIndex = new int[size];
+            searchId = new int[size];
+            heap = new int[size];
+        }
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                solid[x + y * width] = map.isSolidUnchecked(x, y);
+            }
+        }
+    }
+
+
+    /**
+        Gets the TileMap paths are found in.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Sets how many columns beyond the start and goal tiles a
+        search may visit. Columns outside this window are
+        treated as solid, so a path that would have to leave the
+        window isn't found. A negative margin (the default)
+        means the whole map is searched.
+    */
+    public void setSearchMargin(int searchMargin) {
+        this.searchMargin = searchMargin;
+    }
+
+
+    /**
+        Gets how many columns beyond the start and goal tiles a
+        search may visit, or -1 if the whole map is searched.
+    */
+    public int getSearchMargin() {
+        return searchMargin;
+    }
+
+
+    /**
+        Gets the number of nodes expanded by the last search.
+    */
+    public int getNumNodesExpanded() {
+        return numNodesExpanded;
+    }
+
+
+    /**
+        Finds a path for the specified Creature to the tile the
+        target Sprite is in, and stores it in the specified
+        TilePath. Flying creatures fly to the target; other
+        creatures walk and jump to the ground below the target,
+        with the jump height and width based on the creature's
+        jump speed, maximum speed, and gravity. Returns false
+        (and clears the path) if no path was found within the
+        search window.
+    */
+    public boolean findPath(Creature creature, Sprite target,
+        TilePath path)
+    {
+        int startX = TileMapRenderer.pixelsToTiles(
+            creature.getX() + creature.getWidth() / 2);
+        int goalX = TileMapRenderer.pixelsToTiles(
+            target.getX() + target.getWidth() / 2);
+
+        if (creature.isFlying()) {
+            int startY = TileMapRenderer.pixelsToTiles(
+                creature.getY() + creature.getHeight() / 2);
+            int goalY = TileMapRenderer.pixelsToTiles(
+                target.getY() + target.getHeight() / 2);
+            return findFlyingPath(startX, startY, goalX, goalY, path);
+        }
+        else {
+            int startY = TileMapRenderer.pixelsToTiles(
+                creature.getY() + creature.getHeight() - 1);
+            int goalY = TileMapRenderer.pixelsToTiles(
+                target.getY() + target.getHeight() - 1);
+
+            // get the jump size from the jump's air time:
+            // height = v^2 / 2g, time = 2v / g
+            float v = creature.getJumpSpeed();
+            float g = MainGameState.GRAVITY;
+            int jumpHeight = TileMapRenderer.pixelsToTiles(
+                (int)(v * v / (2 * g)));
+            int jumpWidth = 0;
+            if (jumpHeight > 0) {
+                jumpWidth = Math.max(1, TileMapRenderer.pixelsToTiles(
+                    (int)(creature.getMaxSpeed() * 2 * v / g)));
+            }
+            return findWalkingPath(startX, startY, goalX, goalY,
+                jumpHeight, jumpWidth, path);
+        }
+    }
+
+
+    /**
+        Finds a path for a flying creature between two tiles.
+        Returns false (and clears the path) if no path was found.
+    */
+    public boolean findFlyingPath(int startX, int startY,
+        int goalX, int goalY, TilePath path)
+    {
+        path.clear();
+        setWindow(startX, goalX);
+        if (!isFree(startX, startY) || !isFree(goalX, goalY)) {
+            return false;
+        }
+        return search(startX, startY, goalX, goalY, true, path);
+    }
+
+
+    /**
+        Finds a path for a walking creature between two tiles.
+        If the start or goal tile is in the air, the tile on the
+        ground below it is used instead. The creature can jump
+        up to jumpHeight tiles high and jumpWidth tiles across.
+        Returns false (and clears the path) if no path was found.
+    */
+    public boolean findWalkingPath(int startX, int startY,
+        int goalX, int goalY, int jumpHeight, int jumpWidth,
+        TilePath path)
+    {
+        path.clear();
+        setWindow(startX, goalX);
+        startY = getGroundY(startX, startY);
+        goalY = getGroundY(goalX, goalY);
+        if (startY == -1 || goalY == -1) {
+            return false;
+        }
+        this.jumpHeight = Math.min(jumpHeight, MAX_JUMP_HEIGHT);
+        this.jumpWidth = (this.jumpHeight > 0) ? jumpWidth : 0;
+        return search(startX, startY, goalX, goalY, false, path);
+    }
+
+
+    /**
+        Sets the window of columns the next search may visit.
+    */
+    private void setWindow(int startX, int goalX) {
+        if (searchMargin < 0) {
+            minX = 0;
+            maxX = width - 1;
+        }
+        else {
+            minX = Math.max(0, Math.min(startX, goalX) - searchMargin);
+            maxX = Math.min(width - 1,
+                Math.max(startX, goalX) + searchMargin);
+        }
+    }
+
+
+    /**
+        The A* search. Returns true if a path was found.
+    */
+    private boolean search(int startX, int startY, int goalX,
+        int goalY, boolean flying, TilePath path)
+    {
+        this.goalX = goalX;
+        this.goalY = goalY;
+        numNodesExpanded = 0;
+        startSearch();
+
+        int start = startX + startY * width;
+        int goal = goalX + goalY * width;
+        touch(start);
+        costFromStart[start] = 0;
+        totalCost[start] = getEstimatedCost(start, flying);
+        push(start);
+
+        while (heapSize > 0) {
+            int node = pop();
+            if (node == goal) {
+                // path found
+                constructPath(goal, path);
+                return true;
+            }
+            numNodesExpanded++;
+            if (flying) {
+                expandFlying(node);
+            }
+            else {
+                expandWalking(node);
+            }
+        }
+
+        // no path found
+        return false;
+    }
+
+
+    /**
+        Starts a new search. Tiles are only reset when they are
+        first touched by a search, unless the search id wraps
+        around.
+    */
+    private void startSearch() {
+        heapSize = 0;
+        currentSearchId++;
+        if (currentSearchId == Integer.MAX_VALUE) {
+            Arrays.fill(searchId, 0);
+            currentSearchId = 1;
+        }
+    }
+
+
+    /**
+        Resets the search state of a tile, if it hasn't been
+        touched by the current search yet.
+    */
+    private void touch(int node) {
+        if (searchId[node] != currentSearchId) {
+            searchId[node] = currentSearchId;
+            costFromStart[node] = Float.MAX_VALUE;
+            pathParent[node] = -1;
+            heapIndex[node] = NOT_OPEN;
+        }
+    }
+
+
+    /**
+        Tries to reach a tile from a node. The tile is added to
+        the open list (or moved up in it) if this is the
+        cheapest way to reach the tile so far.
+    */
+    private void relax(int node, int neighbor, float cost,
+        boolean flying)
+    {
+        touch(neighbor);
+        if (heapIndex[neighbor] == CLOSED) {
+            return;
+        }
+        cost+=costFromStart[node];
+        if (cost < costFromStart[neighbor]) {
+            costFromStart[neighbor] = cost;
+            pathParent[neighbor] = node;
+            totalCost[neighbor] = cost +
+                getEstimatedCost(neighbor, flying);
+            if (heapIndex[neighbor] == NOT_OPEN) {
+                push(neighbor);
+            }
+            else {
+                siftUp(heapIndex[neighbor]);
+            }
+        }
+    }
+
+
+    /**
+        Gets the estimated cost from a tile to the goal. For
+        flying creatures, this is the octile distance. For
+        walking creatures, it's the horizontal distance plus the
+        cost to climb or fall to the goal's height.
+    */
+    private float getEstimatedCost(int node, boolean flying) {
+        int dx = Math.abs(node % width - goalX);
+        int dy = node / width - goalY;
+        if (flying) {
+            dy = Math.abs(dy);
+            return Math.max(dx, dy) +
+                (SQRT2 - 1) * Math.min(dx, dy);
+        }
+        else if (dy > 0) {
+            // goal is above
+            return dx + dy;
+        }
+        else {
+            return dx - dy * FALL_COST;
+        }
+    }
+
+
+    /**
+        Stores the path to the specified goal tile, following
+        the path parents back to the start.
+    */
+    private void constructPath(int goal, TilePath path) {
+        int size = 0;
+        for (int node = goal; node != -1; node = pathParent[node]) {
+            size++;
+        }
+        path.setSize(size);
+        int i = size - 1;
+        for (int node = goal; node != -1; node = pathParent[node]) {
+            path.set(i, node % width, node / width);
+            i--;
+        }
+    }
+
+
+    // -----------------------------------------------------------
+    // flying
+    // -----------------------------------------------------------
+
+
+    /**
+        Expands a node for a flying creature. The directions
+        searched are pruned based on the direction the node was
+        reached from.
+    */
+    private void expandFlying(int node) {
+        int x = node % width;
+        int y = node / width;
+        int parent = pathParent[node];
+        if (parent == -1) {
+            // start node: search in every direction
+            for (int dy=-1; dy<=1; dy++) {
+                for (int dx=-1; dx<=1; dx++) {
+                    if (dx != 0 || dy != 0) {
+                        jumpFlying(node, x, y, dx, dy);
+                    }
+                }
+            }
+            return;
+        }
+
+        int dx = sign(x - parent % width);
+        int dy = sign(y - parent / width);
+        if (dx != 0 && dy != 0) {
+            // diagonal: the natural neighbors only. No corner
+            // cutting means there are no forced neighbors.
+            jumpFlying(node, x, y, dx, 0);
+            jumpFlying(node, x, y, 0, dy);
+            jumpFlying(node, x, y, dx, dy);
+        }
+        else if (dx != 0) {
+            // horizontal: forced neighbors are above or below
+            // a tile that was blocked behind this node
+            jumpFlying(node, x, y, dx, 0);
+            for (int s=-1; s<=1; s+=2) {
+                if (isFree(x, y + s) && !isFree(x - dx, y + s)) {
+                    jumpFlying(node, x, y, 0, s);
+                    jumpFlying(node, x, y, dx, s);
+                }
+            }
+        }
+        else {
+            // vertical
+            jumpFlying(node, x, y, 0, dy);
+            for (int s=-1; s<=1; s+=2) {
+                if (isFree(x + s, y) && !isFree(x + s, y - dy)) {
+                    jumpFlying(node, x, y, s, 0);
+                    jumpFlying(node, x, y, s, dy);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Jumps from a node in the specified direction, and adds
+        the jump point found (if any) to the open list.
+    */
+    private void jumpFlying(int node, int x, int y, int dx, int dy) {
+        int jumpPoint = jump(x, y, dx, dy);
+        if (jumpPoint != -1) {
+            int n = Math.max(Math.abs(jumpPoint % width - x),
+                Math.abs(jumpPoint / width - y));
+            float cost = (dx != 0 && dy != 0) ? n * SQRT2 : n;
+            relax(node, jumpPoint, cost, true);
+        }
+    }
+
+
+    /**
+        Moves from a tile in the specified direction until a
+        jump point is found: the goal, a tile with a forced
+        neighbor, or (when moving diagonally) a tile from which
+        a horizontal or vertical jump finds a jump point.
+        Returns -1 if a solid tile is reached first.
+    */
+    private int jump(int x, int y, int dx, int dy) {
+        while (true) {
+            if (!canFly(x, y, dx, dy)) {
+                return -1;
+            }
+            x+=dx;
+            y+=dy;
+            if (x == goalX && y == goalY) {
+                return x + y * width;
+            }
+            if (dx != 0 && dy != 0) {
+                if (jump(x, y, dx, 0) != -1 || jump(x, y, 0, dy) != -1) {
+                    return x + y * width;
+                }
+            }
+            else if (dx != 0) {
+                if ((isFree(x, y - 1) && !isFree(x - dx, y - 1)) ||
+                    (isFree(x, y + 1) && !isFree(x - dx, y + 1)))
+                {
+                    return x + y * width;
+                }
+            }
+            else {
+                if ((isFree(x - 1, y) && !isFree(x - 1, y - dy)) ||
+                    (isFree(x + 1, y) && !isFree(x + 1, y - dy)))
+                {
+                    return x + y * width;
+                }
+            }
+        }
+    }
+
+
+    /**
+        Checks if a flying creature can move one tile in the
+        specified direction. Diagonal moves can't cut corners.
+    */
+    private boolean canFly(int x, int y, int dx, int dy) {
+        if (!isFree(x + dx, y + dy)) {
+            return false;
+        }
+        if (dx != 0 && dy != 0) {
+            return (isFree(x + dx, y) && isFree(x, y + dy));
+        }
+        return true;
+    }
+
+
+    // -----------------------------------------------------------
+    // walking
+    // -----------------------------------------------------------
+
+
+    /**
+        Expands a node for a walking creature: walking left and
+        right, falling off ledges, and jumping.
+    */
+    private void expandWalking(int node) {
+        int x = node % width;
+        int y = node / width;
+        for (int dx=-1; dx<=1; dx+=2) {
+
+            // walk
+            int jumpPoint = walk(x, y, dx);
+            if (jumpPoint != -1) {
+                relax(node, jumpPoint,
+                    Math.abs(jumpPoint % width - x), false);
+            }
+
+            // fall off a ledge
+            if (isFree(x + dx, y) && !isSolid(x + dx, y + 1)) {
+                int landingY = getGroundY(x + dx, y + 1);
+                if (landingY != -1) {
+                    relax(node, x + dx + landingY * width,
+                        1 + (landingY - y) * FALL_COST, false);
+                }
+            }
+
+            // jump
+            for (int apex=1; apex<=jumpHeight; apex++) {
+                int apexY = y - apex;
+                if (!isFree(x, apexY)) {
+                    break;
+                }
+                for (int i=1; i<=jumpWidth; i++) {
+                    int landingX = x + i * dx;
+                    if (!isFree(landingX, apexY)) {
+                        break;
+                    }
+                    // fall from the apex down to the ground, if
+                    // the ground is no lower than this node
+                    for (int landingY=apexY; landingY<=y; landingY++) {
+                        if (!isFree(landingX, landingY)) {
+                            break;
+                        }
+                        if (isSolid(landingX, landingY + 1)) {
+                            if (landingY < y || i > 1) {
+                                relax(node, landingX + landingY * width,
+                                    i + (y - landingY) + JUMP_COST,
+                                    false);
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Walks from a standing tile in the specified direction
+        until a jump point is found: the goal, the end of the
+        ground (a wall or a ledge), or a tile where the tiles
+        above, or the tiles a jump ahead, change. Returns -1 if
+        the creature can't walk in the direction.
+    */
+    private int walk(int x, int y, int dx) {
+        while (true) {
+            if (!canStand(x + dx, y)) {
+                return -1;
+            }
+            x+=dx;
+            if (x == goalX && y == goalY) {
+                return x + y * width;
+            }
+            if (!canStand(x + dx, y)) {
+                return x + y * width;
+            }
+            if (jumpHeight > 0) {
+                int ahead = x + jumpWidth * dx;
+                if (getColumn(x, y) != getColumn(x - dx, y) ||
+                    getColumn(ahead, y) != getColumn(ahead - dx, y))
+                {
+                    return x + y * width;
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the solid tiles of a column, from the jump height
+        above the specified row to the tile below it, as bits.
+    */
+    private int getColumn(int x, int y) {
+        int bits = 0;
+        for (int i=-1; i<=jumpHeight; i++) {
+            bits <<= 1;
+            if (isSolid(x, y - i)) {
+                bits |= 1;
+            }
+        }
+        return bits;
+    }
+
+
+    /**
+        Gets the row of the first tile, starting at the
+        specified tile and going down, that a creature can stand
+        on. Returns -1 if the tile is solid or if there is no
+        ground below it.
+    */
+    private int getGroundY(int x, int y) {
+        while (isFree(x, y)) {
+            if (isSolid(x, y + 1)) {
+                return y;
+            }
+            y++;
+        }
+        return -1;
+    }
+
+
+    /**
+        Checks if a walking creature can stand in a tile: the
+        tile is free and the tile below it is solid.
+    */
+    private boolean canStand(int x, int y) {
+        return (isFree(x, y) && isSolid(x, y + 1));
+    }
+
+
+    /**
+        Checks if a tile is solid. Tiles to the left, right, or
+        above the map (or outside the search window) are solid,
+        and tiles below the map are not (creatures fall off the
+        bottom of the map).
+    */
+    private boolean isSolid(int x, int y) {
+        if (x < minX || x > maxX || y < 0) {
+            return true;
+        }
+        if (y >= height) {
+            return false;
+        }
+        return solid[x + y * width];
+    }
+
+
+    /**
+        Checks if a tile is inside the map and isn't solid.
+    */
+    private boolean isFree(int x, int y) {
+        return (y < height && !isSolid(x, y));
+    }
+
+
+    private static int sign(int n) {
+        return (n > 0) ? 1 : ((n < 0) ? -1 : 0);
+    }
+
+
+    // -----------------------------------------------------------
+    // the open list
+    // -----------------------------------------------------------
+
+
+    private void push(int node) {
+        heap[heapSize] = node;
+        heapIndex[node] = heapSize;
+        heapSize++;
+        siftUp(heapSize - 1);
+    }
+
+
+    private int pop() {
+        int first = heap[0];
+        heapSize--;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapIndex[heap[0]] = 0;
+            siftDown(0);
+        }
+        heapIndex[first] = CLOSED;
+        return first;
+    }
+
+
+    private void siftUp(int index) {
+        int node = heap[index];
+        float cost = totalCost[node];
+        while (index > 0) {
+            int parent = (index - 1) >> 1;
+            if (totalCost[heap[parent]] <= cost) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heapIndex[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = node;
+        heapIndex[node] = index;
+    }
+
+
+    private void siftDown(int index) {
+        int node = heap[index];
+        float cost = totalCost[node];
+        int half = heapSize >> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < heapSize &&
+                totalCost[heap[right]] < totalCost[heap[child]])
+            {
+                child = right;
+            }
+            if (cost <= totalCost[heap[child]]) {
+                break;
+            }
+            heap[index] = heap[child];
+            heapIndex[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = node;
+        heapIndex[node] = index;
+    }
+
+}
@@ -0,0 +1,262 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    A TileSweep moves a Sprite's bounding box through the tiles
+    of a TileMap along both axes at once, and finds where it's
+    stopped by solid tiles. The box walks the tile grid one
+    column or row at a time, in the order the box's leading
+    edges reach them (a DDA walk), so a fast Sprite can't skip
+    over a tile or clip through the corner between two tiles.
+    When the box hits a tile on one axis, it stops on that axis
+    and keeps sliding on the other.
+    <p>A TileSweep keeps its results until the next sweep, so
+    one TileSweep can be reused for every sweep without
+    allocating new objects. Sweeping only reads the map, so
+    several threads can sweep the same map at once, each with
+    its own TileSweep.
+    <p>Tiles to the left and right of the map are solid; tiles
+    above and below the map are empty.
+*/
+public class TileSweep {
+
+    private float x;
+    private float y;
+    private boolean collisionX;
+    private boolean collisionY;
+    private int tileX;
+    private int tileY;
+    private float time;
+    private int normalX;
+    private int normalY;
+
+    /**
+        Sweeps the specified Sprite from its current location
+        by the specified distance (in pixels). The Sprite isn't
+        moved; use getX() and getY() to get where it ends up.
+    */
+    public void sweep(TileMap map, Sprite sprite, float moveX,
+        float moveY)
+    {
+        int width = sprite.getWidth();
+        int height = sprite.getHeight();
+        float startX = sprite.getX();
+        float startY = sprite.getY();
+        x = startX + moveX;
+        y = startY + moveY;
+        collisionX = false;
+        collisionY = false;
+        time = 1;
+        normalX = 0;
+        normalY = 0;
+
+        // the column and row of the box's leading edges
+        int stepX = (moveX > 0) ? 1 : -1;
+        int stepY = (moveY > 0) ? 1 : -1;
+        int edgeX = TileMapRenderer.pixelsToTiles(
+            (moveX > 0) ? startX + width - 1 : startX);
+        int edgeY = TileMapRenderer.pixelsToTiles(
+            (moveY > 0) ? startY + height - 1 : startY);
+        boolean doneX = (moveX == 0);
+        boolean doneY = (moveY == 0);
+
+        while (!doneX || !doneY) {
+            // times (0 to 1) the leading edges enter the next
+            // column and row. Tile locations are rounded, like
+            // TileMapRenderer.pixelsToTiles().
+            float timeX = 2;
+            if (!doneX) {
+                int boundary = TileMapRenderer.tilesToPixels(
+                    (moveX > 0) ? edgeX + 1 : edgeX);
+                float enterX = (moveX > 0) ?
+                    boundary - width + 0.5f : boundary - 0.5f;
+                timeX = Math.max(0, (enterX - startX) / moveX);
+            }
+            float timeY = 2;
+            if (!doneY) {
+                int boundary = TileMapRenderer.tilesToPixels(
+                    (moveY > 0) ? edgeY + 1 : edgeY);
+                float enterY = (moveY > 0) ?
+                    boundary - height + 0.5f : boundary - 0.5f;
+                timeY = Math.max(0, (enterY - startY) / moveY);
+            }
+            if (timeX > 1 && timeY > 1) {
+                // no more tiles to enter
+                break;
+            }
+
+            if (timeX <= timeY) {
+                // enter the next column
+                int column = edgeX + stepX;
+                float boxY = doneY ? y : startY + moveY * timeX;
+                if (isColumnSolid(map, column,
+                    TileMapRenderer.pixelsToTiles(boxY),
+                    TileMapRenderer.pixelsToTiles(boxY + height - 1)))
+                {
+                    // line up with the tile boundary
+                    x = (moveX > 0) ?
+                        TileMapRenderer.tilesToPixels(column) - width :
+                        TileMapRenderer.tilesToPixels(column + 1);
+                    collisionX = true;
+                    tileX = column;
+                    doneX = true;
+                    if (!collisionY) {
+                        time = timeX;
+                        normalX = -stepX;
+                    }
+                }
+                else {
+                    edgeX = column;
+                }
+            }
+            else {
+                // enter the next row
+                int row = edgeY + stepY;
+                float boxX = doneX ? x : startX + moveX * timeY;
+                if (isRowSolid(map, row,
+                    TileMapRenderer.pixelsToTiles(boxX),
+                    TileMapRenderer.pixelsToTiles(boxX + width - 1)))
+                {
+                    // line up with the tile boundary
+                    y = (moveY > 0) ?
+                        TileMapRenderer.tilesToPixels(row) - height :
+                        TileMapRenderer.tilesToPixels(row + 1);
+                    collisionY = true;
+                    tileY = row;
+                    doneY = true;
+                    if (!collisionX) {
+                        time = timeY;
+                        normalY = -stepY;
+                    }
+                }
+                else {
+                    edgeY = row;
+                }
+            }
+        }
+    }
+
+
+    /**
+        Checks if any tile in a column, between two rows, is
+        solid.
+    */
+    private boolean isColumnSolid(TileMap map, int column,
+        int firstRow, int lastRow)
+    {
+        if (column < 0 || column >= map.getWidth()) {
+            return true;
+        }
+        firstRow = Math.max(firstRow, 0);
+        lastRow = Math.min(lastRow, map.getHeight() - 1);
+        for (int row=firstRow; row<=lastRow; row++) {
+            if (map.isSolidUnchecked(column, row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Checks if any tile in a row, between two columns, is
+        solid.
+    */
+    private boolean isRowSolid(TileMap map, int row,
+        int firstColumn, int lastColumn)
+    {
+        if (row < 0 || row >= map.getHeight()) {
+            return false;
+        }
+        int mapWidth = map.getWidth();
+        for (int column=firstColumn; column<=lastColumn; column++) {
+            if (column < 0 || column >= mapWidth ||
+                map.isSolidUnchecked(column, row))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Gets the x location the Sprite ends up at.
+    */
+    public float getX() {
+        return x;
+    }
+
+
+    /**
+        Gets the y location the Sprite ends up at.
+    */
+    public float getY() {
+        return y;
+    }
+
+
+    /**
+        Checks if the Sprite hit a tile horizontally.
+    */
+    public boolean isCollisionX() {
+        return collisionX;
+    }
+
+
+    /**
+        Checks if the Sprite hit a tile vertically.
+    */
+    public boolean isCollisionY() {
+        return collisionY;
+    }
+
+
+    /**
+        Gets the column of the tile the Sprite hit horizontally.
+        Only valid if isCollisionX() is true.
+    */
+    public int getTileX() {
+        return tileX;
+    }
+
+
+    /**
+        Gets the row of the tile the Sprite hit vertically. Only
+        valid if isCollisionY() is true.
+    */
+    public int getTileY() {
+        return tileY;
+    }
+
+
+    /**
+        Gets the time of the first impact, as a fraction (0 to 1)
+        of the move. Returns 1 if nothing was hit.
+    */
+    public float getTime() {
+        return time;
+    }
+
+
+    /**
+        Gets the x part of the contact normal of the first
+        impact: -1 or 1 if the Sprite first hit a tile
+        horizontally, 0 otherwise.
+    */
+    public int getNormalX() {
+        return normalX;
+    }
+
+
+    /**
+        Gets the y part of the contact normal of the first
+        impact: -1 or 1 if the Sprite first hit a tile
+        vertically, 0 otherwise.
+    */
+    public int getNormalY() {
+        return normalY;
+    }
+
+}
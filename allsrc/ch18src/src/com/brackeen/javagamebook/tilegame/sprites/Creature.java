@@ -2,6 +2,8 @@ package com.brackeen.javagamebook.tilegame.sprites;
 
 import java.lang.reflect.Constructor;
 import com.brackeen.javagamebook.graphics.*;
+import com.brackeen.javagamebook.tilegame.TilePath;
+import com.brackeen.javagamebook.tilegame.TileMapRenderer;
 
 /**
     A Creature is a Sprite that is affected by gravity and can
@@ -25,6 +27,8 @@ public abstract class Creature extends Sprite {
     private Animation deadRight;
     private int state;
     private long stateTime;
+    private long dormantTime;
+    private TilePath path;
 
     /**
         Creates a new Creature with the specified Animations.
@@ -60,6 +64,22 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Resets this Creature to STATE_NORMAL, facing right, with
+        an empty path.
+    */
+    public void reset() {
+        state = STATE_NORMAL;
+        stateTime = 0;
+        dormantTime = 0;
+        anim = right;
+        if (path != null) {
+            path.clear();
+        }
+        super.reset();
+    }
+
+
     /**
         Gets the maximum speed of this Creature.
     */
@@ -68,6 +88,15 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Gets the speed this Creature jumps at. Creatures with a
+        jump speed of 0 don't jump.
+    */
+    public float getJumpSpeed() {
+        return 0;
+    }
+
+
     /**
         Wakes up the creature when the Creature first appears
         on screen. Normally, the creature starts moving left.
@@ -79,6 +108,24 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Gets the amount of time this Creature has been dormant
+        (not updated because it's far from the screen), in
+        milliseconds. Returns 0 if it isn't dormant.
+    */
+    public long getDormantTime() {
+        return dormantTime;
+    }
+
+
+    /**
+        Sets the amount of time this Creature has been dormant.
+    */
+    public void setDormantTime(long dormantTime) {
+        this.dormantTime = dormantTime;
+    }
+
+
     /**
         Gets the state of this Creature. The state is either
         STATE_NORMAL, STATE_DYING, or STATE_DEAD.
@@ -138,6 +185,53 @@ public abstract class Creature extends Sprite {
     }
 
 
+    /**
+        Gets this Creature's path. The path is empty unless a
+        TilePathFinder found a path for this Creature.
+    */
+    public TilePath getPath() {
+        if (path == null) {
+            path = new TilePath();
+        }
+        return path;
+    }
+
+
+    /**
+        Steers this Creature towards the next waypoint of its
+        path. The Creature walks left or right towards the
+        waypoint, and jumps if the waypoint is above it and it
+        is on the ground. Call before the creature is moved.
+    */
+    public void followPath() {
+        if (path == null || path.isDone() || !isAlive()) {
+            return;
+        }
+
+        // get the tile the creature is standing in
+        int tileX = TileMapRenderer.pixelsToTiles(
+            getX() + getWidth() / 2);
+        int tileY = TileMapRenderer.pixelsToTiles(
+            getY() + getHeight() - 1);
+        if (tileX == path.getNextX() && tileY == path.getNextY()) {
+            path.next();
+            if (path.isDone()) {
+                return;
+            }
+        }
+
+        if (path.getNextX() < tileX) {
+            setVelocityX(-getMaxSpeed());
+        }
+        else if (path.getNextX() > tileX) {
+            setVelocityX(getMaxSpeed());
+        }
+        if (path.getNextY() < tileY && getVelocityY() == 0) {
+            setVelocityY(-getJumpSpeed());
+        }
+    }
+
+
     /**
         Updates the animaton for this creature.
     */
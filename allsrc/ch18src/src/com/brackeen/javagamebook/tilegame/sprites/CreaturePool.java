@@ -0,0 +1,27 @@
+package com.brackeen.javagamebook.tilegame.sprites;
+
+import com.brackeen.javagamebook.graphics.SpritePool;
+
+/**
+    A SpritePool of Creatures.
+*/
+public class CreaturePool extends SpritePool {
+
+    /**
+        Creates a new CreaturePool for clones of the specified
+        Creature.
+    */
+    public CreaturePool(Creature host) {
+        super(host);
+    }
+
+
+    /**
+        Gets a Creature in STATE_NORMAL, with no velocity, from
+        this pool.
+    */
+    public Creature get() {
+        return (Creature)getSprite();
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
 import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.tilegame.TilePath;
+import com.brackeen.javagamebook.tilegame.TileMapRenderer;
 
 /**
     A Fly is a Creature that fly slowly in the air.
@@ -23,4 +25,43 @@ public class Fly extends Creature {
         return isAlive();
     }
 
+
+    /**
+        Flies straight towards the center of the next waypoint
+        of this Fly's path.
+    */
+    public void followPath() {
+        TilePath path = getPath();
+        if (path.isDone() || !isAlive()) {
+            return;
+        }
+
+        float centerX = getX() + getWidth() / 2;
+        float centerY = getY() + getHeight() / 2;
+        if (TileMapRenderer.pixelsToTiles(centerX) == path.getNextX() &&
+            TileMapRenderer.pixelsToTiles(centerY) == path.getNextY())
+        {
+            path.next();
+            if (path.isDone()) {
+                // keep flying horizontally
+                setVelocityY(0);
+                if (getVelocityX() == 0) {
+                    setVelocityX(-getMaxSpeed());
+                }
+                return;
+            }
+        }
+
+        int halfTile = TileMapRenderer.tilesToPixels(1) / 2;
+        float dx = TileMapRenderer.tilesToPixels(path.getNextX()) +
+            halfTile - centerX;
+        float dy = TileMapRenderer.tilesToPixels(path.getNextY()) +
+            halfTile - centerY;
+        float length = (float)Math.sqrt(dx * dx + dy * dy);
+        if (length > 0) {
+            setVelocityX(getMaxSpeed() * dx / length);
+            setVelocityY(getMaxSpeed() * dy / length);
+        }
+    }
+
 }
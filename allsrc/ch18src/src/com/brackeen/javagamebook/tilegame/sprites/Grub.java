@@ -18,4 +18,9 @@ public class Grub extends Creature {
         return 0.05f;
     }
 
+
+    public float getJumpSpeed() {
+        return 0.65f;
+    }
+
 }
@@ -41,6 +41,12 @@ public class Player extends Creature {
     }
 
 
+    public void reset() {
+        onGround = false;
+        super.reset();
+    }
+
+
     public void wakeUp() {
         // do nothing
     }
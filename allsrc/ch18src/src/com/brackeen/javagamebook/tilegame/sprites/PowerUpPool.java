@@ -0,0 +1,26 @@
+package com.brackeen.javagamebook.tilegame.sprites;
+
+import com.brackeen.javagamebook.graphics.SpritePool;
+
+/**
+    A SpritePool of PowerUps.
+*/
+public class PowerUpPool extends SpritePool {
+
+    /**
+        Creates a new PowerUpPool for clones of the specified
+        PowerUp.
+    */
+    public PowerUpPool(PowerUp host) {
+        super(host);
+    }
+
+
+    /**
+        Gets a PowerUp from this pool.
+    */
+    public PowerUp get() {
+        return (PowerUp)getSprite();
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.brackeen.javagamebook.util;
+
+/**
+    A ParallelLoop runs the iterations of a loop on several
+    threads and waits until they are all done (fork-join). The
+    iterations are split into batches, and each thread takes the
+    next batch until there are none left. The thread that calls
+    run() works on batches too.
+    <p>The threads are daemon threads, and are reused for every
+    run() call.
+*/
+public class ParallelLoop {
+
+    /**
+        The body of a loop.
+    */
+    public interface Body {
+
+        /**
+            Runs the iterations from start (inclusive) to end
+            (exclusive). The worker number (from 0 to
+            getNumWorkers() - 1) identifies the thread, so
+            each thread can have its own scratch objects.
+        */
+        public void run(int start, int end, int worker);
+    }
+
+
+    private Thread[] threads;
+    private Body body;
+    private int size;
+    private int batchSize;
+    private int nextStart;
+    private int numBusy;
+    private long runId;
+    private Throwable error;
+    private boolean closed;
+
+    /**
+        Creates a new ParallelLoop that runs loops on the
+        specified number of threads, including the thread that
+        calls run().
+    */
+    public ParallelLoop(int numThreads) {
+        threads = new Thread[Math.max(0, numThreads - 1)];
+        for (int i=0; i<threads.length; i++) {
+            final int worker = i + 1;
+            threads[i] = new Thread("ParallelLoop-" + worker) {
+                public void run() {
+                    workerLoop(worker);
+                }
+            };
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+
+    /**
+        Gets the number of threads that run loops, including the
+        thread that calls run().
+    */
+    public int getNumWorkers() {
+        return threads.length + 1;
+    }
+
+
+    /**
+        Runs the iterations 0 to size - 1 of the specified loop
+        body, in batches of the specified size, and returns when
+        they are all done. If the body throws an exception, the
+        remaining batches are skipped and the exception is
+        thrown from this method.
+    */
+    public void run(int size, int batchSize, Body body) {
+        if (threads.length == 0 || size <= batchSize) {
+            // not worth waking the other threads
+            if (size > 0) {
+                body.run(0, size, 0);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException();
+            }
+            this.body = body;
+            this.size = size;
+            this.batchSize = batchSize;
+            nextStart = 0;
+            error = null;
+            numBusy = threads.length;
+            runId++;
+            notifyAll();
+        }
+
+        try {
+            runBatches(0);
+        }
+        catch (RuntimeException ex) {
+            setError(ex);
+        }
+        catch (Error ex) {
+            setError(ex);
+        }
+
+        // wait for the other threads
+        Throwable t;
+        synchronized (this) {
+            while (numBusy > 0) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) { }
+            }
+            this.body = null;
+            t = error;
+            error = null;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        else if (t instanceof Error) {
+            throw (Error)t;
+        }
+    }
+
+
+    /**
+        Stops the threads of this ParallelLoop. Once closed,
+        run() can't be called.
+    */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+
+    private void workerLoop(int worker) {
+        long lastRunId = 0;
+        while (true) {
+            synchronized (this) {
+                while (runId == lastRunId && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ex) { }
+                }
+                if (closed) {
+                    return;
+                }
+                lastRunId = runId;
+            }
+            try {
+                runBatches(worker);
+            }
+            catch (Throwable t) {
+                setError(t);
+            }
+            finally {
+                synchronized (this) {
+                    numBusy--;
+                    if (numBusy == 0) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Runs batches until there are none left.
+    */
+    private void runBatches(int worker) {
+        while (true) {
+            Body body;
+            int start;
+            int end;
+            synchronized (this) {
+                if (nextStart >= size) {
+                    return;
+                }
+                body = this.body;
+                start = nextStart;
+                end = Math.min(start + batchSize, size);
+                nextStart = end;
+            }
+            body.run(start, end, worker);
+        }
+    }
+
+
+    /**
+        Records an exception from a batch and skips the
+        remaining batches.
+    */
+    private synchronized void setError(Throwable t) {
+        if (error == null) {
+            error = t;
+        }
+        nextStart = size;
+    }
+
+}